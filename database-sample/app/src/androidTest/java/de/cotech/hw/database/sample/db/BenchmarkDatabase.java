@@ -0,0 +1,141 @@
+package de.cotech.hw.database.sample.db;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import de.cotech.hw.database.sample.db.entity.User;
+import de.cotech.hw.secrets.ByteSecret;
+import de.cotech.hw.secrets.ByteSecretGenerator;
+
+/**
+ * Creates the encrypted database for the instrumented benchmarks. These need a device or emulator,
+ * since SQLCipher is a native library.
+ * <p>
+ * The database is filled with 1,000,000 generated users, which can be lowered with the
+ * instrumentation argument benchmarkRows, e.g.
+ * {@code ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.benchmarkRows=100000}
+ */
+final class BenchmarkDatabase {
+
+    static final String TAG = "DatabaseBenchmark";
+
+    private static final int DEFAULT_ROW_COUNT = 1000000;
+
+    private BenchmarkDatabase() {
+    }
+
+    static Context getContext() {
+        return InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    static int getRowCount() {
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        String rowCount = arguments.getString("benchmarkRows");
+        return rowCount != null ? Integer.parseInt(rowCount) : DEFAULT_ROW_COUNT;
+    }
+
+    static byte[] createSecret() {
+        return ByteSecretGenerator.getInstance().createRandom(32).getByteCopyAndClear();
+    }
+
+    /**
+     * Opens the database with a copy of the secret, the database clears the one it is given.
+     */
+    static EncryptedDatabase open(byte[] secret, int readConnectionCount, CipherConfig cipherConfig) throws IOException {
+        ByteSecret byteSecret = ByteSecret.fromByteArrayAndClear(Arrays.copyOf(secret, secret.length));
+        return EncryptedDatabase.decryptAndGetInstance(getContext(), byteSecret, readConnectionCount, cipherConfig);
+    }
+
+    /**
+     * Replaces the database with a new one that holds the given number of users.
+     */
+    static EncryptedDatabase create(int rowCount) throws IOException {
+        return create(createSecret(), rowCount);
+    }
+
+    static EncryptedDatabase create(byte[] secret, int rowCount) throws IOException {
+        delete();
+        EncryptedDatabase database = open(secret, EncryptedDatabase.DEFAULT_READ_CONNECTION_COUNT,
+                EncryptedDatabase.DEFAULT_CIPHER_CONFIG);
+        long startTime = System.nanoTime();
+        database.bulkInsertUsers(generateUsers(1, rowCount), EncryptedDatabase.DEFAULT_BULK_INSERT_BATCH_SIZE);
+        Log.i(TAG, "Inserted " + rowCount + " users in " + (System.nanoTime() - startTime) / 1000000 + " ms");
+        return database;
+    }
+
+    static void delete() {
+        EncryptedDatabase.closeInstance();
+        getContext().deleteDatabase(EncryptedDatabase.DATABASE_NAME);
+    }
+
+    /**
+     * Users with consecutive uids, named "First uid" and "Last uid".
+     */
+    static Iterator<User> generateUsers(final int firstUid, final int count) {
+        return new Iterator<User>() {
+            private int uid = firstUid;
+
+            @Override
+            public boolean hasNext() {
+                return uid < firstUid + count;
+            }
+
+            @Override
+            public User next() {
+                User user = new User();
+                user.uid = uid++;
+                user.firstName = "First " + user.uid;
+                user.lastName = "Last " + user.uid;
+                return user;
+            }
+        };
+    }
+
+    /**
+     * Samples the used Java heap on a background thread, to find the peak during an operation.
+     */
+    static final class PeakHeapSampler {
+        private final Runtime runtime = Runtime.getRuntime();
+        private final long baseline;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile long peak;
+
+        PeakHeapSampler() {
+            runtime.gc();
+            baseline = usedHeap();
+            peak = baseline;
+            thread = new Thread(() -> {
+                while (running) {
+                    peak = Math.max(peak, usedHeap());
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "PeakHeapSampler");
+            thread.start();
+        }
+
+        private long usedHeap() {
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        /**
+         * Stops sampling and returns by how much the heap grew at most since this sampler was created.
+         */
+        long stop() throws InterruptedException {
+            running = false;
+            thread.join();
+            return Math.max(peak, usedHeap()) - baseline;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package de.cotech.hw.database.sample.db;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import de.cotech.hw.database.sample.db.entity.User;
+
+import static de.cotech.hw.database.sample.db.BenchmarkDatabase.TAG;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Inserts users one per transaction through {@link de.cotech.hw.database.sample.db.dao.UserDao#insertAll},
+ * and with {@link EncryptedDatabase#bulkInsertUsers} at several batch sizes, and reports rows per second.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BulkInsertBenchmark {
+
+    // Every row of the per-row path is a commit with an fsync, so this is kept small
+    private static final int INSERT_COUNT = 10000;
+    private static final int[] BATCH_SIZES = {1, 10, 100, 1000, 10000};
+
+    private EncryptedDatabase database;
+    private int nextUid = 1;
+
+    @Before
+    public void setUp() throws IOException {
+        database = BenchmarkDatabase.create(0);
+    }
+
+    @After
+    public void tearDown() {
+        BenchmarkDatabase.delete();
+    }
+
+    @Test
+    public void rowsPerSecond_byBatchSize() {
+        long perRowRate = measure("insertAll(), one transaction per user", users -> {
+            while (users.hasNext()) {
+                database.userDao().insertAll(users.next());
+            }
+        });
+
+        long batchedRate = 0;
+        for (int batchSize : BATCH_SIZES) {
+            batchedRate = measure("bulkInsertUsers(), batches of " + batchSize,
+                    users -> database.bulkInsertUsers(users, batchSize));
+        }
+
+        assertEquals(INSERT_COUNT * (BATCH_SIZES.length + 1), database.userDao().count());
+        assertTrue(batchedRate > perRowRate);
+    }
+
+    @Test
+    public void bulkInsertUsers_duplicateUid_reportsInsertedCount() {
+        User existingUser = new User();
+        existingUser.uid = 2500;
+        database.userDao().insertAll(existingUser);
+
+        try {
+            database.bulkInsertUsers(BenchmarkDatabase.generateUsers(1, 5000), 1000);
+            throw new AssertionError("The duplicate uid was inserted");
+        } catch (EncryptedDatabase.BulkInsertException e) {
+            // The batch with uid 2500 was rolled back
+            assertEquals(2000, e.getInsertedCount());
+            assertEquals(2001, database.userDao().count());
+        }
+    }
+
+    private interface Inserter {
+        void insert(Iterator<User> users);
+    }
+
+    private long measure(String name, Inserter inserter) {
+        Iterator<User> users = BenchmarkDatabase.generateUsers(nextUid, INSERT_COUNT);
+        nextUid += INSERT_COUNT;
+
+        long startTime = System.nanoTime();
+        inserter.insert(users);
+        long durationMs = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+        long rowsPerSecond = INSERT_COUNT * 1000L / durationMs;
+
+        Log.i(TAG, name + ": " + INSERT_COUNT + " users in " + durationMs + " ms, " + rowsPerSecond + " rows/s");
+        return rowsPerSecond;
+    }
+}
@@ -0,0 +1,130 @@
+package de.cotech.hw.database.sample.db;
+
+import android.database.Cursor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.List;
+
+import de.cotech.hw.database.sample.db.entity.User;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class CipherMigrationTest {
+
+    private static final int USER_COUNT = 1000;
+    // Keeps the passphrase databases quick to open, migrating works the same with any kdf_iter
+    private static final CipherConfig FAST_PASSPHRASE = CipherConfig.PASSPHRASE.withKdfIterations(1000);
+
+    private byte[] secret;
+
+    @Before
+    public void setUp() {
+        secret = BenchmarkDatabase.createSecret();
+        BenchmarkDatabase.delete();
+    }
+
+    @After
+    public void tearDown() {
+        BenchmarkDatabase.delete();
+    }
+
+    @Test
+    public void migrate_passphraseToRawKey_keepsUsers() throws Exception {
+        assertRoundTrip(FAST_PASSPHRASE, CipherConfig.RAW_KEY);
+    }
+
+    @Test
+    public void migrate_rawKeyToPassphrase_keepsUsers() throws Exception {
+        assertRoundTrip(CipherConfig.RAW_KEY, FAST_PASSPHRASE);
+    }
+
+    @Test
+    public void migrate_pageSize_keepsUsers() throws Exception {
+        assertRoundTrip(CipherConfig.RAW_KEY, CipherConfig.RAW_KEY.withPageSize(16384));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void decryptAndGetInstance_otherConfigWhileOpen_throws() throws IOException {
+        BenchmarkDatabase.open(secret, EncryptedDatabase.DEFAULT_READ_CONNECTION_COUNT, CipherConfig.RAW_KEY);
+
+        BenchmarkDatabase.open(secret, EncryptedDatabase.DEFAULT_READ_CONNECTION_COUNT, FAST_PASSPHRASE);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void decryptAndGetInstance_otherReadConnectionCountWhileOpen_throws() throws IOException {
+        BenchmarkDatabase.open(secret, 1, CipherConfig.RAW_KEY);
+
+        BenchmarkDatabase.open(secret, 2, CipherConfig.RAW_KEY);
+    }
+
+    private void assertRoundTrip(CipherConfig from, CipherConfig to) throws Exception {
+        EncryptedDatabase database = BenchmarkDatabase.open(secret, EncryptedDatabase.DEFAULT_READ_CONNECTION_COUNT, from);
+        database.bulkInsertUsers(BenchmarkDatabase.generateUsers(1, USER_COUNT), USER_COUNT);
+        EncryptedDatabase.closeInstance();
+
+        database = BenchmarkDatabase.open(secret, EncryptedDatabase.DEFAULT_READ_CONNECTION_COUNT, to);
+
+        // Through Room, which checks the schema version, and through a read connection
+        assertEquals(USER_COUNT, database.userDao().count());
+        assertEquals(USER_COUNT, database.countUsers());
+        List<User> page = database.getUserPageAfter(USER_COUNT - 1, 10);
+        assertEquals(1, page.size());
+        assertEquals("First " + USER_COUNT, page.get(0).firstName);
+        EncryptedDatabase.closeInstance();
+
+        assertKeyedWith(to);
+        assertNotKeyedWith(from);
+    }
+
+    private void assertKeyedWith(CipherConfig config) {
+        SQLiteDatabase db = openDirectly(config);
+        try {
+            Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM user", new Object[0]);
+            try {
+                cursor.moveToNext();
+                assertEquals(USER_COUNT, cursor.getInt(0));
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private void assertNotKeyedWith(CipherConfig config) {
+        try {
+            openDirectly(config).close();
+            fail("The database still opens with " + config);
+        } catch (SQLiteException e) {
+            // "file is not a database"
+        }
+    }
+
+    private SQLiteDatabase openDirectly(CipherConfig config) {
+        SQLiteDatabase.loadLibs(BenchmarkDatabase.getContext());
+        byte[] key = config.toSqlCipherKey(secret);
+        String path = BenchmarkDatabase.getContext().getDatabasePath(EncryptedDatabase.DATABASE_NAME).getPath();
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(path, key, null, SQLiteDatabase.OPEN_READWRITE,
+                config.getDatabaseHook());
+        try {
+            // SQLCipher only notices a wrong key when the first page is read
+            db.rawExecSQL("SELECT COUNT(*) FROM sqlite_master");
+        } catch (SQLiteException e) {
+            db.close();
+            throw e;
+        }
+        return db;
+    }
+}
@@ -0,0 +1,79 @@
+package de.cotech.hw.database.sample.db;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static de.cotech.hw.database.sample.db.BenchmarkDatabase.TAG;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Opens the database and runs its first query, as after {@link de.cotech.hw.database.sample.ui.DecryptActivity},
+ * for each {@link CipherConfig}, and reports the median time. Keying, and with a passphrase the
+ * PBKDF2 run, only happens when Room opens its connection for the first query.
+ * <p>
+ * Each open is cold for SQLCipher, since the database is closed in between. The file itself is
+ * likely still in the page cache of the OS, which can't be dropped without root.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ColdOpenBenchmark {
+
+    private static final int USER_COUNT = 1000;
+    private static final int OPEN_COUNT = 5;
+
+    @After
+    public void tearDown() {
+        BenchmarkDatabase.delete();
+    }
+
+    @Test
+    public void coldOpen_byCipherConfig() throws IOException {
+        Map<String, CipherConfig> configs = new LinkedHashMap<>();
+        configs.put("passphrase, kdf_iter 256000", CipherConfig.PASSPHRASE);
+        configs.put("passphrase, kdf_iter 64000", CipherConfig.PASSPHRASE.withKdfIterations(64000));
+        configs.put("raw key", CipherConfig.RAW_KEY);
+        configs.put("raw key, cipher_page_size 16384", CipherConfig.RAW_KEY.withPageSize(16384));
+        configs.put("raw key, cipher_memory_security off", CipherConfig.RAW_KEY.withMemorySecurity(false));
+
+        Map<CipherConfig, Long> medianTimesMs = new LinkedHashMap<>();
+        for (Map.Entry<String, CipherConfig> entry : configs.entrySet()) {
+            long medianTimeMs = measure(entry.getValue());
+            Log.i(TAG, "Cold open with " + entry.getKey() + ": " + medianTimeMs + " ms");
+            medianTimesMs.put(entry.getValue(), medianTimeMs);
+        }
+
+        assertTrue(medianTimesMs.get(CipherConfig.RAW_KEY) < medianTimesMs.get(CipherConfig.PASSPHRASE));
+    }
+
+    private static long measure(CipherConfig config) throws IOException {
+        byte[] secret = BenchmarkDatabase.createSecret();
+        // A new file for each config, so no migration runs while measuring
+        BenchmarkDatabase.delete();
+        EncryptedDatabase database = BenchmarkDatabase.open(secret, EncryptedDatabase.DEFAULT_READ_CONNECTION_COUNT, config);
+        database.bulkInsertUsers(BenchmarkDatabase.generateUsers(1, USER_COUNT), USER_COUNT);
+
+        long[] timesMs = new long[OPEN_COUNT];
+        for (int i = 0; i < OPEN_COUNT; i++) {
+            EncryptedDatabase.closeInstance();
+
+            long startTime = System.nanoTime();
+            database = BenchmarkDatabase.open(secret, EncryptedDatabase.DEFAULT_READ_CONNECTION_COUNT, config);
+            int userCount = database.userDao().count();
+            timesMs[i] = (System.nanoTime() - startTime) / 1000000;
+
+            assertEquals(USER_COUNT, userCount);
+        }
+        Arrays.sort(timesMs);
+        return timesMs[OPEN_COUNT / 2];
+    }
+}
@@ -0,0 +1,90 @@
+package de.cotech.hw.database.sample.db;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.List;
+
+import de.cotech.hw.database.sample.db.dao.UserDao;
+import de.cotech.hw.database.sample.db.entity.User;
+import de.cotech.hw.database.sample.db.entity.UserFts;
+
+import static de.cotech.hw.database.sample.db.BenchmarkDatabase.TAG;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Looks up a user of a generated database with a LIKE scan, with the name index and with a full-text
+ * prefix search, and reports the average time per lookup.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NameSearchBenchmark {
+
+    private static final int LOOKUP_COUNT = 20;
+
+    private static EncryptedDatabase database;
+    private static int rowCount;
+
+    private interface Lookup {
+        void run(int uid);
+    }
+
+    @BeforeClass
+    public static void createDatabase() throws IOException {
+        rowCount = BenchmarkDatabase.getRowCount();
+        database = BenchmarkDatabase.create(rowCount);
+    }
+
+    @AfterClass
+    public static void deleteDatabase() {
+        BenchmarkDatabase.delete();
+    }
+
+    @Test
+    public void likeScanVsIndexVsFts() {
+        UserDao userDao = database.userDao();
+
+        long likeScanTimeNs = measure("LIKE scan", uid -> {
+            User user = userDao.findByNamePattern("First " + uid, "Last " + uid);
+            assertNotNull(user);
+            assertEquals(uid, user.uid);
+        });
+        long indexTimeNs = measure("Indexed equality", uid -> {
+            User user = userDao.findByName("First " + uid, "Last " + uid);
+            assertNotNull(user);
+            assertEquals(uid, user.uid);
+        });
+        long ftsTimeNs = measure("FTS prefix search", uid -> {
+            // Each uid is a token of the names, and also a prefix of the larger uids starting with it
+            List<User> users = userDao.searchByName(UserFts.prefixQuery("Last " + uid), 1);
+            assertEquals(1, users.size());
+            assertEquals(uid, users.get(0).uid);
+        });
+
+        assertTrue(indexTimeNs < likeScanTimeNs);
+        assertTrue(ftsTimeNs < likeScanTimeNs);
+    }
+
+    private static long measure(String name, Lookup lookup) {
+        // Warms up the statement cache and the pages of the index
+        lookup.run(1);
+
+        long startTime = System.nanoTime();
+        for (int i = 1; i <= LOOKUP_COUNT; i++) {
+            // Spread over the table, so no lookup finds a row near the previous one
+            lookup.run(Math.max(1, (int) ((long) rowCount * i / LOOKUP_COUNT)));
+        }
+        long timePerLookupNs = (System.nanoTime() - startTime) / LOOKUP_COUNT;
+
+        Log.i(TAG, name + " in " + rowCount + " users: " + timePerLookupNs / 1000 + " us per lookup");
+        return timePerLookupNs;
+    }
+}
@@ -0,0 +1,122 @@
+package de.cotech.hw.database.sample.db;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ReadConnectionPoolTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private ReadConnectionPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        byte[] secret = BenchmarkDatabase.createSecret();
+        BenchmarkDatabase.create(secret, 10);
+        EncryptedDatabase.closeInstance();
+        pool = BenchmarkDatabase.open(secret, 1, EncryptedDatabase.DEFAULT_CIPHER_CONFIG).getReadConnectionPool();
+    }
+
+    @After
+    public void tearDown() {
+        BenchmarkDatabase.delete();
+    }
+
+    @Test
+    public void close_whileInUseAndWaiting_closesAfterUseAndWakesWaiter() throws InterruptedException {
+        CountDownLatch inUse = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<SQLiteDatabase> usedConnection = new AtomicReference<>();
+        Thread user = new Thread(() -> {
+            try {
+                pool.read(db -> {
+                    usedConnection.set(db);
+                    inUse.countDown();
+                    awaitUninterruptibly(done);
+                    return null;
+                });
+            } catch (InterruptedException e) {
+                // the test fails on the assertions below
+            }
+        });
+        user.start();
+        assertTrue(inUse.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        AtomicReference<Throwable> waiterError = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                pool.read(db -> null);
+            } catch (Throwable e) {
+                waiterError.set(e);
+            }
+        });
+        waiter.start();
+        awaitState(waiter, Thread.State.WAITING);
+
+        pool.close();
+        waiter.join(TIMEOUT_MS);
+
+        assertFalse(waiter.isAlive());
+        assertTrue(waiterError.get() instanceof IllegalStateException);
+        assertTrue(usedConnection.get().isOpen());
+
+        done.countDown();
+        user.join(TIMEOUT_MS);
+
+        assertFalse(user.isAlive());
+        assertFalse(usedConnection.get().isOpen());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void read_afterClose_throws() throws InterruptedException {
+        pool.close();
+
+        pool.read(db -> null);
+    }
+
+    @Test
+    public void read_afterRead_reusesConnection() throws InterruptedException {
+        SQLiteDatabase first = pool.read(db -> db);
+        SQLiteDatabase second = pool.read(db -> db);
+
+        assertEquals(first, second);
+        assertTrue(second.isOpen());
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // keep waiting
+            }
+        }
+    }
+
+    private static void awaitState(Thread thread, Thread.State state) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (thread.getState() != state) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError(thread + " is " + thread.getState() + " instead of " + state);
+            }
+            Thread.sleep(1);
+        }
+    }
+}
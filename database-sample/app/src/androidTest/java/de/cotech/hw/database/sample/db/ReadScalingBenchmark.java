@@ -0,0 +1,122 @@
+package de.cotech.hw.database.sample.db;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static de.cotech.hw.database.sample.db.BenchmarkDatabase.TAG;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads pages of a generated database from 1 up to one thread per core, each with its own read
+ * connection, while another thread keeps inserting users through Room. Reports the pages read per
+ * second for each number of readers.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReadScalingBenchmark {
+
+    private static final long DURATION_MS = 5000;
+    private static final int PAGE_SIZE = 100;
+    private static final int WRITE_BATCH_SIZE = 100;
+
+    private static byte[] secret;
+    private static int rowCount;
+    private static int nextWriteUid;
+
+    @BeforeClass
+    public static void createDatabase() throws IOException {
+        secret = BenchmarkDatabase.createSecret();
+        rowCount = BenchmarkDatabase.getRowCount();
+        BenchmarkDatabase.create(secret, rowCount);
+        nextWriteUid = rowCount + 1;
+    }
+
+    @AfterClass
+    public static void deleteDatabase() {
+        BenchmarkDatabase.delete();
+    }
+
+    @Test
+    public void readers_withWriter_scaleWithCores() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> readerCounts = new ArrayList<>();
+        for (int readerCount = 1; readerCount < cores; readerCount *= 2) {
+            readerCounts.add(readerCount);
+        }
+        readerCounts.add(cores);
+
+        List<Long> pagesPerSecond = new ArrayList<>();
+        for (int readerCount : readerCounts) {
+            // The pool size is fixed when the database is opened
+            EncryptedDatabase.closeInstance();
+            EncryptedDatabase database = BenchmarkDatabase.open(secret, readerCount, EncryptedDatabase.DEFAULT_CIPHER_CONFIG);
+            pagesPerSecond.add(measure(database, readerCount));
+        }
+
+        if (cores > 1) {
+            assertTrue(pagesPerSecond.get(pagesPerSecond.size() - 1) > pagesPerSecond.get(0));
+        }
+    }
+
+    private static long measure(EncryptedDatabase database, int readerCount) throws Exception {
+        AtomicLong pageCount = new AtomicLong();
+        AtomicLong writtenCount = new AtomicLong();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        long endTime = System.nanoTime() + DURATION_MS * 1000000;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < readerCount; i++) {
+            Random random = new Random(i);
+            threads.add(new Thread(() -> {
+                try {
+                    while (System.nanoTime() < endTime) {
+                        database.getUserPageAfter(random.nextInt(rowCount), PAGE_SIZE);
+                        pageCount.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            }, "Reader " + i));
+        }
+        int firstWriteUid = nextWriteUid;
+        threads.add(new Thread(() -> {
+            try {
+                int uid = firstWriteUid;
+                while (System.nanoTime() < endTime) {
+                    uid += database.bulkInsertUsers(BenchmarkDatabase.generateUsers(uid, WRITE_BATCH_SIZE), WRITE_BATCH_SIZE);
+                    writtenCount.set(uid - firstWriteUid);
+                }
+            } catch (Exception e) {
+                error.set(e);
+            }
+        }, "Writer"));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+        nextWriteUid += (int) writtenCount.get();
+
+        long pagesPerSecond = pageCount.get() * 1000 / DURATION_MS;
+        Log.i(TAG, readerCount + " reader(s) with a writer: " + pagesPerSecond + " pages/s of " + PAGE_SIZE
+                + " users, writer inserted " + writtenCount.get() * 1000 / DURATION_MS + " users/s");
+        return pagesPerSecond;
+    }
+}
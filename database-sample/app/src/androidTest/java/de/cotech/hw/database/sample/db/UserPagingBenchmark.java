@@ -0,0 +1,135 @@
+package de.cotech.hw.database.sample.db;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.List;
+
+import de.cotech.hw.database.sample.db.entity.User;
+
+import static de.cotech.hw.database.sample.db.BenchmarkDatabase.TAG;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads all users of a generated database at once, page by page and through a cursor, and reports
+ * the time to the first row and how much the heap grew at most.
+ */
+@RunWith(AndroidJUnit4.class)
+public class UserPagingBenchmark {
+
+    private static final int PAGE_SIZE = 500;
+    // Pages and cursor windows are freed as they are passed, only getAll() holds all rows at once
+    private static final long MAX_STREAMING_HEAP_GROWTH = 16L * 1024 * 1024;
+
+    private static EncryptedDatabase database;
+    private static int rowCount;
+
+    private interface RowReader {
+        void readRows(RowCounter rowCounter) throws InterruptedException;
+    }
+
+    private static final class RowCounter {
+        private final long startTime = System.nanoTime();
+        private long firstRowTime = -1;
+        private int count;
+
+        void onRow() {
+            if (count == 0) {
+                firstRowTime = System.nanoTime();
+            }
+            count++;
+        }
+    }
+
+    @BeforeClass
+    public static void createDatabase() throws IOException {
+        rowCount = BenchmarkDatabase.getRowCount();
+        database = BenchmarkDatabase.create(rowCount);
+    }
+
+    @AfterClass
+    public static void deleteDatabase() {
+        BenchmarkDatabase.delete();
+    }
+
+    @Test
+    public void getAll() throws InterruptedException {
+        try {
+            measure("getAll()", rowCounter -> {
+                for (User ignored : database.userDao().getAll()) {
+                    rowCounter.onRow();
+                }
+            });
+        } catch (OutOfMemoryError e) {
+            // that is what paging is for, and worth reporting rather than failing
+            Log.i(TAG, "getAll(): ran out of memory with " + rowCount + " users");
+        }
+    }
+
+    @Test
+    public void userPager() throws InterruptedException {
+        long peakHeapGrowth = measure("UserPager on Room's connection", rowCounter ->
+                new UserPager(database.userDao(), PAGE_SIZE).forEachPage(page -> countRows(page, rowCounter)));
+
+        assertTrue(peakHeapGrowth < MAX_STREAMING_HEAP_GROWTH);
+    }
+
+    @Test
+    public void userPager_readConnection() throws InterruptedException {
+        long peakHeapGrowth = measure("UserPager on a read connection", rowCounter ->
+                new UserPager(database::getUserPageAfter, PAGE_SIZE).forEachPage(page -> countRows(page, rowCounter)));
+
+        assertTrue(peakHeapGrowth < MAX_STREAMING_HEAP_GROWTH);
+    }
+
+    @Test
+    public void getAllCursor() throws InterruptedException {
+        long peakHeapGrowth = measure("getAllCursor()", rowCounter -> {
+            Cursor cursor = database.userDao().getAllCursor();
+            try {
+                while (cursor.moveToNext()) {
+                    rowCounter.onRow();
+                }
+            } finally {
+                cursor.close();
+            }
+        });
+
+        assertTrue(peakHeapGrowth < MAX_STREAMING_HEAP_GROWTH);
+    }
+
+    private static boolean countRows(List<User> page, RowCounter rowCounter) {
+        for (int i = 0; i < page.size(); i++) {
+            rowCounter.onRow();
+        }
+        return true;
+    }
+
+    private static long measure(String name, RowReader rowReader) throws InterruptedException {
+        BenchmarkDatabase.PeakHeapSampler peakHeapSampler = new BenchmarkDatabase.PeakHeapSampler();
+        RowCounter rowCounter = new RowCounter();
+        long peakHeapGrowth;
+        try {
+            rowReader.readRows(rowCounter);
+        } finally {
+            peakHeapGrowth = peakHeapSampler.stop();
+        }
+        long endTime = System.nanoTime();
+
+        Log.i(TAG, name + ": " + rowCounter.count + " users, first row after "
+                + (rowCounter.firstRowTime - rowCounter.startTime) / 1000000 + " ms, all rows after "
+                + (endTime - rowCounter.startTime) / 1000000 + " ms, peak heap growth "
+                + peakHeapGrowth / 1024 + " KiB");
+        assertEquals(rowCount, rowCounter.count);
+        return peakHeapGrowth;
+    }
+}
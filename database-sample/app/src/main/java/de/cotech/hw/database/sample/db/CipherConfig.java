@@ -0,0 +1,223 @@
+package de.cotech.hw.database.sample.db;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
+
+import java.util.Arrays;
+
+/**
+ * How SQLCipher derives the key from the secret and lays out the encrypted file.
+ * <p>
+ * By default SQLCipher treats the key as a passphrase and runs it through PBKDF2 with 256,000
+ * iterations on every open, which makes a cold open slow on older devices. The secret of this
+ * sample is 32 random bytes stored on the security key, so it doesn't need key stretching, and
+ * can be used as the raw encryption key instead.
+ * <p>
+ * A database file can only be opened with the config it was created with, see
+ * {@link CipherMigration} for moving an existing file to another config.
+ */
+public final class CipherConfig {
+
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    public static final int DEFAULT_KDF_ITERATIONS = 256000;
+
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+
+    /**
+     * SQLCipher's defaults, which is how databases of earlier versions of this sample were keyed.
+     */
+    public static final CipherConfig PASSPHRASE =
+            new CipherConfig(false, DEFAULT_PAGE_SIZE, DEFAULT_KDF_ITERATIONS, true);
+
+    /**
+     * Uses the secret as raw key, so no PBKDF2 runs on open.
+     */
+    public static final CipherConfig RAW_KEY =
+            new CipherConfig(true, DEFAULT_PAGE_SIZE, DEFAULT_KDF_ITERATIONS, true);
+
+    private final boolean rawKey;
+    private final int pageSize;
+    private final int kdfIterations;
+    private final boolean memorySecurity;
+
+    /**
+     * @param rawKey         use the 32 byte secret as encryption key instead of as passphrase
+     * @param pageSize       cipher_page_size, larger pages mean fewer encrypt and HMAC operations
+     * @param kdfIterations  kdf_iter, only used if the secret is a passphrase
+     * @param memorySecurity cipher_memory_security, wipes all memory SQLCipher frees. This
+     *                       setting is global to all SQLCipher connections of the process.
+     */
+    public CipherConfig(boolean rawKey, int pageSize, int kdfIterations, boolean memorySecurity) {
+        if (pageSize < 512 || pageSize > 65536 || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("pageSize must be a power of two between 512 and 65536");
+        }
+        if (kdfIterations < 1) {
+            throw new IllegalArgumentException("kdfIterations must be at least 1");
+        }
+        this.rawKey = rawKey;
+        this.pageSize = pageSize;
+        this.kdfIterations = kdfIterations;
+        this.memorySecurity = memorySecurity;
+    }
+
+    public CipherConfig withPageSize(int pageSize) {
+        return new CipherConfig(rawKey, pageSize, kdfIterations, memorySecurity);
+    }
+
+    public CipherConfig withKdfIterations(int kdfIterations) {
+        return new CipherConfig(rawKey, pageSize, kdfIterations, memorySecurity);
+    }
+
+    public CipherConfig withMemorySecurity(boolean memorySecurity) {
+        return new CipherConfig(rawKey, pageSize, kdfIterations, memorySecurity);
+    }
+
+    public boolean isRawKey() {
+        return rawKey;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getKdfIterations() {
+        return kdfIterations;
+    }
+
+    public boolean isMemorySecurity() {
+        return memorySecurity;
+    }
+
+    /**
+     * Returns what is handed to SQLCipher as key. For a raw key, this is the secret in SQLCipher's
+     * x'...' notation, which makes it skip PBKDF2. The returned array is new and should be cleared
+     * by the caller.
+     */
+    byte[] toSqlCipherKey(byte[] secret) {
+        if (!rawKey) {
+            return Arrays.copyOf(secret, secret.length);
+        }
+        if (secret.length != 32) {
+            throw new IllegalArgumentException("A raw key must be 32 bytes");
+        }
+        byte[] key = new byte[secret.length * 2 + 3];
+        key[0] = 'x';
+        key[1] = '\'';
+        for (int i = 0; i < secret.length; i++) {
+            key[2 + i * 2] = HEX_DIGITS[(secret[i] >> 4) & 0x0f];
+            key[3 + i * 2] = HEX_DIGITS[secret[i] & 0x0f];
+        }
+        key[key.length - 1] = '\'';
+        return key;
+    }
+
+    /**
+     * Returns the SQL literal for the KEY clause of an ATTACH statement. For a raw key, this is a
+     * string literal of the secret in x'...' notation, built from the secret itself. A passphrase
+     * is given as blob literal, since the secret is binary, and SQLCipher uses the bytes of a blob
+     * key as they are.
+     */
+    String toAttachKeyLiteral(byte[] secret) {
+        if (!rawKey) {
+            return "X'" + toHex(secret) + "'";
+        }
+        if (secret.length != 32) {
+            throw new IllegalArgumentException("A raw key must be 32 bytes");
+        }
+        // the quotes of the x'...' notation are doubled within the string literal
+        return "'x''" + toHex(secret) + "'''";
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append((char) HEX_DIGITS[(b >> 4) & 0x0f]);
+            builder.append((char) HEX_DIGITS[b & 0x0f]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The statements that configure a connection, to run right after it has been keyed and before
+     * the first page is read.
+     */
+    String getPostKeySql() {
+        return "PRAGMA cipher_page_size = " + pageSize + ";"
+                + " PRAGMA kdf_iter = " + kdfIterations + ";"
+                + " PRAGMA cipher_memory_security = " + (memorySecurity ? "ON" : "OFF") + ";";
+    }
+
+    SQLiteDatabaseHook getDatabaseHook() {
+        final String postKeySql = getPostKeySql();
+        return new SQLiteDatabaseHook() {
+            @Override
+            public void preKey(SQLiteDatabase database) {
+            }
+
+            @Override
+            public void postKey(SQLiteDatabase database) {
+                database.rawExecSQL(postKeySql);
+            }
+        };
+    }
+
+    /**
+     * Compact form to remember which config a database file was written with.
+     */
+    String serialize() {
+        return (rawKey ? "raw" : "passphrase") + ";" + pageSize + ";" + kdfIterations + ";" + memorySecurity;
+    }
+
+    @Nullable
+    static CipherConfig deserialize(@Nullable String serialized) {
+        if (serialized == null) {
+            return null;
+        }
+        String[] parts = serialized.split(";");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            return new CipherConfig("raw".equals(parts[0]), Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]), Boolean.parseBoolean(parts[3]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether a file written with this config can be opened with the other one. Memory security
+     * only affects the process, not the file.
+     */
+    boolean isFileCompatibleWith(CipherConfig other) {
+        return rawKey == other.rawKey && pageSize == other.pageSize
+                && (rawKey || kdfIterations == other.kdfIterations);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CipherConfig)) {
+            return false;
+        }
+        CipherConfig that = (CipherConfig) o;
+        return rawKey == that.rawKey && pageSize == that.pageSize
+                && kdfIterations == that.kdfIterations && memorySecurity == that.memorySecurity;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[]{rawKey, pageSize, kdfIterations, memorySecurity});
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "CipherConfig{" + serialize() + "}";
+    }
+}
@@ -0,0 +1,155 @@
+package de.cotech.hw.database.sample.db;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.WorkerThread;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Moves an encrypted database file to another {@link CipherConfig}.
+ * <p>
+ * SQLCipher can't change the key derivation or page size of a file in place, so the old file is
+ * opened with its config and exported with sqlcipher_export() into a new file that is keyed with
+ * the new config. The new file then replaces the old one. Which config a file was written with is
+ * remembered in the preferences, files without an entry are from before configs were remembered
+ * and use {@link CipherConfig#PASSPHRASE}.
+ * <p>
+ * The rename and the preferences can't be updated together. So before the rename, the new config
+ * is written as pending. If the process dies before the config is remembered, the next start sees
+ * the pending config: if the exported file is gone, the rename happened and the pending config
+ * applies, otherwise the old file is still in place and the export is thrown away.
+ */
+class CipherMigration {
+
+    private static final String PREFERENCES_NAME = "encrypted_database";
+    private static final String PREF_CIPHER_CONFIG_PREFIX = "cipher_config_";
+    private static final String PREF_PENDING_CIPHER_CONFIG_PREFIX = "pending_cipher_config_";
+    private static final String MIGRATED_SCHEMA = "migrated";
+
+    private final Context appContext;
+    private final String databaseName;
+    private final SharedPreferences preferences;
+
+    CipherMigration(Context appContext, String databaseName) {
+        this.appContext = appContext;
+        this.databaseName = databaseName;
+        this.preferences = appContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Makes sure the database file can be opened with the given config, migrating it if it was
+     * written with another one. If there is no file yet, the config is only remembered.
+     */
+    @WorkerThread
+    void migrateIfNeeded(byte[] secret, CipherConfig config) throws IOException {
+        File databaseFile = appContext.getDatabasePath(databaseName);
+        resolvePendingMigration(databaseFile);
+        if (databaseFile.exists()) {
+            CipherConfig currentConfig = getFileConfig();
+            if (!currentConfig.isFileCompatibleWith(config)) {
+                migrate(databaseFile, secret, currentConfig, config);
+            }
+        }
+        preferences.edit().putString(PREF_CIPHER_CONFIG_PREFIX + databaseName, config.serialize()).commit();
+    }
+
+    // Finishes the bookkeeping of a migration that was interrupted around the rename
+    private void resolvePendingMigration(File databaseFile) {
+        String pendingConfig = preferences.getString(PREF_PENDING_CIPHER_CONFIG_PREFIX + databaseName, null);
+        if (pendingConfig == null) {
+            return;
+        }
+        File migratedFile = getMigratedFile(databaseFile);
+        SharedPreferences.Editor editor = preferences.edit()
+                .remove(PREF_PENDING_CIPHER_CONFIG_PREFIX + databaseName);
+        if (migratedFile.exists()) {
+            // The old file is still in place
+            deleteDatabaseFiles(migratedFile);
+        } else {
+            editor.putString(PREF_CIPHER_CONFIG_PREFIX + databaseName, pendingConfig);
+            deleteDatabaseSideFiles(databaseFile);
+        }
+        editor.commit();
+    }
+
+    private CipherConfig getFileConfig() {
+        CipherConfig config = CipherConfig.deserialize(
+                preferences.getString(PREF_CIPHER_CONFIG_PREFIX + databaseName, null));
+        return config != null ? config : CipherConfig.PASSPHRASE;
+    }
+
+    private void migrate(File databaseFile, byte[] secret, CipherConfig from, CipherConfig to) throws IOException {
+        File migratedFile = getMigratedFile(databaseFile);
+        deleteDatabaseFiles(migratedFile);
+
+        SQLiteDatabase.loadLibs(appContext);
+        byte[] fromKey = from.toSqlCipherKey(secret);
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(databaseFile.getPath(), fromKey, null,
+                    SQLiteDatabase.OPEN_READWRITE, from.getDatabaseHook());
+            db.rawExecSQL("ATTACH DATABASE '" + migratedFile.getPath() + "' AS " + MIGRATED_SCHEMA
+                    + " KEY " + to.toAttachKeyLiteral(secret));
+            db.rawExecSQL("PRAGMA " + MIGRATED_SCHEMA + ".cipher_page_size = " + to.getPageSize());
+            db.rawExecSQL("PRAGMA " + MIGRATED_SCHEMA + ".kdf_iter = " + to.getKdfIterations());
+            // Also reads what is still in the write-ahead log
+            db.rawExecSQL("SELECT sqlcipher_export('" + MIGRATED_SCHEMA + "')");
+            // Room's schema version isn't part of the export
+            db.rawExecSQL("PRAGMA " + MIGRATED_SCHEMA + ".user_version = " + db.getVersion());
+            db.rawExecSQL("DETACH DATABASE " + MIGRATED_SCHEMA);
+        } catch (RuntimeException e) {
+            deleteDatabaseFiles(migratedFile);
+            throw new IOException("Migrating the database to " + to + " failed", e);
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+            Arrays.fill(fromKey, (byte) 0);
+        }
+
+        if (!preferences.edit().putString(PREF_PENDING_CIPHER_CONFIG_PREFIX + databaseName, to.serialize()).commit()) {
+            deleteDatabaseFiles(migratedFile);
+            throw new IOException("Could not save the pending database config");
+        }
+        // Closing the last connection has checkpointed the old log, so the rename replaces all data
+        if (!migratedFile.renameTo(databaseFile)) {
+            deleteDatabaseFiles(migratedFile);
+            preferences.edit().remove(PREF_PENDING_CIPHER_CONFIG_PREFIX + databaseName).commit();
+            throw new IOException("Could not replace " + databaseFile + " with the migrated database");
+        }
+        preferences.edit()
+                .putString(PREF_CIPHER_CONFIG_PREFIX + databaseName, to.serialize())
+                .remove(PREF_PENDING_CIPHER_CONFIG_PREFIX + databaseName)
+                .commit();
+        deleteDatabaseSideFiles(databaseFile);
+        deleteDatabaseSideFiles(migratedFile);
+    }
+
+    private static File getMigratedFile(File databaseFile) {
+        return new File(databaseFile.getPath() + "-migrating");
+    }
+
+    private static void deleteDatabaseFiles(File databaseFile) {
+        if (databaseFile.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            databaseFile.delete();
+        }
+        deleteDatabaseSideFiles(databaseFile);
+    }
+
+    private static void deleteDatabaseSideFiles(File databaseFile) {
+        for (String suffix : new String[]{"-wal", "-shm", "-journal"}) {
+            File file = new File(databaseFile.getPath() + suffix);
+            if (file.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+}
@@ -1,37 +1,97 @@
 package de.cotech.hw.database.sample.db;
 
 import android.content.Context;
+import android.database.Cursor;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
 import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
 
 import com.commonsware.cwac.saferoom.SafeHelperFactory;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
 import de.cotech.hw.database.sample.db.dao.UserDao;
 import de.cotech.hw.database.sample.db.entity.User;
+import de.cotech.hw.database.sample.db.entity.UserFts;
 import de.cotech.hw.secrets.ByteSecret;
 
-@Database(entities = {User.class}, version = 1)
+@Database(entities = {User.class, UserFts.class}, version = 2)
 public abstract class EncryptedDatabase extends RoomDatabase {
 
-    private static EncryptedDatabase sInstance;
+    private static volatile EncryptedDatabase sInstance;
+
+    private CipherConfig cipherConfig;
+    private ReadConnectionPool readConnectionPool;
 
     @VisibleForTesting
     public static final String DATABASE_NAME = "encrypted-sample-db";
 
-    public static EncryptedDatabase decryptAndGetInstance(final Context context, ByteSecret secret) {
-        if (sInstance == null) {
-            synchronized (EncryptedDatabase.class) {
-                if (sInstance == null) {
-                    sInstance = buildDatabase(context.getApplicationContext(), secret);
-                }
+    public static final int DEFAULT_BULK_INSERT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_READ_CONNECTION_COUNT = 2;
+    // The secret is 32 random bytes, so it needs no key stretching
+    public static final CipherConfig DEFAULT_CIPHER_CONFIG = CipherConfig.RAW_KEY;
+
+    // Adds the name indices and the full-text index, which must match what Room creates for version 2
+    @VisibleForTesting
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_User_first_name_last_name` ON `User` (`first_name`, `last_name`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_User_last_name` ON `User` (`last_name`)");
+
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `user_fts` USING FTS4(`first_name` TEXT, `last_name` TEXT, content=`User`)");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_user_fts_BEFORE_UPDATE BEFORE UPDATE ON `User` "
+                    + "BEGIN DELETE FROM `user_fts` WHERE `docid`=OLD.`rowid`; END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_user_fts_BEFORE_DELETE BEFORE DELETE ON `User` "
+                    + "BEGIN DELETE FROM `user_fts` WHERE `docid`=OLD.`rowid`; END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_user_fts_AFTER_UPDATE AFTER UPDATE ON `User` "
+                    + "BEGIN INSERT INTO `user_fts`(`docid`, `first_name`, `last_name`) VALUES (NEW.`rowid`, NEW.`first_name`, NEW.`last_name`); END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_user_fts_AFTER_INSERT AFTER INSERT ON `User` "
+                    + "BEGIN INSERT INTO `user_fts`(`docid`, `first_name`, `last_name`) VALUES (NEW.`rowid`, NEW.`first_name`, NEW.`last_name`); END");
+            // index the users that already exist
+            db.execSQL("INSERT INTO `user_fts`(`user_fts`) VALUES ('rebuild')");
+        }
+    };
+
+    @WorkerThread
+    public static EncryptedDatabase decryptAndGetInstance(final Context context, ByteSecret secret) throws IOException {
+        return decryptAndGetInstance(context, secret, DEFAULT_READ_CONNECTION_COUNT, DEFAULT_CIPHER_CONFIG);
+    }
+
+    /**
+     * If the database file was written with another {@link CipherConfig}, e.g. by an earlier version
+     * that used the secret as passphrase, it is migrated to the given one first.
+     *
+     * @param readConnectionCount the number of connections that may read in parallel to Room
+     * @throws IOException if the migration failed, the old file is then left as it is
+     * @throws IllegalStateException if the database is already open with another config or
+     *                               number of read connections
+     */
+    @WorkerThread
+    public static EncryptedDatabase decryptAndGetInstance(final Context context, ByteSecret secret,
+            int readConnectionCount, CipherConfig cipherConfig) throws IOException {
+        synchronized (EncryptedDatabase.class) {
+            if (sInstance == null) {
+                sInstance = buildDatabase(context.getApplicationContext(), secret, readConnectionCount, cipherConfig);
+            } else if (!sInstance.cipherConfig.equals(cipherConfig)
+                    || sInstance.readConnectionPool.getSize() != readConnectionCount) {
+                throw new IllegalStateException("Database is already open with " + sInstance.cipherConfig
+                        + " and " + sInstance.readConnectionPool.getSize() + " read connections");
             }
+            return sInstance;
         }
-        return sInstance;
     }
 
     public static EncryptedDatabase getInstance() {
@@ -42,11 +102,39 @@ public abstract class EncryptedDatabase extends RoomDatabase {
         }
     }
 
-    private static EncryptedDatabase buildDatabase(final Context appContext, ByteSecret secret) {
-        SafeHelperFactory factory = new SafeHelperFactory(secret.getByteCopyAndClear());
+    /**
+     * Closes the database, so the next {@link #decryptAndGetInstance} opens it again.
+     */
+    @VisibleForTesting
+    public static void closeInstance() {
+        synchronized (EncryptedDatabase.class) {
+            if (sInstance != null) {
+                sInstance.close();
+                sInstance = null;
+            }
+        }
+    }
 
-        return Room.databaseBuilder(appContext, EncryptedDatabase.class, DATABASE_NAME)
+    private static EncryptedDatabase buildDatabase(final Context appContext, ByteSecret secret,
+            int readConnectionCount, CipherConfig cipherConfig) throws IOException {
+        byte[] key;
+        byte[] secretBytes = secret.getByteCopyAndClear();
+        try {
+            new CipherMigration(appContext, DATABASE_NAME).migrateIfNeeded(secretBytes, cipherConfig);
+            key = cipherConfig.toSqlCipherKey(secretBytes);
+        } finally {
+            Arrays.fill(secretBytes, (byte) 0);
+        }
+        SafeHelperFactory.Options options = SafeHelperFactory.Options.builder()
+                .setPostKeySql(cipherConfig.getPostKeySql())
+                .build();
+        SafeHelperFactory factory = new SafeHelperFactory(Arrays.copyOf(key, key.length), options);
+
+        EncryptedDatabase database = Room.databaseBuilder(appContext, EncryptedDatabase.class, DATABASE_NAME)
                 .openHelperFactory(factory)
+                .addMigrations(MIGRATION_1_2)
+                // lets the read connections run in parallel to Room's writes
+                .setJournalMode(JournalMode.WRITE_AHEAD_LOGGING)
                 .addCallback(new Callback() {
                     @Override
                     public void onCreate(@NonNull SupportSQLiteDatabase db) {
@@ -55,8 +143,156 @@ public abstract class EncryptedDatabase extends RoomDatabase {
                     }
                 })
                 .build();
+        database.cipherConfig = cipherConfig;
+        database.readConnectionPool = new ReadConnectionPool(appContext,
+                appContext.getDatabasePath(DATABASE_NAME), key, cipherConfig, readConnectionCount);
+        return database;
+    }
+
+    public ReadConnectionPool getReadConnectionPool() {
+        return readConnectionPool;
+    }
+
+    /**
+     * Like {@link UserDao#getPageAfter(int, int)}, but on one of the read connections, so several
+     * pages can be loaded at once, also while Room is writing.
+     */
+    @WorkerThread
+    public List<User> getUserPageAfter(int afterUid, int limit) throws InterruptedException {
+        // Make sure Room has created or migrated the schema before reading it directly
+        getOpenHelper().getWritableDatabase();
+        return readConnectionPool.read(db -> {
+            List<User> users = new ArrayList<>(limit);
+            Cursor cursor = db.rawQuery("SELECT uid, first_name, last_name FROM user WHERE uid > ? ORDER BY uid LIMIT ?",
+                    new Object[]{afterUid, limit});
+            try {
+                while (cursor.moveToNext()) {
+                    User user = new User();
+                    user.uid = cursor.getInt(0);
+                    user.firstName = cursor.getString(1);
+                    user.lastName = cursor.getString(2);
+                    users.add(user);
+                }
+            } finally {
+                cursor.close();
+            }
+            return users;
+        });
+    }
+
+    /**
+     * Like {@link UserDao#count()}, but on one of the read connections.
+     */
+    @WorkerThread
+    public int countUsers() throws InterruptedException {
+        getOpenHelper().getWritableDatabase();
+        return readConnectionPool.read(db -> {
+            Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM user", new Object[0]);
+            try {
+                return cursor.moveToNext() ? cursor.getInt(0) : 0;
+            } finally {
+                cursor.close();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (readConnectionPool != null) {
+            readConnectionPool.close();
+        }
     }
 
     public abstract UserDao userDao();
 
+    /**
+     * Thrown if a batch of a bulk insert failed. The failed batch was rolled back, the batches
+     * before it stay inserted.
+     */
+    public static class BulkInsertException extends RuntimeException {
+        private final int insertedCount;
+
+        BulkInsertException(int insertedCount, RuntimeException cause) {
+            super("Bulk insert failed after " + insertedCount + " users", cause);
+            this.insertedCount = insertedCount;
+        }
+
+        /**
+         * The number of users in the batches that were committed before the failed one.
+         */
+        public int getInsertedCount() {
+            return insertedCount;
+        }
+    }
+
+    /**
+     * Inserts many users with one transaction per batch, instead of one per user. Every commit
+     * encrypts the changed pages and syncs them to disk, so fewer and larger transactions are
+     * much faster. All rows are inserted with the same compiled statement. The database is always
+     * in write-ahead logging mode, so the read connections keep reading during the insert.
+     * <p>
+     * Users are pulled from the iterator only when the previous ones have been written, so an
+     * iterator that generates or reads them lazily never runs ahead of the database.
+     *
+     * @return the number of inserted users
+     * @throws BulkInsertException if a batch failed, e.g. because of a duplicate uid
+     */
+    @WorkerThread
+    public int bulkInsertUsers(Iterator<User> users, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+
+        SupportSQLiteDatabase db = getOpenHelper().getWritableDatabase();
+        int insertedCount = 0;
+        SupportSQLiteStatement statement =
+                db.compileStatement("INSERT INTO user (uid, first_name, last_name) VALUES (?, ?, ?)");
+        try {
+            while (users.hasNext()) {
+                beginTransaction();
+                try {
+                    int batchCount = 0;
+                    while (batchCount < batchSize && users.hasNext()) {
+                        bindUser(statement, users.next());
+                        statement.executeInsert();
+                        batchCount++;
+                    }
+                    setTransactionSuccessful();
+                    insertedCount += batchCount;
+                } finally {
+                    endTransaction();
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new BulkInsertException(insertedCount, e);
+        } finally {
+            closeQuietly(statement);
+        }
+        return insertedCount;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do, the statement is discarded anyway
+        }
+    }
+
+    private static void bindUser(SupportSQLiteStatement statement, User user) {
+        statement.clearBindings();
+        statement.bindLong(1, user.uid);
+        if (user.firstName == null) {
+            statement.bindNull(2);
+        } else {
+            statement.bindString(2, user.firstName);
+        }
+        if (user.lastName == null) {
+            statement.bindNull(3);
+        } else {
+            statement.bindString(3, user.lastName);
+        }
+    }
+
 }
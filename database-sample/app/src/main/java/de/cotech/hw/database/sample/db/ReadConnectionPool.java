@@ -0,0 +1,129 @@
+package de.cotech.hw.database.sample.db;
+
+import android.content.Context;
+
+import androidx.annotation.WorkerThread;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A pool of extra SQLCipher connections for reading, next to the one connection Room writes with.
+ * <p>
+ * SQLCipher keeps a single connection per database object, so all Room queries run one after
+ * another. With write-ahead logging, separate connections can read in parallel to each other and
+ * to a writer. Each connection is keyed with the same secret and {@link CipherConfig} as the Room
+ * database, and is only opened when it is first needed, since keying a connection takes a while.
+ */
+public class ReadConnectionPool {
+
+    public interface ReadOperation<T> {
+        T run(SQLiteDatabase db);
+    }
+
+    private final File databaseFile;
+    private final int size;
+    private final SQLiteDatabaseHook databaseHook;
+    // All guarded by the pool lock
+    private final Deque<SQLiteDatabase> idleConnections = new ArrayDeque<>();
+    private int openConnectionCount;
+    private boolean closed;
+    private byte[] key;
+
+    /**
+     * @param key the key as given to SQLCipher, see {@link CipherConfig#toSqlCipherKey(byte[])}.
+     *            The pool clears it when closed.
+     */
+    ReadConnectionPool(Context appContext, File databaseFile, byte[] key, CipherConfig cipherConfig, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+        SQLiteDatabase.loadLibs(appContext);
+        this.databaseFile = databaseFile;
+        this.key = key;
+        this.databaseHook = cipherConfig.getDatabaseHook();
+        this.size = size;
+    }
+
+    /**
+     * Runs the operation on an idle connection. If all connections are busy and the pool is full,
+     * this waits for one to become idle.
+     *
+     * @throws IllegalStateException if the pool is closed, also while waiting
+     */
+    @WorkerThread
+    public <T> T read(ReadOperation<T> operation) throws InterruptedException {
+        SQLiteDatabase db = acquire();
+        try {
+            return operation.run(db);
+        } finally {
+            release(db);
+        }
+    }
+
+    private synchronized SQLiteDatabase acquire() throws InterruptedException {
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("Pool is closed");
+            }
+            SQLiteDatabase db = idleConnections.poll();
+            if (db != null) {
+                return db;
+            }
+            if (openConnectionCount < size) {
+                db = openConnection();
+                openConnectionCount++;
+                return db;
+            }
+            // woken up by release() or close()
+            wait();
+        }
+    }
+
+    private synchronized void release(SQLiteDatabase db) {
+        if (closed) {
+            // close() left this one open, since it was in use
+            db.close();
+            return;
+        }
+        idleConnections.add(db);
+        notify();
+    }
+
+    // Must hold the pool lock
+    private SQLiteDatabase openConnection() {
+        // SQLCipher may clear the key it is given, so every connection gets its own copy
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(databaseFile.getPath(), Arrays.copyOf(key, key.length),
+                null, SQLiteDatabase.OPEN_READWRITE, databaseHook);
+        // Writes only go through Room
+        db.rawExecSQL("PRAGMA query_only = ON");
+        return db;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Closes the idle connections and forgets the key. Connections that are in use are closed when
+     * their operation is done. Threads waiting for a connection get an {@link IllegalStateException}.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (SQLiteDatabase db : idleConnections) {
+            db.close();
+        }
+        idleConnections.clear();
+        Arrays.fill(key, (byte) 0);
+        key = null;
+        notifyAll();
+    }
+}
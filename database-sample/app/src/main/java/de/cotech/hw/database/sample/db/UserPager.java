@@ -0,0 +1,59 @@
+package de.cotech.hw.database.sample.db;
+
+import androidx.annotation.WorkerThread;
+
+import java.util.List;
+
+import de.cotech.hw.database.sample.db.dao.UserDao;
+import de.cotech.hw.database.sample.db.entity.User;
+
+/**
+ * Walks through all users page by page, ordered by uid.
+ * <p>
+ * Each page is a separate keyset query that continues after the last uid of the previous page,
+ * so only one page of rows is decrypted and held in memory at a time.
+ */
+public class UserPager {
+
+    public interface PageLoader {
+        List<User> getPageAfter(int afterUid, int limit) throws InterruptedException;
+    }
+
+    public interface PageCallback {
+        /**
+         * @return false to stop paging
+         */
+        boolean onPage(List<User> page);
+    }
+
+    private final PageLoader pageLoader;
+    private final int pageSize;
+
+    public UserPager(UserDao userDao, int pageSize) {
+        this(userDao::getPageAfter, pageSize);
+    }
+
+    /**
+     * Loads the pages with the given loader, e.g. {@link EncryptedDatabase#getUserPageAfter(int, int)}
+     * to page on a read connection instead of Room's connection.
+     */
+    public UserPager(PageLoader pageLoader, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+        this.pageLoader = pageLoader;
+        this.pageSize = pageSize;
+    }
+
+    @WorkerThread
+    public void forEachPage(PageCallback callback) throws InterruptedException {
+        int lastUid = Integer.MIN_VALUE;
+        while (true) {
+            List<User> page = pageLoader.getPageAfter(lastUid, pageSize);
+            if (page.isEmpty() || !callback.onPage(page) || page.size() < pageSize) {
+                return;
+            }
+            lastUid = page.get(page.size() - 1).uid;
+        }
+    }
+}
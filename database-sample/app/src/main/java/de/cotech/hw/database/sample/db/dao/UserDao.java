@@ -1,5 +1,7 @@
 package de.cotech.hw.database.sample.db.dao;
 
+import android.database.Cursor;
+
 import androidx.room.Dao;
 import androidx.room.Delete;
 import androidx.room.Insert;
@@ -14,12 +16,39 @@ public interface UserDao {
     @Query("SELECT * FROM user")
     List<User> getAll();
 
+    // Keyset pagination: only the rows of one page are read and decrypted, at any offset
+    @Query("SELECT * FROM user WHERE uid > :afterUid ORDER BY uid LIMIT :limit")
+    List<User> getPageAfter(int afterUid, int limit);
+
+    // Rows are decrypted as the cursor moves through them, one CursorWindow at a time
+    @Query("SELECT * FROM user ORDER BY uid")
+    Cursor getAllCursor();
+
+    @Query("SELECT COUNT(*) FROM user")
+    int count();
+
+    @Query("SELECT MAX(uid) FROM user")
+    int getMaxUid();
+
     @Query("SELECT * FROM user WHERE uid IN (:userIds)")
     List<User> loadAllByIds(int[] userIds);
 
+    // Uses the (first_name, last_name) index
+    @Query("SELECT * FROM user WHERE first_name = :first AND " +
+            "last_name = :last LIMIT 1")
+    User findByName(String first, String last);
+
+    // LIKE patterns can't use the index, this decrypts and scans the whole table
     @Query("SELECT * FROM user WHERE first_name LIKE :first AND " +
             "last_name LIKE :last LIMIT 1")
-    User findByName(String first, String last);
+    User findByNamePattern(String first, String last);
+
+    /**
+     * @param matchQuery e.g. from {@link de.cotech.hw.database.sample.db.entity.UserFts#prefixQuery(String)}
+     */
+    @Query("SELECT user.* FROM user JOIN user_fts ON user.uid = user_fts.rowid " +
+            "WHERE user_fts MATCH :matchQuery ORDER BY user.uid LIMIT :limit")
+    List<User> searchByName(String matchQuery, int limit);
 
     @Insert
     void insertAll(User... users);
@@ -3,9 +3,11 @@ package de.cotech.hw.database.sample.db.entity;
 import androidx.annotation.NonNull;
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
-@Entity
+// The (first_name, last_name) index also serves lookups by first_name alone
+@Entity(indices = {@Index({"first_name", "last_name"}), @Index("last_name")})
 public class User {
     @PrimaryKey
     public int uid;
@@ -0,0 +1,40 @@
+package de.cotech.hw.database.sample.db.entity;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Fts4;
+
+/**
+ * Full-text index over the names of {@link User}, for prefix search.
+ * <p>
+ * The names are not stored twice: the index uses the user table as its content, and Room keeps
+ * it in sync with triggers on that table.
+ */
+@Fts4(contentEntity = User.class)
+@Entity(tableName = "user_fts")
+public class UserFts {
+    @ColumnInfo(name = "first_name")
+    public String firstName;
+
+    @ColumnInfo(name = "last_name")
+    public String lastName;
+
+    /**
+     * Builds a MATCH query that finds names starting with each of the given words. Double quotes
+     * are removed from the words, since FTS4 has no way to escape them within a phrase.
+     */
+    public static String prefixQuery(String words) {
+        StringBuilder query = new StringBuilder();
+        for (String word : words.replace("\"", "").trim().split("\\s+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            // quoting keeps FTS operators in the input from being interpreted
+            query.append('"').append(word).append("\"*");
+        }
+        return query.toString();
+    }
+}
@@ -78,7 +78,11 @@ public class DecryptActivity extends AppCompatActivity implements SecurityKeyCal
                 }
 
                 // decrypt database
-                EncryptedDatabase.decryptAndGetInstance(getApplicationContext(), secret);
+                try {
+                    EncryptedDatabase.decryptAndGetInstance(getApplicationContext(), secret);
+                } catch (IOException e) {
+                    return "failed to open database: " + e.getMessage();
+                }
                 return "successfully decrypted database!";
             }
 
@@ -2,10 +2,12 @@ package de.cotech.hw.database.sample.ui;
 
 
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.widget.Toast;
 
 import net.sqlcipher.database.SQLiteConstraintException;
 
+import java.util.Iterator;
 import java.util.List;
 
 import de.cotech.hw.database.sample.R;
@@ -14,6 +16,9 @@ import de.cotech.hw.database.sample.db.entity.User;
 
 
 public class MainActivity extends BaseActivity {
+    // Only this many users are shown, however many are stored
+    private static final int QUERY_PREVIEW_SIZE = 10;
+    private static final int BULK_INSERT_COUNT = 10000;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -22,6 +27,7 @@ public class MainActivity extends BaseActivity {
 
         findViewById(R.id.buttonInsert).setOnClickListener(v -> insert());
         findViewById(R.id.buttonQuery).setOnClickListener(v -> query());
+        findViewById(R.id.buttonBulkInsert).setOnClickListener(v -> bulkInsert());
     }
 
     private void insert() {
@@ -41,12 +47,69 @@ public class MainActivity extends BaseActivity {
         }).start();
     }
 
+    private void bulkInsert() {
+        // TODO: use your favorite way of threading in your app
+        new Thread(() -> {
+            EncryptedDatabase database = EncryptedDatabase.getInstance();
+            int firstUid = database.userDao().getMaxUid() + 1;
+
+            // users are created one by one while they are inserted, not all up front
+            Iterator<User> users = new Iterator<User>() {
+                private int uid = firstUid;
+
+                @Override
+                public boolean hasNext() {
+                    return uid < firstUid + BULK_INSERT_COUNT;
+                }
+
+                @Override
+                public User next() {
+                    User user = new User();
+                    user.uid = uid++;
+                    user.firstName = "First " + user.uid;
+                    user.lastName = "Last " + user.uid;
+                    return user;
+                }
+            };
+
+            long startTime = SystemClock.elapsedRealtime();
+            int insertedCount;
+            try {
+                insertedCount = database.bulkInsertUsers(users, EncryptedDatabase.DEFAULT_BULK_INSERT_BATCH_SIZE);
+            } catch (EncryptedDatabase.BulkInsertException e) {
+                if (!(e.getCause() instanceof SQLiteConstraintException)) {
+                    throw e;
+                }
+                // e.g. a user inserted at the same time took one of the uids, the failed batch was rolled back
+                MainActivity.this.runOnUiThread(() -> Toast.makeText(MainActivity.this,
+                        "user already inserted, bulk insert stopped after " + e.getInsertedCount() + " users",
+                        Toast.LENGTH_LONG).show());
+                return;
+            }
+            long duration = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+
+            MainActivity.this.runOnUiThread(() -> Toast.makeText(MainActivity.this,
+                    insertedCount + " users inserted in " + duration + " ms (" + (insertedCount * 1000L / duration) + " rows/s)",
+                    Toast.LENGTH_LONG).show());
+        }).start();
+    }
+
     private void query() {
         // TODO: use your favorite way of threading in your app
         new Thread(() -> {
-            List<User> users = EncryptedDatabase.getInstance().userDao().getAll();
+            EncryptedDatabase database = EncryptedDatabase.getInstance();
+            int userCount;
+            List<User> users;
+            try {
+                // read on read connections, so this doesn't wait for inserts running at the same time.
+                // SQLite counts on its own without handing out rows, and only the first page of users is loaded
+                userCount = database.countUsers();
+                users = database.getUserPageAfter(Integer.MIN_VALUE, QUERY_PREVIEW_SIZE);
+            } catch (InterruptedException e) {
+                return;
+            }
 
-            MainActivity.this.runOnUiThread(() -> Toast.makeText(MainActivity.this, "users: " + users.toString(), Toast.LENGTH_LONG).show());
+            MainActivity.this.runOnUiThread(() -> Toast.makeText(MainActivity.this, userCount + " users: " + users.toString(), Toast.LENGTH_LONG).show());
         }).start();
     }
 }
@@ -100,7 +100,11 @@ public class SetupActivity extends AppCompatActivity implements SecurityKeyCallb
 
                 saveEncryptedSecret(pairedSecurityKey, encryptedSecret);
 
-                EncryptedDatabase.decryptAndGetInstance(getApplicationContext(), secret);
+                try {
+                    EncryptedDatabase.decryptAndGetInstance(getApplicationContext(), secret);
+                } catch (IOException e) {
+                    return "failed to open database: " + e.getMessage();
+                }
                 return "successfully paired key, encrypted database with random secret that is encrypted to the security key";
             }
 
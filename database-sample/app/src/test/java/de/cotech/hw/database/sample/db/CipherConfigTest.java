@@ -0,0 +1,88 @@
+package de.cotech.hw.database.sample.db;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CipherConfigTest {
+
+    private static byte[] createSecret() {
+        byte[] secret = new byte[32];
+        for (int i = 0; i < secret.length; i++) {
+            secret[i] = (byte) ((i % 16) * 0x11);
+        }
+        return secret;
+    }
+
+    @Test
+    public void toSqlCipherKey_rawKey_isHexBlobLiteral() {
+        byte[] key = CipherConfig.RAW_KEY.toSqlCipherKey(createSecret());
+
+        assertEquals("x'00112233445566778899AABBCCDDEEFF0011223344556677"
+                + "8899AABBCCDDEEFF'", new String(key, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void toSqlCipherKey_passphrase_isCopyOfSecret() {
+        byte[] secret = createSecret();
+
+        byte[] key = CipherConfig.PASSPHRASE.toSqlCipherKey(secret);
+
+        assertArrayEquals(secret, key);
+        // The caller clears the key, which must not clear the secret
+        assertNotSame(secret, key);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void toSqlCipherKey_rawKeyWithWrongLength_throws() {
+        CipherConfig.RAW_KEY.toSqlCipherKey(Arrays.copyOf(createSecret(), 16));
+    }
+
+    @Test
+    public void toAttachKeyLiteral_rawKey_isStringLiteralOfRawKey() {
+        // The secret is hex encoded once, a string literal doubles the quotes of x'...'
+        assertEquals("'x''00112233445566778899AABBCCDDEEFF0011223344556677"
+                + "8899AABBCCDDEEFF'''", CipherConfig.RAW_KEY.toAttachKeyLiteral(createSecret()));
+    }
+
+    @Test
+    public void toAttachKeyLiteral_passphrase_isBlobLiteralOfSecret() {
+        assertEquals("X'00112233445566778899AABBCCDDEEFF0011223344556677"
+                + "8899AABBCCDDEEFF'", CipherConfig.PASSPHRASE.toAttachKeyLiteral(createSecret()));
+    }
+
+    @Test
+    public void deserialize_serialized_returnsEqualConfig() {
+        CipherConfig config = CipherConfig.RAW_KEY.withPageSize(16384).withMemorySecurity(false);
+
+        assertEquals(config, CipherConfig.deserialize(config.serialize()));
+        assertEquals(CipherConfig.PASSPHRASE, CipherConfig.deserialize(CipherConfig.PASSPHRASE.serialize()));
+    }
+
+    @Test
+    public void deserialize_invalid_returnsNull() {
+        assertNull(CipherConfig.deserialize(null));
+        assertNull(CipherConfig.deserialize(""));
+        assertNull(CipherConfig.deserialize("raw;4096;256000"));
+        assertNull(CipherConfig.deserialize("raw;many;256000;true"));
+        // Not a power of two
+        assertNull(CipherConfig.deserialize("raw;5000;256000;true"));
+    }
+
+    @Test
+    public void isFileCompatibleWith_ignoresMemorySecurityAndUnusedKdfIterations() {
+        assertTrue(CipherConfig.RAW_KEY.isFileCompatibleWith(CipherConfig.RAW_KEY.withMemorySecurity(false)));
+        assertTrue(CipherConfig.RAW_KEY.isFileCompatibleWith(CipherConfig.RAW_KEY.withKdfIterations(1)));
+        assertFalse(CipherConfig.PASSPHRASE.isFileCompatibleWith(CipherConfig.PASSPHRASE.withKdfIterations(1)));
+        assertFalse(CipherConfig.RAW_KEY.isFileCompatibleWith(CipherConfig.RAW_KEY.withPageSize(8192)));
+        assertFalse(CipherConfig.RAW_KEY.isFileCompatibleWith(CipherConfig.PASSPHRASE));
+    }
+}
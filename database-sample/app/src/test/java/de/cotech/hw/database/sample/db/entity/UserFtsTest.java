@@ -0,0 +1,34 @@
+package de.cotech.hw.database.sample.db.entity;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class UserFtsTest {
+
+    @Test
+    public void prefixQuery_singleWord_matchesPrefix() {
+        assertEquals("\"jo\"*", UserFts.prefixQuery("jo"));
+    }
+
+    @Test
+    public void prefixQuery_severalWords_matchesEachPrefix() {
+        assertEquals("\"jo\"* \"sm\"*", UserFts.prefixQuery("  jo \t sm "));
+    }
+
+    @Test
+    public void prefixQuery_blank_isEmpty() {
+        assertEquals("", UserFts.prefixQuery(""));
+        assertEquals("", UserFts.prefixQuery("   "));
+    }
+
+    @Test
+    public void prefixQuery_operators_areQuoted() {
+        assertEquals("\"OR\"* \"c*\"* \"-d\"*", UserFts.prefixQuery("OR c* -d"));
+    }
+
+    @Test
+    public void prefixQuery_quotes_areRemoved() {
+        assertEquals("\"ab\"* \"c\"*", UserFts.prefixQuery("a\"b \"\" \"c\""));
+    }
+}
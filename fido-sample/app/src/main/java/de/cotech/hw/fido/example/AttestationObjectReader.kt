@@ -0,0 +1,294 @@
+package de.cotech.hw.fido.example
+
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+
+/**
+ * A minimal streaming reader for WebAuthn attestation objects.
+ *
+ * Unlike the full webauthn4j parser, this does not build an object tree. It walks the CBOR
+ * structure directly on a ByteBuffer and only pulls out the attestation format and the
+ * authenticator data fields that are needed to register a credential: rpIdHash, flags, sign count,
+ * credential id and COSE key. The rpIdHash, COSE key and attested credential data are returned as
+ * views into the given buffer, not copies.
+ *
+ * The reader is strict: duplicate map keys, unknown keys, trailing bytes and authenticator
+ * extensions are all left to the full parser.
+ */
+object AttestationObjectReader {
+    class AttestedCredential(
+            val format: String?,
+            // "none" attestation has an empty statement, anything else needs the full parser to verify
+            val hasEmptyAttestationStatement: Boolean,
+            val rpIdHash: ByteBuffer,
+            val flags: Int,
+            val signCount: Long,
+            val credentialId: ByteArray,
+            val coseKey: ByteBuffer,
+            // kty, alg and crv of the COSE key, null if the key doesn't have them
+            val coseKeyType: Long?,
+            val coseAlgorithm: Long?,
+            val coseCurve: Long?,
+            // aaguid, credential id and COSE key, as they are encoded in the authenticator data
+            val attestedCredentialData: ByteBuffer
+    ) {
+        val isUserPresent: Boolean
+            get() = flags and FLAG_USER_PRESENT != 0
+
+        val isUserVerified: Boolean
+            get() = flags and FLAG_USER_VERIFIED != 0
+    }
+
+    private class AuthenticatorData(
+            val rpIdHash: ByteBuffer,
+            val flags: Int,
+            val signCount: Long,
+            val credentialId: ByteArray,
+            val coseKey: ByteBuffer,
+            val coseKeyParameters: CoseKeyParameters,
+            val attestedCredentialData: ByteBuffer
+    )
+
+    private class CoseKeyParameters(val keyType: Long?, val algorithm: Long?, val curve: Long?)
+
+    private class UnsupportedCborException : Exception()
+
+    private const val MAJOR_TYPE_UNSIGNED_INT = 0
+    private const val MAJOR_TYPE_NEGATIVE_INT = 1
+    private const val MAJOR_TYPE_BYTE_STRING = 2
+    private const val MAJOR_TYPE_TEXT_STRING = 3
+    private const val MAJOR_TYPE_ARRAY = 4
+    private const val MAJOR_TYPE_MAP = 5
+    private const val MAJOR_TYPE_TAG = 6
+
+    private const val RP_ID_HASH_LENGTH = 32
+    private const val AAGUID_LENGTH = 16
+    private const val FLAG_USER_PRESENT = 0x01
+    private const val FLAG_USER_VERIFIED = 0x04
+    private const val FLAG_ATTESTED_CREDENTIAL_DATA = 0x40
+    private const val FLAG_EXTENSION_DATA = 0x80
+
+    private const val COSE_KEY_TYPE = 1L
+    private const val COSE_KEY_ALGORITHM = 3L
+    private const val COSE_KEY_CURVE = -1L
+
+    // Real attestation statements and COSE keys nest a few levels at most. The limit keeps a
+    // malicious object from overflowing the stack while skipping over it.
+    private const val MAX_NESTING_DEPTH = 16
+
+    private const val INITIAL_BYTE_EMPTY_MAP = 0xa0
+
+    private val KEY_FORMAT = "fmt".toByteArray(Charsets.US_ASCII)
+    private val KEY_ATTESTATION_STATEMENT = "attStmt".toByteArray(Charsets.US_ASCII)
+    private val KEY_AUTH_DATA = "authData".toByteArray(Charsets.US_ASCII)
+
+    // Returns null if the attestation object is malformed, or uses CBOR features this reader does
+    // not handle (like indefinite lengths). Callers should fall back to the full parser in that case.
+    // The buffer must hold exactly the attestation object.
+    fun read(attestationObject: ByteBuffer): AttestedCredential? {
+        return try {
+            readAttestationObject(attestationObject.duplicate())
+        } catch (e: BufferUnderflowException) {
+            null
+        } catch (e: IllegalArgumentException) {
+            null
+        } catch (e: UnsupportedCborException) {
+            null
+        }
+    }
+
+    private fun readAttestationObject(buffer: ByteBuffer): AttestedCredential? {
+        var format: String? = null
+        var hasAttestationStatement = false
+        var hasEmptyAttestationStatement = false
+        var authenticatorData: AuthenticatorData? = null
+
+        var entryCount = readHead(buffer, MAJOR_TYPE_MAP)
+        while (entryCount-- > 0) {
+            val keyLength = checkLength(buffer, readHead(buffer, MAJOR_TYPE_TEXT_STRING))
+            when {
+                nextBytesEqual(buffer, keyLength, KEY_FORMAT) -> {
+                    if (format != null) {
+                        return null
+                    }
+                    val formatLength = checkLength(buffer, readHead(buffer, MAJOR_TYPE_TEXT_STRING))
+                    val formatBytes = ByteArray(formatLength)
+                    buffer.get(formatBytes)
+                    format = String(formatBytes, Charsets.UTF_8)
+                }
+                nextBytesEqual(buffer, keyLength, KEY_ATTESTATION_STATEMENT) -> {
+                    if (hasAttestationStatement) {
+                        return null
+                    }
+                    hasAttestationStatement = true
+                    hasEmptyAttestationStatement = buffer.hasRemaining()
+                            && buffer.get(buffer.position()).toInt() and 0xff == INITIAL_BYTE_EMPTY_MAP
+                    skipItem(buffer, 0)
+                }
+                nextBytesEqual(buffer, keyLength, KEY_AUTH_DATA) -> {
+                    if (authenticatorData != null) {
+                        return null
+                    }
+                    val authDataLength = checkLength(buffer, readHead(buffer, MAJOR_TYPE_BYTE_STRING))
+                    authenticatorData = readAuthenticatorData(slice(buffer, authDataLength)) ?: return null
+                }
+                else -> return null
+            }
+        }
+        if (buffer.hasRemaining() || !hasAttestationStatement) {
+            return null
+        }
+        return authenticatorData?.let {
+            AttestedCredential(format, hasEmptyAttestationStatement, it.rpIdHash, it.flags, it.signCount,
+                    it.credentialId, it.coseKey, it.coseKeyParameters.keyType, it.coseKeyParameters.algorithm,
+                    it.coseKeyParameters.curve, it.attestedCredentialData)
+        }
+    }
+
+    private fun readAuthenticatorData(authData: ByteBuffer): AuthenticatorData? {
+        val rpIdHash = slice(authData, RP_ID_HASH_LENGTH)
+        val flags = authData.get().toInt() and 0xff
+        val signCount = authData.int.toLong() and 0xffffffffL
+        if (flags and FLAG_ATTESTED_CREDENTIAL_DATA == 0 || flags and FLAG_EXTENSION_DATA != 0) {
+            return null
+        }
+        val attestedCredentialDataStart = authData.position()
+        authData.position(authData.position() + AAGUID_LENGTH)
+        val credentialId = ByteArray(authData.short.toInt() and 0xffff)
+        authData.get(credentialId)
+
+        // The COSE key is a CBOR map, skip over it once to find out its length
+        val coseKeyStart = authData.position()
+        skipItem(authData, 0)
+        val coseKeyLength = authData.position() - coseKeyStart
+        authData.position(coseKeyStart)
+        val coseKey = slice(authData, coseKeyLength)
+        // Without extensions, the COSE key ends the authenticator data
+        if (authData.hasRemaining()) {
+            return null
+        }
+        val coseKeyParameters = readCoseKeyParameters(coseKey.duplicate()) ?: return null
+
+        val attestedCredentialData = authData.duplicate()
+        attestedCredentialData.position(attestedCredentialDataStart)
+        attestedCredentialData.limit(authData.position())
+
+        return AuthenticatorData(rpIdHash, flags, signCount, credentialId, coseKey, coseKeyParameters,
+                attestedCredentialData.slice())
+    }
+
+    // Reads kty, alg and crv, and skips the other parameters. Returns null if a label is repeated.
+    private fun readCoseKeyParameters(coseKey: ByteBuffer): CoseKeyParameters? {
+        var keyType: Long? = null
+        var algorithm: Long? = null
+        var curve: Long? = null
+        val labels = HashSet<Long>()
+
+        var entryCount = readHead(coseKey, MAJOR_TYPE_MAP)
+        while (entryCount-- > 0) {
+            val label = readInt(coseKey)
+            if (!labels.add(label)) {
+                return null
+            }
+            when (label) {
+                COSE_KEY_TYPE -> keyType = readInt(coseKey)
+                COSE_KEY_ALGORITHM -> algorithm = readInt(coseKey)
+                // -1 is the curve for EC2 and OKP keys, but the modulus for RSA keys
+                COSE_KEY_CURVE -> if (isNextInt(coseKey)) curve = readInt(coseKey) else skipItem(coseKey, 0)
+                else -> skipItem(coseKey, 0)
+            }
+        }
+        return CoseKeyParameters(keyType, algorithm, curve)
+    }
+
+    // Returns a view of the next length bytes, and advances the buffer past them
+    private fun slice(buffer: ByteBuffer, length: Int): ByteBuffer {
+        if (length > buffer.remaining()) {
+            throw BufferUnderflowException()
+        }
+        val slice = buffer.slice()
+        slice.limit(length)
+        buffer.position(buffer.position() + length)
+        return slice
+    }
+
+    private fun nextBytesEqual(buffer: ByteBuffer, length: Int, expected: ByteArray): Boolean {
+        if (length != expected.size || length > buffer.remaining()) {
+            return false
+        }
+        val position = buffer.position()
+        for (i in expected.indices) {
+            if (buffer.get(position + i) != expected[i]) {
+                return false
+            }
+        }
+        buffer.position(position + length)
+        return true
+    }
+
+    // Reads the head of a data item of the expected major type, and returns its argument
+    private fun readHead(buffer: ByteBuffer, expectedMajorType: Int): Long {
+        val initialByte = buffer.get().toInt() and 0xff
+        if (initialByte ushr 5 != expectedMajorType) {
+            throw UnsupportedCborException()
+        }
+        return readArgument(buffer, initialByte and 0x1f)
+    }
+
+    // Reads an integer of either sign. Arguments beyond the range of a Long are not supported.
+    private fun readInt(buffer: ByteBuffer): Long {
+        val initialByte = buffer.get().toInt() and 0xff
+        val argument = readArgument(buffer, initialByte and 0x1f)
+        if (argument < 0) {
+            throw UnsupportedCborException()
+        }
+        return when (initialByte ushr 5) {
+            MAJOR_TYPE_UNSIGNED_INT -> argument
+            MAJOR_TYPE_NEGATIVE_INT -> -1 - argument
+            else -> throw UnsupportedCborException()
+        }
+    }
+
+    private fun isNextInt(buffer: ByteBuffer): Boolean {
+        val majorType = (buffer.get(buffer.position()).toInt() and 0xff) ushr 5
+        return majorType == MAJOR_TYPE_UNSIGNED_INT || majorType == MAJOR_TYPE_NEGATIVE_INT
+    }
+
+    private fun readArgument(buffer: ByteBuffer, additionalInfo: Int): Long {
+        return when (additionalInfo) {
+            in 0..23 -> additionalInfo.toLong()
+            24 -> (buffer.get().toInt() and 0xff).toLong()
+            25 -> (buffer.short.toInt() and 0xffff).toLong()
+            26 -> buffer.int.toLong() and 0xffffffffL
+            27 -> buffer.long
+            // Indefinite lengths and reserved values
+            else -> throw UnsupportedCborException()
+        }
+    }
+
+    // Every string byte or contained item takes at least one byte, so longer lengths can't be valid
+    private fun checkLength(buffer: ByteBuffer, length: Long): Int {
+        if (length < 0 || length > buffer.remaining()) {
+            throw BufferUnderflowException()
+        }
+        return length.toInt()
+    }
+
+    private fun skipItem(buffer: ByteBuffer, depth: Int) {
+        if (depth > MAX_NESTING_DEPTH) {
+            throw UnsupportedCborException()
+        }
+        val initialByte = buffer.get().toInt() and 0xff
+        val majorType = initialByte ushr 5
+        val argument = readArgument(buffer, initialByte and 0x1f)
+        when (majorType) {
+            MAJOR_TYPE_UNSIGNED_INT, MAJOR_TYPE_NEGATIVE_INT -> Unit
+            MAJOR_TYPE_BYTE_STRING, MAJOR_TYPE_TEXT_STRING -> buffer.position(buffer.position() + checkLength(buffer, argument))
+            MAJOR_TYPE_ARRAY -> repeat(checkLength(buffer, argument)) { skipItem(buffer, depth + 1) }
+            MAJOR_TYPE_MAP -> repeat(2 * checkLength(buffer, argument)) { skipItem(buffer, depth + 1) }
+            MAJOR_TYPE_TAG -> skipItem(buffer, depth + 1)
+            // Simple values and floats carry no content beyond their argument
+            else -> Unit
+        }
+    }
+}
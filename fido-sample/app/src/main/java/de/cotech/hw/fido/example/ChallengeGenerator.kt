@@ -0,0 +1,55 @@
+package de.cotech.hw.fido.example
+
+import de.cotech.hw.fido.WebsafeBase64
+import java.security.SecureRandom
+
+/**
+ * Generates random challenges for the fake FIDO servers.
+ *
+ * Creating and seeding a SecureRandom is expensive, so each thread keeps its own instance and
+ * draws random bytes from it in batches. Issuing a challenge then only copies a slice of the
+ * current batch.
+ */
+object ChallengeGenerator {
+    const val CHALLENGE_LENGTH = 16
+    private const val BATCH_SIZE = CHALLENGE_LENGTH * 64
+
+    private val randomBuffers = object : ThreadLocal<RandomBuffer>() {
+        override fun initialValue() = RandomBuffer()
+    }
+
+    // Returns a newly generated 16 bytes random challenge
+    fun generateChallenge(): ByteArray {
+        return generateRandomBytes(CHALLENGE_LENGTH)
+    }
+
+    // Returns a newly generated 16 bytes random challenge, in url-safe base64 encoding
+    fun generateWebsafeChallenge(): String {
+        return WebsafeBase64.encodeToString(generateChallenge())
+    }
+
+    fun generateRandomBytes(length: Int): ByteArray {
+        return randomBuffers.get()!!.nextBytes(length)
+    }
+
+    private class RandomBuffer {
+        private val secureRandom = SecureRandom()
+        private val buffer = ByteArray(BATCH_SIZE)
+        private var position = BATCH_SIZE
+
+        fun nextBytes(length: Int): ByteArray {
+            if (length > BATCH_SIZE) {
+                return ByteArray(length).also { secureRandom.nextBytes(it) }
+            }
+            if (position + length > BATCH_SIZE) {
+                secureRandom.nextBytes(buffer)
+                position = 0
+            }
+            val result = buffer.copyOfRange(position, position + length)
+            // Don't keep handed out random bytes around in memory
+            buffer.fill(0, position, position + length)
+            position += length
+            return result
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package de.cotech.hw.fido.example
+
+import android.os.SystemClock
+import java.lang.ref.WeakReference
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Remembers issued challenges until they are either consumed or expire.
+ *
+ * Lookups are a single hash access, independent of the number of outstanding challenges, and a
+ * challenge can be consumed at most once.
+ *
+ * Challenges that are never answered expire on a timing wheel: each challenge is also filed under
+ * the tick it expires in, and a sweep drops the ticks that have passed as a whole, so it only
+ * touches challenges that actually expired. An index schedules its own sweep while it has
+ * outstanding challenges, so idle indexes cost nothing, and clients that never finish a ceremony
+ * cannot grow memory forever.
+ */
+class ChallengeIndex<K : Any>(
+        private val ttlMs: Long = DEFAULT_TTL_MS,
+        // Milliseconds since some fixed point, which must never go backwards
+        private val clock: () -> Long = SystemClock::elapsedRealtime
+) {
+    private class IssuedChallenge<K>(val challenge: K, val expiry: Long)
+
+    private val issuedChallenges = ConcurrentHashMap<K, IssuedChallenge<K>>()
+    private val challengesByExpiryTick = ConcurrentHashMap<Long, MutableSet<K>>()
+    private val isSweepScheduled = AtomicBoolean()
+
+    fun issue(challenge: K) {
+        val expiry = clock() + ttlMs
+        issuedChallenges[challenge] = IssuedChallenge(challenge, expiry)
+        challengesByExpiryTick.getOrPut(expiry / TICK_MS) {
+            Collections.newSetFromMap(ConcurrentHashMap<K, Boolean>())
+        }.add(challenge)
+        scheduleSweep()
+    }
+
+    // Returns true if the challenge was issued and has not expired. Either way, it can't be used again.
+    fun consume(challenge: K?): Boolean {
+        return consumeIssued(challenge) != null
+    }
+
+    // Like consume, but returns the challenge as it was issued instead of the one that was given.
+    fun consumeIssued(challenge: K?): K? {
+        if (challenge == null) {
+            return null
+        }
+        val issuedChallenge = issuedChallenges.remove(challenge) ?: return null
+        challengesByExpiryTick[issuedChallenge.expiry / TICK_MS]?.remove(challenge)
+        return if (clock() < issuedChallenge.expiry) issuedChallenge.challenge else null
+    }
+
+    fun sweepExpired() {
+        val now = clock()
+        // Every challenge in a tick before the current one has expired
+        val currentTick = now / TICK_MS
+        for (tick in challengesByExpiryTick.keys) {
+            if (tick >= currentTick) {
+                continue
+            }
+            val challenges = challengesByExpiryTick.remove(tick) ?: continue
+            for (challenge in challenges) {
+                // The challenge may have been issued again since, with a later expiry
+                val issuedChallenge = issuedChallenges[challenge] ?: continue
+                if (issuedChallenge.expiry <= now) {
+                    issuedChallenges.remove(challenge, issuedChallenge)
+                }
+            }
+        }
+    }
+
+    val size: Int
+        get() = issuedChallenges.size
+
+    // Schedules a sweep for when the earliest outstanding tick has passed, unless one is pending
+    private fun scheduleSweep() {
+        if (!isSweepScheduled.compareAndSet(false, true)) {
+            return
+        }
+        val nextTick = challengesByExpiryTick.keys.min() ?: ((clock() + ttlMs) / TICK_MS)
+        val delayMs = (nextTick + 1) * TICK_MS - clock()
+        sweeper.schedule(SweepTask(this), maxOf(delayMs, 0L), TimeUnit.MILLISECONDS)
+    }
+
+    private fun sweepAndReschedule() {
+        isSweepScheduled.set(false)
+        sweepExpired()
+        if (challengesByExpiryTick.isNotEmpty()) {
+            scheduleSweep()
+        }
+    }
+
+    // A pending sweep only weakly references its index, so the index is dropped together with its user.
+    private class SweepTask(index: ChallengeIndex<*>) : Runnable {
+        private val index = WeakReference(index)
+
+        override fun run() {
+            index.get()?.sweepAndReschedule()
+        }
+    }
+
+    companion object {
+        const val DEFAULT_TTL_MS = 2 * 60 * 1000L
+        // Challenges that expire within the same tick are swept together
+        private const val TICK_MS = 1000L
+
+        private val sweeper = Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, "ChallengeIndex-sweeper").apply { isDaemon = true }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package de.cotech.hw.fido.example
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * A credential id (or U2F key handle) that can be used as a hash map key. Byte arrays compare by
+ * identity, so we compare and hash by content instead.
+ */
+class CredentialId(credentialId: ByteArray) {
+    private val bytes = credentialId.copyOf()
+    private val hashCode = bytes.contentHashCode()
+
+    override fun equals(other: Any?): Boolean {
+        return other is CredentialId && bytes.contentEquals(other.bytes)
+    }
+
+    override fun hashCode() = hashCode
+}
+
+/**
+ * A global index from credential id to registered credential, across all users. This allows
+ * finding a credential in constant time, no matter how many credentials are registered, and
+ * without knowing the username first.
+ */
+class CredentialIndex<C : Any> {
+    private val credentialsById = ConcurrentHashMap<CredentialId, C>()
+
+    /**
+     * Registers the credential under its id, unless the id is taken by a credential that
+     * [isSameOwner] doesn't accept. Credential ids are chosen by the authenticator, so a second
+     * user registering the same id must be rejected instead of silently taking it over.
+     *
+     * Returns null if the credential is registered now, otherwise the credential holding the id.
+     */
+    fun claim(credentialId: ByteArray, credential: C, isSameOwner: (C) -> Boolean): C? {
+        val key = CredentialId(credentialId)
+        while (true) {
+            val current = credentialsById.putIfAbsent(key, credential) ?: return null
+            if (!isSameOwner(current)) {
+                return current
+            }
+            // The owner registers the same credential again, retry if it was replaced meanwhile
+            if (credentialsById.replace(key, current, credential)) {
+                return null
+            }
+        }
+    }
+
+    fun find(credentialId: ByteArray?): C? {
+        return credentialId?.let { credentialsById[CredentialId(it)] }
+    }
+
+    // Removes the credential only if the id still belongs to it, and returns whether it did
+    fun remove(credentialId: ByteArray, credential: C): Boolean {
+        return credentialsById.remove(CredentialId(credentialId), credential)
+    }
+}
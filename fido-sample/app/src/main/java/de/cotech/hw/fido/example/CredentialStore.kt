@@ -0,0 +1,34 @@
+package de.cotech.hw.fido.example
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * The "database" of registered users used by the fake FIDO servers. Implementations must be
+ * safe to call from many threads at once.
+ */
+interface CredentialStore<U> {
+    // Returns the user with this username, creating and remembering a new one if there is none yet.
+    fun getOrCreateUser(username: String): U
+
+    // Returns the user with this username, or null if nobody registered under this name.
+    fun findUser(username: String?): U?
+}
+
+/**
+ * A [CredentialStore] that keeps all users in memory. The backing ConcurrentHashMap stripes its
+ * locks over its hash bins, so concurrent flows for different users do not block each other.
+ */
+class InMemoryCredentialStore<U : Any>(private val createUser: (username: String) -> U) : CredentialStore<U> {
+    private val usersByUsername = ConcurrentHashMap<String, U>()
+
+    override fun getOrCreateUser(username: String): U {
+        usersByUsername[username]?.let { return it }
+        // Two threads may race to create the same user; putIfAbsent makes sure only one wins.
+        val registeredUser = createUser(username)
+        return usersByUsername.putIfAbsent(username, registeredUser) ?: registeredUser
+    }
+
+    override fun findUser(username: String?): U? {
+        return username?.let { usersByUsername[it] }
+    }
+}
@@ -0,0 +1,59 @@
+package de.cotech.hw.fido.example
+
+import java.io.Closeable
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * Verifies batches of FIDO responses that arrive together, by fanning the (ECDSA) signature
+ * checks out over a bounded fork-join pool.
+ *
+ * Each worker thread keeps its own verifier, created by [createVerifier], so its Signature and
+ * KeyFactory state is reused across items instead of being shared between threads. Results are
+ * returned in the same order as the given items.
+ *
+ * The worker threads stay alive until the batch verifier is closed.
+ */
+class FidoBatchVerifier<V : Any>(
+        parallelism: Int = Runtime.getRuntime().availableProcessors(),
+        createVerifier: () -> V
+) : Closeable {
+    /** The outcome for a single item of a batch: either a result, or the IOException it failed with. */
+    class BatchResult<R>(val result: R?, val error: IOException?) {
+        val isSuccessful: Boolean
+            get() = error == null
+    }
+
+    private val pool = ForkJoinPool(parallelism)
+
+    private val verifiers = object : ThreadLocal<V>() {
+        override fun initialValue() = createVerifier()
+    }
+
+    fun <T, R> verifyAll(items: List<T>, verify: (V, T) -> R): List<BatchResult<R>> {
+        val tasks = items.map { item ->
+            pool.submit(Callable {
+                try {
+                    BatchResult(verify(verifiers.get()!!, item), null)
+                } catch (e: IOException) {
+                    BatchResult<R>(null, e)
+                }
+            })
+        }
+        return tasks.map { task ->
+            try {
+                task.get()
+            } catch (e: ExecutionException) {
+                // Anything but an IOException is a programming error, rethrow it as is
+                throw e.cause ?: e
+            }
+        }
+    }
+
+    // Batches that were already submitted still complete, new ones are rejected
+    override fun close() {
+        pool.shutdown()
+    }
+}
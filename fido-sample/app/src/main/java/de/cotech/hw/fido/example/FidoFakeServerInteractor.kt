@@ -1,30 +1,54 @@
 package de.cotech.hw.fido.example
 
 import android.content.Context
+import android.os.SystemClock
+import androidx.annotation.VisibleForTesting
 import de.cotech.hw.fido.*
 import de.cotech.hw.fido.util.FidoAuthenticationVerifier
 import de.cotech.hw.fido.util.FidoRegistrationVerifier
 import de.cotech.hw.fido.util.VerifiedFidoAuthenticateResponse
 import de.cotech.hw.fido.util.VerifiedFidoRegisterResponse
-import de.cotech.hw.util.Arrays
+import org.json.JSONException
+import org.json.JSONObject
+import java.io.Closeable
 import java.io.IOException
-import java.security.SecureRandom
+import java.nio.ByteBuffer
+import java.security.PublicKey
 import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
 
 /**
  * A simple stand-in for a FIDO-authentication enabled web server, for demonstration purposes.
+ *
+ * The server takes over the registration log, and closes it when it is closed itself, together
+ * with the threads of the batch verifier.
  */
 // for demonstration purposes
-class FidoFakeServerInteractor(context: Context?) {
+class FidoFakeServerInteractor(context: Context?, private val registrationLog: RegistrationLog? = null) : Closeable {
     // The FIDO facet id, which identifiers this specific App.
     private val fidoFacetId: String
 
     // As a "database" of user logins, we simply remember a key handle and public key per registered username.
-    private val registeredFidoKeyHandleByUsername = HashMap<String, RegisteredUser?>()
+    private val registeredUsers: CredentialStore<RegisteredUser> = InMemoryCredentialStore { username ->
+        RegisteredUser { restoreRegisteredFidoKeys(username) }
+    }
+
+    // All registered FIDO Security Keys of all users, by key handle.
+    private val registeredFidoKeysByHandle = CredentialIndex<RegisteredFidoKey>()
 
-    private val fidoAuthVerifier = FidoAuthenticationVerifier()
+    // Authentications may be finished on several threads at once, each one gets its own verifier.
+    private val fidoAuthVerifiers = object : ThreadLocal<FidoAuthenticationVerifier>() {
+        override fun initialValue() = FidoAuthenticationVerifier()
+    }
     private val fidoRegisterVerifier = FidoRegistrationVerifier()
 
+    // Decoded public keys of recently used FIDO Security Keys, by key handle.
+    private val publicKeyCache = PublicKeyCache()
+
+    // Used to verify many authentication responses arriving together, see fidoAuthenticateFinishBatch.
+    private val batchVerifierLazy = lazy { FidoBatchVerifier { FidoAuthenticationVerifier() } }
+    private val batchVerifier by batchVerifierLazy
+
     // Registration
     fun fidoRegisterRequest(username: String): FidoRegisterRequest {
         val registeredUser = getRegisteredUser(username)
@@ -32,7 +56,7 @@ class FidoFakeServerInteractor(context: Context?) {
         val registerChallenge = generateChallenge()
         // Persist this challenge for the user, to check later on that the signed
         // challenge matches what we generated here.
-        registeredUser!!.addRegistrationChallenge(registerChallenge)
+        registeredUser.addRegistrationChallenge(registerChallenge)
         return FidoRegisterRequest.create(FIDO_APP_ID, fidoFacetId, registerChallenge)
     }
 
@@ -43,18 +67,39 @@ class FidoFakeServerInteractor(context: Context?) {
         // Perform checks, if anything fails throw an exception
         val verifiedResponse = checkRegistrationChallengeForUsername(registeredUser, registerResponse)
 
+        // Decoding the public key right away rejects malformed keys before they are saved, and
+        // keeps the decoded key ready for the first authentication.
+        val keyHandle = verifiedResponse.keyHandle
+        val publicKey = PublicKeyCache.decodeU2fPublicKey(verifiedResponse.userPublicKey)
+
         // If successful, save the public key and key handle, which identify a registered FIDO Security Key for this user.
-        registeredUser!!.addRegisteredFidoKey(verifiedResponse.userPublicKey, verifiedResponse.keyHandle)
+        // The key handle is chosen by the security key, so it is claimed atomically: a key that is
+        // already registered for another user must not be taken over.
+        val registeredFidoKey = RegisteredFidoKey(username, verifiedResponse.userPublicKey, keyHandle)
+        // Makes sure an owner from an earlier run of the App is in the index before claiming
+        findRegisteredFidoKey(keyHandle)
+        if (registeredFidoKeysByHandle.claim(keyHandle, registeredFidoKey) { it.username == username } != null) {
+            throw IOException("Key is already registered for another user!")
+        }
+        publicKeyCache.put(keyHandle, publicKey)
+        try {
+            registrationLog?.append(username, keyHandle, verifiedResponse.userPublicKey, 0)
+        } catch (e: IOException) {
+            registeredFidoKeysByHandle.remove(keyHandle, registeredFidoKey)
+            publicKeyCache.remove(keyHandle)
+            throw e
+        }
+        registeredUser.addRegisteredFidoKey(registeredFidoKey)
         return verifiedResponse
     }
 
     @Throws(IOException::class)
-    private fun checkRegistrationChallengeForUsername(registeredUser: RegisteredUser?, registerResponse: FidoRegisterResponse): VerifiedFidoRegisterResponse {
+    private fun checkRegistrationChallengeForUsername(registeredUser: RegisteredUser, registerResponse: FidoRegisterResponse): VerifiedFidoRegisterResponse {
         // Check that the signature in FidoRegisterResponse matches the client data as expected, and
         // that the signed challenge is one we generated for this user. We could also check the
         // attestation of the FIDO Security Key, to make sure it's from a trusted hardware vendor.
         val verifiedResponse = fidoRegisterVerifier.checkFidoRegisterResponse(FIDO_APP_ID, registerResponse)
-        if (!registeredUser!!.checkAndRemoveRegistrationChallenge(verifiedResponse.challenge)) {
+        if (!registeredUser.checkAndRemoveRegistrationChallenge(verifiedResponse.challenge)) {
             throw IOException("Incorrect or expired challenge!")
         }
         // TODO check response correctly!
@@ -64,7 +109,7 @@ class FidoFakeServerInteractor(context: Context?) {
     // Authentication
     fun fidoAuthenticateRequest(username: String?): FidoAuthenticateRequest {
         // Get key handle and public key struct, which identifies the FIDO Security Key that the user registered before.
-        val registeredUser = registeredFidoKeyHandleByUsername[username]
+        val registeredUser = findRegisteredUser(username)
         if (registeredUser == null || !registeredUser.hasRegisteredKeys()) {
             throw NoSuchElementException()
         }
@@ -80,79 +125,182 @@ class FidoFakeServerInteractor(context: Context?) {
 
     @Throws(IOException::class)
     fun fidoAuthenticateFinish(username: String?, authenticateResponse: FidoAuthenticateResponse): VerifiedFidoAuthenticateResponse {
+        return authenticateFinish(username, authenticateResponse, fidoAuthVerifiers.get()!!)
+    }
+
+    // Verifies many authentication responses in parallel. The results are in the same order as the
+    // responses, and a response that fails verification does not affect the others.
+    fun fidoAuthenticateFinishBatch(authenticateResponses: List<FidoAuthenticateResponse>): List<FidoBatchVerifier.BatchResult<VerifiedFidoAuthenticateResponse>> {
+        return batchVerifier.verifyAll(authenticateResponses) { verifier, authenticateResponse ->
+            authenticateFinish(null, authenticateResponse, verifier)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun authenticateFinish(username: String?, authenticateResponse: FidoAuthenticateResponse,
+                                   verifier: FidoAuthenticationVerifier): VerifiedFidoAuthenticateResponse {
         // Get key handle and public key struct, which identifies the FIDO Security Key that the user registered before.
-        val registeredUser = registeredFidoKeyHandleByUsername[username]
+        // The key handle alone is enough to find it, so the username is optional.
+        val registeredFidoKey = authenticateResponse.keyHandle?.let { findRegisteredFidoKey(it) }
+                ?: throw IOException("No such registered key!")
+        if (username != null && username != registeredFidoKey.username) {
+            throw IOException("Key is not registered for this user!")
+        }
+        val registeredUser = registeredUsers.findUser(registeredFidoKey.username)
                 ?: throw IOException("No such registered user!")
 
         // Perform checks, if anything fails throw an exception
-        return checkAuthenticationChallengeForUsername(registeredUser, authenticateResponse)
+        return checkAuthenticationChallengeForUsername(registeredUser, registeredFidoKey, authenticateResponse, verifier)
     }
 
     @Throws(IOException::class)
     private fun checkAuthenticationChallengeForUsername(user: RegisteredUser,
-                                                        authenticateResponse: FidoAuthenticateResponse): VerifiedFidoAuthenticateResponse {
-        val registeredFidoKey = user.findRegisteredFidoKeyByHandle(authenticateResponse.keyHandle)
+                                                        registeredFidoKey: RegisteredFidoKey,
+                                                        authenticateResponse: FidoAuthenticateResponse,
+                                                        verifier: FidoAuthenticationVerifier): VerifiedFidoAuthenticateResponse {
+        // The cache rejects a malformed key before the verifier sees it. The verifier only takes the
+        // encoded key, so it still decodes the key itself.
+        val keyHandle = registeredFidoKey.keyHandle ?: throw IOException("No key handle for this registered key!")
+        findRegisteredPublicKey(registeredFidoKey) ?: throw IOException("No public key for this registered key!")
 
         // Check here that the signature in FidoAuthenticateResponse matches the client data,
-        // and that the client data is what we expect (type, presence, and challenge).
-        val verifiedResponse = fidoAuthVerifier.checkFidoAuthResponse(FIDO_APP_ID, registeredFidoKey!!.userPublicKey, authenticateResponse)
+        // and that the client data is what we expect (type, facet, presence, and challenge).
+        val verifiedResponse = verifier.checkFidoAuthResponse(FIDO_APP_ID, registeredFidoKey.userPublicKey, authenticateResponse)
+        checkFacetId(authenticateResponse)
         if (!user.checkAndRemoveAuthenticationChallenge(verifiedResponse.challenge)) {
             throw IOException("Incorrect or expired challenge!")
         }
         if (!verifiedResponse.checkUserPresence()) {
             throw IOException("User presence flag not set!")
         }
-        // TODO check response correctly!
+
+        // Remember the new signature counter, to detect cloned security keys next time. Keys that
+        // don't count send zero every time. The log is written under the same lock, so it never
+        // goes back to an older counter either.
+        val signCount = readSignCount(authenticateResponse)
+        synchronized(registeredFidoKey) {
+            if ((signCount != 0L || registeredFidoKey.signCount != 0L) && signCount <= registeredFidoKey.signCount) {
+                throw IOException("Signature counter did not increase, the key may be cloned!")
+            }
+            registeredFidoKey.signCount = signCount
+            registrationLog?.updateSignCount(keyHandle, signCount)
+        }
         return verifiedResponse
     }
 
+    // The client data names the facet that asked for the signature, which must be this App.
+    @Throws(IOException::class)
+    private fun checkFacetId(authenticateResponse: FidoAuthenticateResponse) {
+        val origin = try {
+            val clientData = WebsafeBase64.decode(authenticateResponse.clientData)
+            JSONObject(String(clientData, Charsets.UTF_8)).optString(CLIENT_DATA_ORIGIN, null)
+        } catch (e: IllegalArgumentException) {
+            throw IOException("Invalid client data!", e)
+        } catch (e: JSONException) {
+            throw IOException("Invalid client data!", e)
+        }
+        if (origin != fidoFacetId) {
+            throw IOException("Response is for a different facet!")
+        }
+    }
+
+    // The signed data starts with the user presence (1 byte) and the signature counter (4 bytes,
+    // unsigned). The verifier has checked the signature over it at this point.
+    @Throws(IOException::class)
+    private fun readSignCount(authenticateResponse: FidoAuthenticateResponse): Long {
+        val signatureData = authenticateResponse.signatureData
+        if (signatureData.size < SIGN_COUNT_OFFSET + 4) {
+            throw IOException("Signature data too short!")
+        }
+        return ByteBuffer.wrap(signatureData, SIGN_COUNT_OFFSET, 4).int.toLong() and 0xffffffffL
+    }
+
+    // Returns the decoded public key of a registered FIDO Security Key, or null if the key handle is unknown.
+    @Throws(IOException::class)
+    fun findRegisteredPublicKey(keyHandle: ByteArray): PublicKey? {
+        return findRegisteredFidoKey(keyHandle)?.let { findRegisteredPublicKey(it) }
+    }
+
+    @Throws(IOException::class)
+    private fun findRegisteredPublicKey(registeredFidoKey: RegisteredFidoKey): PublicKey? {
+        val keyHandle = registeredFidoKey.keyHandle ?: return null
+        val userPublicKey = registeredFidoKey.userPublicKey ?: return null
+        return publicKeyCache.getOrDecode(keyHandle, userPublicKey)
+    }
+
     // Helpers
     private fun generateChallenge(): String {
         // Returns a newly generated 16 bytes random challenge, in url-safe base64 encoding
-        val secureRandom = SecureRandom()
-        val challengeBytes = ByteArray(16)
-        secureRandom.nextBytes(challengeBytes)
-        return WebsafeBase64.encodeToString(challengeBytes)
+        return ChallengeGenerator.generateWebsafeChallenge()
     }
 
-    private fun getRegisteredUser(username: String): RegisteredUser? {
-        if (registeredFidoKeyHandleByUsername.containsKey(username)) {
-            return registeredFidoKeyHandleByUsername[username]
+    private fun getRegisteredUser(username: String): RegisteredUser {
+        return registeredUsers.getOrCreateUser(username)
+    }
+
+    // Users from earlier runs of the App are only in the registration log, until they are first needed.
+    private fun findRegisteredUser(username: String?): RegisteredUser? {
+        username ?: return null
+        registeredUsers.findUser(username)?.let { return it }
+        return if (registrationLog?.findEntries(username)?.isNotEmpty() == true) getRegisteredUser(username) else null
+    }
+
+    // Keys from earlier runs of the App are restored together with the other keys of their user.
+    private fun findRegisteredFidoKey(keyHandle: ByteArray): RegisteredFidoKey? {
+        registeredFidoKeysByHandle.find(keyHandle)?.let { return it }
+        val entry = registrationLog?.find(keyHandle) ?: return null
+        getRegisteredUser(entry.username).restoreRegisteredFidoKeys()
+        return registeredFidoKeysByHandle.find(keyHandle)
+    }
+
+    private fun restoreRegisteredFidoKeys(username: String): List<RegisteredFidoKey> {
+        val entries = registrationLog?.findEntries(username) ?: return emptyList()
+        return entries.mapNotNull { entry ->
+            // A key that was registered again in this run is already in the index, and newer
+            val registeredFidoKey = RegisteredFidoKey(username, entry.data, entry.credentialId, entry.signCount)
+            registeredFidoKey.takeIf { registeredFidoKeysByHandle.claim(entry.credentialId, it) { false } == null }
         }
-        val registeredUser = RegisteredUser()
-        registeredFidoKeyHandleByUsername[username] = registeredUser
-        return registeredUser
     }
 
     /** A registered user is identified by their public key and key handle.  */
-    private class RegisteredUser {
-        val registeredFidoKeys: MutableList<RegisteredFidoKey> = ArrayList()
-        val issuedAuthenticationChallenges: MutableList<String> = ArrayList()
-        val issuedRegistrationChallenges: MutableList<String> = ArrayList()
-        fun addRegisteredFidoKey(userPublicKey: ByteArray?, keyHandle: ByteArray?) {
-            registeredFidoKeys.add(RegisteredFidoKey(userPublicKey, keyHandle))
+    @VisibleForTesting
+    internal class RegisteredUser(
+            clock: () -> Long = SystemClock::elapsedRealtime,
+            restore: () -> List<RegisteredFidoKey>
+    ) {
+        // Registered keys are read on every authentication but rarely written, a good fit for copy-on-write.
+        // Only the user that wins creation in the CredentialStore is ever restored.
+        val registeredFidoKeys: MutableList<RegisteredFidoKey> by lazy { CopyOnWriteArrayList(restore()) }
+        val issuedAuthenticationChallenges = ChallengeIndex<String>(clock = clock)
+        val issuedRegistrationChallenges = ChallengeIndex<String>(clock = clock)
+        fun addRegisteredFidoKey(registeredFidoKey: RegisteredFidoKey) {
+            registeredFidoKeys.add(registeredFidoKey)
         }
 
         fun addAuthenticationChallenge(challenge: String) {
-            issuedAuthenticationChallenges.add(challenge)
+            issuedAuthenticationChallenges.issue(challenge)
         }
 
         fun checkAndRemoveAuthenticationChallenge(challenge: String?): Boolean {
-            return issuedAuthenticationChallenges.remove(challenge)
+            return issuedAuthenticationChallenges.consume(challenge)
         }
 
         fun addRegistrationChallenge(challenge: String) {
-            issuedRegistrationChallenges.add(challenge)
+            issuedRegistrationChallenges.issue(challenge)
         }
 
         fun checkAndRemoveRegistrationChallenge(challenge: String?): Boolean {
-            return issuedRegistrationChallenges.remove(challenge)
+            return issuedRegistrationChallenges.consume(challenge)
         }
 
         fun hasRegisteredKeys(): Boolean {
             return !registeredFidoKeys.isEmpty()
         }
 
+        fun restoreRegisteredFidoKeys() {
+            registeredFidoKeys
+        }
+
         val keyHandles: List<ByteArray?>
             get() {
                 val result = ArrayList<ByteArray?>()
@@ -161,22 +309,26 @@ class FidoFakeServerInteractor(context: Context?) {
                 }
                 return result
             }
+    }
 
-        fun findRegisteredFidoKeyByHandle(keyHandle: ByteArray?): RegisteredFidoKey? {
-            for (registeredFidoKey in registeredFidoKeys) {
-                if (Arrays.areEqual(keyHandle, registeredFidoKey.keyHandle)) {
-                    return registeredFidoKey
-                }
-            }
-            return null
+    override fun close() {
+        if (batchVerifierLazy.isInitialized()) {
+            batchVerifier.close()
         }
+        registrationLog?.close()
     }
 
-    private class RegisteredFidoKey(val userPublicKey: ByteArray?, val keyHandle: ByteArray?)
+    @VisibleForTesting
+    internal class RegisteredFidoKey(val username: String, val userPublicKey: ByteArray?, val keyHandle: ByteArray?, signCount: Long = 0) {
+        @Volatile
+        var signCount = signCount
+    }
 
     companion object {
         // A FIDO AppID that identifies our "application" as a whole. See https://developers.yubico.com/U2F/App_ID.html
         private const val FIDO_APP_ID = "https://fido-login.example.com/app-id.json"
+        private const val CLIENT_DATA_ORIGIN = "origin"
+        private const val SIGN_COUNT_OFFSET = 1
     }
 
     init {
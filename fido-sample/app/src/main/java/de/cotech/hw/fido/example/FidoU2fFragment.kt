@@ -12,16 +12,24 @@ import android.widget.TextView
 import android.widget.Toast
 import androidx.fragment.app.Fragment
 import de.cotech.hw.fido.FidoAuthenticateRequest
+import de.cotech.hw.fido.FidoRegisterRequest
 import de.cotech.hw.fido.ui.FidoDialogFragment
 import de.cotech.hw.fido.util.VerifiedFidoAuthenticateResponse
 import de.cotech.hw.fido.util.VerifiedFidoRegisterResponse
 import kotlinx.android.synthetic.main.fragment_fido_u2f.*
+import java.io.File
 import java.io.IOException
 import java.util.*
 
 class FidoU2fFragment : Fragment() {
     // A simple interface to a (fake) FIDO server backend. See FidoFakeServerInteractor for details.
-    private val fidoFakeServerInteractor by lazy { FidoFakeServerInteractor(requireContext()) }
+    // Opening the registration log reads from disk, so the server is created on first use, which
+    // is always in the background.
+    private val fidoFakeServerInteractorLazy = lazy {
+        val registrationLog = RegistrationLog.open(File(requireContext().filesDir, REGISTRATION_LOG_FILENAME))
+        FidoFakeServerInteractor(requireContext(), registrationLog)
+    }
+    private val fidoFakeServerInteractor by fidoFakeServerInteractorLazy
 
     override fun onCreateView(inflater: LayoutInflater, container: ViewGroup?, savedInstanceState: Bundle?): View? {
         val view = inflater.inflate(R.layout.fragment_fido_u2f, container, false)
@@ -35,37 +43,78 @@ class FidoU2fFragment : Fragment() {
         return view
     }
 
-    private fun showFidoRegisterDialog() {
-        // Make a registration request to the server. In a real application, this would perform
-        // an HTTP request. The server sends us a challenge (and some other data), that we proceed
-        // to sign with our FIDO Security Key.
-        val registerRequest = fidoFakeServerInteractor.fidoRegisterRequest(USERNAME)
-
-        // This opens a UI fragment, which takes care of the user interaction as well as all FIDO
-        // internal operations for us, and triggers a callback to #onRegisterResponse(FidoRegisterResponse).
-        val fidoDialogFragment = FidoDialogFragment.newInstance(registerRequest)
-        fidoDialogFragment.setFidoRegisterCallback(onFidoRegisterCallback)
-        fidoDialogFragment.show(requireFragmentManager())
+    override fun onDestroy() {
+        super.onDestroy()
+        // Requests that are still running fail with an IOException once the server is closed
+        if (fidoFakeServerInteractorLazy.isInitialized()) {
+            fidoFakeServerInteractor.close()
+        }
     }
 
+    @SuppressLint("StaticFieldLeak")
+    private fun showFidoRegisterDialog() {
+        // Make a registration request to the server in the background. In a real application, this
+        // would perform an HTTP request. The server sends us a challenge (and some other data), that
+        // we proceed to sign with our FIDO Security Key.
+        object : AsyncTask<Void?, Void?, FidoRegisterRequest?>() {
+            override fun doInBackground(dummy: Array<Void?>): FidoRegisterRequest? {
+                return try {
+                    fidoFakeServerInteractor.fidoRegisterRequest(USERNAME)
+                } catch (e: IOException) {
+                    Log.e(FidoExampleApplication.TAG, "IOException", e)
+                    null
+                }
+            }
+
+            override fun onPostExecute(registerRequest: FidoRegisterRequest?) {
+                if (registerRequest == null) {
+                    Toast.makeText(requireContext(), "Register operation failed!", Toast.LENGTH_LONG).show()
+                    return
+                }
+
+                // This opens a UI fragment, which takes care of the user interaction as well as all FIDO
+                // internal operations for us, and triggers a callback to #onRegisterResponse(FidoRegisterResponse).
+                val fidoDialogFragment = FidoDialogFragment.newInstance(registerRequest)
+                fidoDialogFragment.setFidoRegisterCallback(onFidoRegisterCallback)
+                fidoDialogFragment.show(requireFragmentManager())
+            }
+        }.execute()
+    }
 
+    @SuppressLint("StaticFieldLeak")
     private fun showFidoAuthenticateDialog() {
-        // Make an authentication request to the server. In a real application, this would perform
-        // an HTTP request. The server will send us a challenge based on the FIDO key we registered
-        // before (see above), asking us to prove we still have the same key.
-
-        val authenticateRequest: FidoAuthenticateRequest = try {
-            fidoFakeServerInteractor.fidoAuthenticateRequest(USERNAME)
-        } catch (e: NoSuchElementException) {
-            Toast.makeText(requireContext(), "No FIDO key registered - use register operation first!", Toast.LENGTH_LONG).show()
-            return
-        }
+        // Make an authentication request to the server in the background. In a real application, this
+        // would perform an HTTP request. The server will send us a challenge based on the FIDO key we
+        // registered before (see above), asking us to prove we still have the same key.
+        object : AsyncTask<Void?, Void?, FidoAuthenticateRequest?>() {
+            private var isNoKeyRegistered = false
+
+            override fun doInBackground(dummy: Array<Void?>): FidoAuthenticateRequest? {
+                return try {
+                    fidoFakeServerInteractor.fidoAuthenticateRequest(USERNAME)
+                } catch (e: NoSuchElementException) {
+                    isNoKeyRegistered = true
+                    null
+                } catch (e: IOException) {
+                    Log.e(FidoExampleApplication.TAG, "IOException", e)
+                    null
+                }
+            }
 
-        // This opens a UI fragment, which takes care of the user interaction as well as all FIDO internal
-        // operations for us, and triggers a callback to #onAuthenticateResponse(FidoAuthenticateResponse).
-        val fidoDialogFragment = FidoDialogFragment.newInstance(authenticateRequest)
-        fidoDialogFragment.setFidoAuthenticateCallback(onFidoAuthenticateCallback)
-        fidoDialogFragment.show(requireFragmentManager())
+            override fun onPostExecute(authenticateRequest: FidoAuthenticateRequest?) {
+                if (authenticateRequest == null) {
+                    val message = if (isNoKeyRegistered) "No FIDO key registered - use register operation first!" else "Authentication operation failed!"
+                    Toast.makeText(requireContext(), message, Toast.LENGTH_LONG).show()
+                    return
+                }
+
+                // This opens a UI fragment, which takes care of the user interaction as well as all FIDO internal
+                // operations for us, and triggers a callback to #onAuthenticateResponse(FidoAuthenticateResponse).
+                val fidoDialogFragment = FidoDialogFragment.newInstance(authenticateRequest)
+                fidoDialogFragment.setFidoAuthenticateCallback(onFidoAuthenticateCallback)
+                fidoDialogFragment.show(requireFragmentManager())
+            }
+        }.execute()
     }
 
     @SuppressLint("StaticFieldLeak")
@@ -131,5 +180,6 @@ class FidoU2fFragment : Fragment() {
     companion object {
         fun newInstance() = FidoU2fFragment()
         private const val USERNAME = "testuser"
+        private const val REGISTRATION_LOG_FILENAME = "fido_u2f_registrations.log"
     }
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+package de.cotech.hw.fido.example
+
+import java.io.IOException
+import java.security.GeneralSecurityException
+import java.security.KeyFactory
+import java.security.PublicKey
+import java.security.spec.X509EncodedKeySpec
+
+/**
+ * A bounded cache of decoded public keys of registered U2F keys, by key handle. When the cache
+ * is full, the least recently used key is evicted.
+ */
+class PublicKeyCache(private val maxSize: Int = DEFAULT_MAX_SIZE) {
+    private val publicKeysByHandle = object : LinkedHashMap<CredentialId, PublicKey>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<CredentialId, PublicKey>?): Boolean {
+            return size > maxSize
+        }
+    }
+
+    // Counted under the lock, and read under it too
+    var hitCount = 0L
+        @Synchronized get
+        private set
+    var missCount = 0L
+        @Synchronized get
+        private set
+
+    @Synchronized
+    fun put(keyHandle: ByteArray, publicKey: PublicKey) {
+        publicKeysByHandle[CredentialId(keyHandle)] = publicKey
+    }
+
+    // Returns the decoded public key for this key handle, decoding and caching it on a miss.
+    @Throws(IOException::class)
+    fun getOrDecode(keyHandle: ByteArray, userPublicKey: ByteArray): PublicKey {
+        synchronized(this) {
+            publicKeysByHandle[CredentialId(keyHandle)]?.let {
+                hitCount++
+                return it
+            }
+            missCount++
+        }
+        // Decode outside of the lock, a concurrent miss for the same key just decodes twice
+        val publicKey = decodeU2fPublicKey(userPublicKey)
+        put(keyHandle, publicKey)
+        return publicKey
+    }
+
+    @Synchronized
+    fun remove(keyHandle: ByteArray) {
+        publicKeysByHandle.remove(CredentialId(keyHandle))
+    }
+
+    companion object {
+        const val DEFAULT_MAX_SIZE = 1024
+
+        // DER header of a SubjectPublicKeyInfo for a NIST P-256 key, followed by the raw EC point
+        private val P256_SUBJECT_PUBLIC_KEY_INFO_PREFIX = byteArrayOf(
+                0x30, 0x59, 0x30, 0x13, 0x06, 0x07, 0x2a, 0x86.toByte(), 0x48, 0xce.toByte(), 0x3d, 0x02, 0x01,
+                0x06, 0x08, 0x2a, 0x86.toByte(), 0x48, 0xce.toByte(), 0x3d, 0x03, 0x01, 0x07, 0x03, 0x42, 0x00
+        )
+        private const val U2F_PUBLIC_KEY_LENGTH = 65
+
+        // U2F keys are uncompressed P-256 points: 0x04 | x (32 bytes) | y (32 bytes)
+        @Throws(IOException::class)
+        fun decodeU2fPublicKey(userPublicKey: ByteArray): PublicKey {
+            if (userPublicKey.size != U2F_PUBLIC_KEY_LENGTH || userPublicKey[0] != 0x04.toByte()) {
+                throw IOException("Invalid U2F public key!")
+            }
+            try {
+                val keySpec = X509EncodedKeySpec(P256_SUBJECT_PUBLIC_KEY_INFO_PREFIX + userPublicKey)
+                return KeyFactory.getInstance("EC").generatePublic(keySpec)
+            } catch (e: GeneralSecurityException) {
+                throw IOException("Invalid U2F public key!", e)
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package de.cotech.hw.fido.example
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.security.SecureRandom
+
+/**
+ * An append-only, memory-mapped log of registered credentials, so the fake FIDO servers survive
+ * a restart of the app.
+ *
+ * The file starts with a magic number and a random log id, followed by records laid out as
+ *
+ *     length (int) | flags (byte) | signCount (long) | username | credentialId | data
+ *
+ * where the variable-length fields are prefixed with their length as an int. The record length
+ * is written last, so a record that was only partially written is ignored on the next start.
+ * The sign count and the removed flag are updated in place, everything else is never rewritten.
+ *
+ * Records are found by credential id and by username through two [RegistrationLogIndex] files
+ * next to the log, which are updated with every write. Opening the log only reads the records
+ * that were written after the indexes were last updated, which are usually none, so the time to
+ * open doesn't grow with the number of credentials. Records are only read when they are looked up.
+ *
+ * Opening reads from disk, so it must not happen on the main thread. Every [open] must be paired
+ * with a [close], the file is closed when the last owner closes it.
+ */
+class RegistrationLog private constructor(private val file: File) : Closeable {
+    class Entry(val username: String, val credentialId: ByteArray, val data: ByteArray, val signCount: Long)
+
+    private val randomAccessFile = RandomAccessFile(file, "rw")
+    private val channel = randomAccessFile.channel
+    private var buffer: MappedByteBuffer
+    private var writePosition = FILE_HEADER_SIZE
+
+    private val credentialIdIndex: RegistrationLogIndex
+    private val usernameIndex: RegistrationLogIndex
+
+    // Owners that opened the log and did not close it yet, guarded by the companion object
+    private var openCount = 0
+    private var isClosed = false
+
+    init {
+        val isNewFile = channel.size() == 0L
+        // Checked before mapping, which would grow the file
+        if (!isNewFile && (channel.size() < FILE_HEADER_SIZE || randomAccessFile.readInt() != MAGIC)) {
+            randomAccessFile.close()
+            throw IOException("$file is not a registration log")
+        }
+        val capacity = maxOf(channel.size(), INITIAL_CAPACITY.toLong())
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity)
+        if (isNewFile) {
+            buffer.putLong(LOG_ID_OFFSET, SecureRandom().nextLong())
+            buffer.putInt(MAGIC_OFFSET, MAGIC)
+        }
+        val logId = buffer.getLong(LOG_ID_OFFSET)
+        credentialIdIndex = RegistrationLogIndex.open(File(file.path + ".ids"), logId)
+        usernameIndex = RegistrationLogIndex.open(File(file.path + ".users"), logId)
+        indexNewRecords()
+    }
+
+    // Indexes the records after the indexed part of the log. A new or replaced index has nothing
+    // indexed yet, and is built from all records once.
+    private fun indexNewRecords() {
+        var offset = maxOf(FILE_HEADER_SIZE, minOf(credentialIdIndex.indexedLength, usernameIndex.indexedLength))
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            val recordLength = buffer.getInt(offset)
+            if (recordLength < HEADER_SIZE || offset + recordLength > buffer.capacity()) {
+                break
+            }
+            if (!isRemoved(offset)) {
+                indexRecord(offset)
+            }
+            offset += recordLength
+        }
+        writePosition = offset
+        credentialIdIndex.indexedLength = writePosition
+        usernameIndex.indexedLength = writePosition
+    }
+
+    // Returns the credential with this id, or null if there is none.
+    @Synchronized
+    fun find(credentialId: ByteArray): Entry? {
+        checkOpen()
+        val offset = findRecord(credentialId)
+        return if (offset != RegistrationLogIndex.NOT_FOUND) readEntry(offset) else null
+    }
+
+    // Returns all credentials of this user, in the order they were registered.
+    @Synchronized
+    fun findEntries(username: String): List<Entry> {
+        checkOpen()
+        val usernameBytes = username.toByteArray(Charsets.UTF_8)
+        val offsets = ArrayList<Int>()
+        usernameIndex.forEach(usernameBytes.contentHashCode()) { offset ->
+            if (!isRemoved(offset) && fieldEquals(offset + HEADER_SIZE, usernameBytes)) {
+                offsets.add(offset)
+            }
+        }
+        return offsets.sorted().map { readEntry(it) }
+    }
+
+    @Synchronized
+    fun append(username: String, credentialId: ByteArray, data: ByteArray, signCount: Long) {
+        checkOpen()
+        val usernameBytes = username.toByteArray(Charsets.UTF_8)
+        val recordLength = HEADER_SIZE + 3 * INT_SIZE + usernameBytes.size + credentialId.size + data.size
+        ensureCapacity(writePosition + recordLength)
+
+        val offset = writePosition
+        buffer.put(offset + FLAGS_OFFSET, 0)
+        buffer.putLong(offset + SIGN_COUNT_OFFSET, signCount)
+        var fieldOffset = writeField(offset + HEADER_SIZE, usernameBytes)
+        fieldOffset = writeField(fieldOffset, credentialId)
+        writeField(fieldOffset, data)
+        // Writing the length last marks the record as complete
+        buffer.putInt(offset, recordLength)
+        writePosition += recordLength
+
+        indexRecord(offset)
+        credentialIdIndex.indexedLength = writePosition
+        usernameIndex.indexedLength = writePosition
+    }
+
+    @Synchronized
+    fun updateSignCount(credentialId: ByteArray, signCount: Long) {
+        checkOpen()
+        val offset = findRecord(credentialId)
+        if (offset != RegistrationLogIndex.NOT_FOUND) {
+            buffer.putLong(offset + SIGN_COUNT_OFFSET, signCount)
+        }
+    }
+
+    @Synchronized
+    fun remove(credentialId: ByteArray) {
+        checkOpen()
+        val offset = findRecord(credentialId)
+        if (offset != RegistrationLogIndex.NOT_FOUND) {
+            removeRecord(offset)
+        }
+    }
+
+    override fun close() {
+        synchronized(RegistrationLog) {
+            if (openCount == 0 || --openCount > 0) {
+                return
+            }
+            openLogs.remove(file.canonicalPath)
+        }
+        synchronized(this) {
+            isClosed = true
+            buffer.force()
+            credentialIdIndex.force()
+            usernameIndex.force()
+            channel.close()
+            randomAccessFile.close()
+        }
+    }
+
+    private fun checkOpen() {
+        if (isClosed) {
+            throw IOException("Registration log is closed!")
+        }
+    }
+
+    // A credential that is registered again replaces its old record
+    private fun indexRecord(offset: Int) {
+        val credentialIdOffset = credentialIdOffset(offset)
+        val credentialIdHash = fieldHashCode(credentialIdOffset)
+        val oldOffset = credentialIdIndex.find(credentialIdHash) {
+            it != offset && !isRemoved(it) && fieldsEqual(credentialIdOffset(it), credentialIdOffset)
+        }
+        if (oldOffset != RegistrationLogIndex.NOT_FOUND) {
+            removeRecord(oldOffset)
+        }
+        credentialIdIndex.add(credentialIdHash, offset)
+        usernameIndex.add(fieldHashCode(offset + HEADER_SIZE), offset)
+    }
+
+    private fun findRecord(credentialId: ByteArray): Int {
+        return credentialIdIndex.find(credentialId.contentHashCode()) {
+            !isRemoved(it) && fieldEquals(credentialIdOffset(it), credentialId)
+        }
+    }
+
+    private fun removeRecord(offset: Int) {
+        val flags = buffer.get(offset + FLAGS_OFFSET).toInt() or FLAG_REMOVED
+        buffer.put(offset + FLAGS_OFFSET, flags.toByte())
+        credentialIdIndex.remove(fieldHashCode(credentialIdOffset(offset)), offset)
+        usernameIndex.remove(fieldHashCode(offset + HEADER_SIZE), offset)
+    }
+
+    private fun isRemoved(offset: Int): Boolean {
+        return buffer.get(offset + FLAGS_OFFSET).toInt() and FLAG_REMOVED != 0
+    }
+
+    private fun credentialIdOffset(offset: Int): Int {
+        val usernameOffset = offset + HEADER_SIZE
+        return usernameOffset + INT_SIZE + buffer.getInt(usernameOffset)
+    }
+
+    // Same as contentHashCode() of the field's bytes, without copying them
+    private fun fieldHashCode(offset: Int): Int {
+        var hashCode = 1
+        for (i in offset + INT_SIZE until offset + INT_SIZE + buffer.getInt(offset)) {
+            hashCode = 31 * hashCode + buffer.get(i)
+        }
+        return hashCode
+    }
+
+    private fun fieldEquals(offset: Int, expected: ByteArray): Boolean {
+        if (buffer.getInt(offset) != expected.size) {
+            return false
+        }
+        for (i in expected.indices) {
+            if (buffer.get(offset + INT_SIZE + i) != expected[i]) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun fieldsEqual(offset: Int, otherOffset: Int): Boolean {
+        val length = buffer.getInt(offset)
+        if (buffer.getInt(otherOffset) != length) {
+            return false
+        }
+        for (i in INT_SIZE until INT_SIZE + length) {
+            if (buffer.get(offset + i) != buffer.get(otherOffset + i)) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun ensureCapacity(requiredCapacity: Int) {
+        if (requiredCapacity <= buffer.capacity()) {
+            return
+        }
+        var newCapacity = buffer.capacity().toLong()
+        while (newCapacity < requiredCapacity) {
+            newCapacity *= 2
+        }
+        if (newCapacity > Int.MAX_VALUE) {
+            throw IOException("Registration log is full!")
+        }
+        buffer.force()
+        // Mapping beyond the end of the file grows the file, with zeros
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity)
+    }
+
+    private fun readEntry(offset: Int): Entry {
+        val username = String(readField(offset + HEADER_SIZE), Charsets.UTF_8)
+        val credentialIdOffset = credentialIdOffset(offset)
+        val credentialId = readField(credentialIdOffset)
+        val dataOffset = credentialIdOffset + INT_SIZE + credentialId.size
+        return Entry(username, credentialId, readField(dataOffset), buffer.getLong(offset + SIGN_COUNT_OFFSET))
+    }
+
+    private fun readField(offset: Int): ByteArray {
+        val field = ByteArray(buffer.getInt(offset))
+        val view = buffer.duplicate()
+        view.position(offset + INT_SIZE)
+        view.get(field)
+        return field
+    }
+
+    // Returns the offset right after the written field
+    private fun writeField(offset: Int, field: ByteArray): Int {
+        buffer.putInt(offset, field.size)
+        val view = buffer.duplicate()
+        view.position(offset + INT_SIZE)
+        view.put(field)
+        return offset + INT_SIZE + field.size
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 64 * 1024
+        private const val MAGIC = 0x52474c47 // "RGLG"
+        private const val MAGIC_OFFSET = 0
+        private const val LOG_ID_OFFSET = 4
+        private const val FILE_HEADER_SIZE = 12
+        private const val INT_SIZE = 4
+        private const val FLAGS_OFFSET = 4
+        private const val SIGN_COUNT_OFFSET = 5
+        private const val HEADER_SIZE = 13
+        private const val FLAG_REMOVED = 1
+
+        private val openLogs = HashMap<String, RegistrationLog>()
+
+        // Each file must only be mapped once per process, so its indexes stay consistent. Owners
+        // that open the same file share the log.
+        @Synchronized
+        @Throws(IOException::class)
+        fun open(file: File): RegistrationLog {
+            val log = openLogs.getOrPut(file.canonicalPath) { RegistrationLog(file) }
+            log.openCount++
+            return log
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package de.cotech.hw.fido.example
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * A persistent hash table from one field of the records in a [RegistrationLog] to the offsets of
+ * those records, so the log doesn't have to be scanned on start.
+ *
+ * The table is a memory-mapped file of slots with linear probing. Each slot holds the hash of the
+ * key and the record offset, the keys themselves stay in the log: the caller checks candidates with
+ * a matching hash against the record. A key may have several records, e.g. the credentials of a
+ * username.
+ *
+ * The header remembers the id of the log the table belongs to, and up to which position of the log
+ * all records are in the table. Records after that position were written but not indexed before
+ * the process died, and are indexed again on the next start.
+ */
+internal class RegistrationLogIndex private constructor(private val file: File, private var buffer: MappedByteBuffer) {
+    private val slotCount: Int
+        get() = buffer.getInt(SLOT_COUNT_OFFSET)
+
+    val logId: Long
+        get() = buffer.getLong(LOG_ID_OFFSET)
+
+    var indexedLength: Int
+        get() = buffer.getInt(INDEXED_LENGTH_OFFSET)
+        set(value) {
+            buffer.putInt(INDEXED_LENGTH_OFFSET, value)
+        }
+
+    // Returns the first record offset with this key hash that matches, or NOT_FOUND.
+    fun find(hash: Int, matches: (Int) -> Boolean): Int {
+        val mask = slotCount - 1
+        var slot = spread(hash) and mask
+        while (true) {
+            val storedOffset = buffer.getInt(slotPosition(slot) + OFFSET_IN_SLOT)
+            if (storedOffset == EMPTY) {
+                return NOT_FOUND
+            }
+            if (storedOffset != TOMBSTONE && buffer.getInt(slotPosition(slot)) == hash && matches(storedOffset - 1)) {
+                return storedOffset - 1
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    fun forEach(hash: Int, action: (Int) -> Unit) {
+        find(hash) { offset ->
+            action(offset)
+            false
+        }
+    }
+
+    // Adding a record offset that is already in the table does nothing.
+    fun add(hash: Int, offset: Int) {
+        if (find(hash) { it == offset } != NOT_FOUND) {
+            return
+        }
+        if ((occupiedCount + 1) * 2 > slotCount) {
+            rehash()
+        }
+        val mask = slotCount - 1
+        var slot = spread(hash) and mask
+        while (true) {
+            val storedOffset = buffer.getInt(slotPosition(slot) + OFFSET_IN_SLOT)
+            if (storedOffset == EMPTY || storedOffset == TOMBSTONE) {
+                if (storedOffset == EMPTY) {
+                    occupiedCount++
+                }
+                liveCount++
+                buffer.putInt(slotPosition(slot), hash)
+                // Writing the offset last marks the slot as used
+                buffer.putInt(slotPosition(slot) + OFFSET_IN_SLOT, offset + 1)
+                return
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    fun remove(hash: Int, offset: Int) {
+        val mask = slotCount - 1
+        var slot = spread(hash) and mask
+        while (true) {
+            val storedOffset = buffer.getInt(slotPosition(slot) + OFFSET_IN_SLOT)
+            if (storedOffset == EMPTY) {
+                return
+            }
+            if (storedOffset == offset + 1) {
+                // Later slots may belong to the same probe sequence, so the slot can't become empty
+                buffer.putInt(slotPosition(slot) + OFFSET_IN_SLOT, TOMBSTONE)
+                liveCount--
+                return
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    fun force() {
+        buffer.force()
+    }
+
+    private var liveCount: Int
+        get() = buffer.getInt(LIVE_COUNT_OFFSET)
+        set(value) {
+            buffer.putInt(LIVE_COUNT_OFFSET, value)
+        }
+
+    // Live slots and tombstones, which both lengthen the probe sequences
+    private var occupiedCount: Int
+        get() = buffer.getInt(OCCUPIED_COUNT_OFFSET)
+        set(value) {
+            buffer.putInt(OCCUPIED_COUNT_OFFSET, value)
+        }
+
+    // Copies the live slots into a new table without tombstones, growing it if needed. The new
+    // table is written next to the old one and renamed over it, so it is never seen half written.
+    private fun rehash() {
+        var newSlotCount = INITIAL_SLOT_COUNT
+        while ((liveCount + 1) * 4 > newSlotCount) {
+            newSlotCount *= 2
+        }
+        val newFile = File(file.path + ".tmp")
+        val newBuffer = create(newFile, logId, newSlotCount)
+        newBuffer.putInt(INDEXED_LENGTH_OFFSET, indexedLength)
+        val newIndex = RegistrationLogIndex(newFile, newBuffer)
+        for (slot in 0 until slotCount) {
+            val storedOffset = buffer.getInt(slotPosition(slot) + OFFSET_IN_SLOT)
+            if (storedOffset != EMPTY && storedOffset != TOMBSTONE) {
+                newIndex.add(buffer.getInt(slotPosition(slot)), storedOffset - 1)
+            }
+        }
+        newBuffer.force()
+        if (!newFile.renameTo(file)) {
+            throw IOException("Could not replace $file with the rehashed index")
+        }
+        buffer = newBuffer
+    }
+
+    companion object {
+        const val NOT_FOUND = -1
+
+        private const val MAGIC = 0x52494458 // "RIDX"
+        private const val MAGIC_OFFSET = 0
+        private const val LOG_ID_OFFSET = 4
+        private const val INDEXED_LENGTH_OFFSET = 12
+        private const val SLOT_COUNT_OFFSET = 16
+        private const val LIVE_COUNT_OFFSET = 20
+        private const val OCCUPIED_COUNT_OFFSET = 24
+        private const val HEADER_SIZE = 32
+
+        // Each slot is the key hash (int) and the record offset plus one (int), so a zero-filled slot is empty
+        private const val SLOT_SIZE = 8
+        private const val OFFSET_IN_SLOT = 4
+        private const val EMPTY = 0
+        private const val TOMBSTONE = -1
+
+        private const val INITIAL_SLOT_COUNT = 1024
+
+        // Opens the index of the log with this id. An index that is missing, broken or belongs to
+        // another log is replaced by an empty one, with nothing indexed yet.
+        fun open(file: File, logId: Long): RegistrationLogIndex {
+            if (file.length() >= HEADER_SIZE) {
+                val buffer = map(file, file.length())
+                val slotCount = buffer.getInt(SLOT_COUNT_OFFSET)
+                if (buffer.getInt(MAGIC_OFFSET) == MAGIC && buffer.getLong(LOG_ID_OFFSET) == logId
+                        && slotCount > 0 && Integer.bitCount(slotCount) == 1
+                        && file.length() == HEADER_SIZE + slotCount.toLong() * SLOT_SIZE) {
+                    return RegistrationLogIndex(file, buffer)
+                }
+            }
+            return RegistrationLogIndex(file, create(file, logId, INITIAL_SLOT_COUNT))
+        }
+
+        private fun create(file: File, logId: Long, slotCount: Int): MappedByteBuffer {
+            if (file.exists() && !file.delete()) {
+                throw IOException("Could not delete $file")
+            }
+            // Mapping a new file fills it with zeros, so all slots start out empty
+            val buffer = map(file, HEADER_SIZE + slotCount.toLong() * SLOT_SIZE)
+            buffer.putLong(LOG_ID_OFFSET, logId)
+            buffer.putInt(SLOT_COUNT_OFFSET, slotCount)
+            buffer.putInt(MAGIC_OFFSET, MAGIC)
+            return buffer
+        }
+
+        // The mapping stays valid after the file is closed
+        private fun map(file: File, size: Long): MappedByteBuffer {
+            RandomAccessFile(file, "rw").use {
+                return it.channel.map(FileChannel.MapMode.READ_WRITE, 0, size)
+            }
+        }
+
+        private fun slotPosition(slot: Int) = HEADER_SIZE + slot * SLOT_SIZE
+
+        // Spreads the higher bits down, content hash codes of short arrays differ mostly in the low bits
+        private fun spread(hash: Int) = hash xor (hash ushr 16)
+    }
+}
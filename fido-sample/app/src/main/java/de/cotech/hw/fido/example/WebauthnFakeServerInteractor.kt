@@ -1,13 +1,14 @@
 package de.cotech.hw.fido.example
 
-import com.webauthn4j.WebAuthnManager
+import android.os.SystemClock
+import androidx.annotation.VisibleForTesting
 import com.webauthn4j.authenticator.Authenticator
 import com.webauthn4j.authenticator.AuthenticatorImpl
+import com.webauthn4j.converter.AttestedCredentialDataConverter
 import com.webauthn4j.converter.exception.DataConversionException
+import com.webauthn4j.converter.util.ObjectConverter
 import com.webauthn4j.data.*
-import com.webauthn4j.data.client.Origin
-import com.webauthn4j.data.client.challenge.Challenge
-import com.webauthn4j.server.ServerProperty
+import com.webauthn4j.data.attestation.statement.NoneAttestationStatement
 import de.cotech.hw.fido2.PublicKeyCredential
 import de.cotech.hw.fido2.domain.AuthenticatorTransport
 import de.cotech.hw.fido2.domain.PublicKeyCredentialDescriptor
@@ -23,24 +24,44 @@ import de.cotech.hw.fido2.domain.create.AuthenticatorSelectionCriteria
 import de.cotech.hw.fido2.domain.create.PublicKeyCredentialCreationOptions
 import de.cotech.hw.fido2.domain.get.AuthenticatorAssertionResponse
 import de.cotech.hw.fido2.domain.get.PublicKeyCredentialRequestOptions
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.io.Closeable
 import java.io.IOException
-import java.security.SecureRandom
+import java.nio.ByteBuffer
 import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
 
 class WebauthnFakeServerException(message: String) : IOException(message)
 
+/** A new registration, from either the "none" attestation fast path or the full webauthn4j validation. */
+class WebauthnRegistration(
+        val authenticator: Authenticator,
+        val format: String,
+        val isUserPresent: Boolean,
+        val isUserVerified: Boolean,
+        val transports: Set<String>
+)
+
 /**
  * A simple stand-in for a FIDO-authentication enabled web server, for demonstration purposes.
+ *
+ * The server takes over the registration log, and closes it when it is closed itself.
  */
 // for demonstration purposes
-class WebauthnFakeServerInteractor {
-    // The relying party id, which identifiers this specific (server-side) App.
-    private val rpId: String = RP_ID
+class WebauthnFakeServerInteractor(private val registrationLog: RegistrationLog? = null) : Closeable {
+    // Parses and validates responses for our relying party, which identifies this specific (server-side) App.
+    val validationPipeline = WebauthnValidationPipeline(RP_ID, RP_ORIGIN)
 
     // As a "database" of user logins, we simply remember a key handle and public key per registered username.
-    private val registeredFidoKeyHandleByUsername = HashMap<String, RegisteredUser?>()
+    private val registeredUsers: CredentialStore<RegisteredUser> = InMemoryCredentialStore { username ->
+        RegisteredUser { restoreAuthenticators(username) }
+    }
+
+    // All registered authenticators of all users, by credential id.
+    private val registeredCredentialsById = CredentialIndex<RegisteredCredential>()
 
-    private val webAuthnManager = WebAuthnManager.createNonStrictWebAuthnManager()
+    private val attestedCredentialDataConverter = AttestedCredentialDataConverter(ObjectConverter())
 
     // Registration
     fun webauthnRegisterRequest(username: String, verificationRequirement: UserVerificationRequirement, attestationConveyancePreference: AttestationConveyancePreference): PublicKeyCredentialCreationOptions {
@@ -49,7 +70,7 @@ class WebauthnFakeServerInteractor {
         val registerChallenge = generateChallenge()
         // Persist this challenge for the user, to check later on that the signed
         // challenge matches what we generated here.
-        registeredUser.issuedRegistrationChallenge = registerChallenge
+        registeredUser.addRegistrationChallenge(registerChallenge)
         return PublicKeyCredentialCreationOptions.create(
                 PublicKeyCredentialRpEntity.create(RP_ID, "FIDO-Example Relying Party", null),
                 PublicKeyCredentialUserEntity.create(registeredUser.id, username, username, null),
@@ -66,46 +87,126 @@ class WebauthnFakeServerInteractor {
         )
     }
 
+    // Registrations with "none" attestation are checked on the fields the AttestationObjectReader
+    // pulled out of the raw object. Anything else, or anything the reader can't handle, goes
+    // through webauthn4j: parsing on the I/O dispatcher, the CPU-bound validation on the default dispatcher.
     @Throws(IOException::class)
-    fun webauthnRegisterFinish(username: String, publicKeyCredential: PublicKeyCredential): RegistrationData {
+    suspend fun webauthnRegisterFinish(username: String, publicKeyCredential: PublicKeyCredential): WebauthnRegistration {
         val registeredUser = getRegisteredUser(username)
 
         val attestationResponse = publicKeyCredential.response() as AuthenticatorAttestationResponse
-        val registrationData = try {
-            val transports = setOf(AuthenticatorTransport.NFC.transport, AuthenticatorTransport.USB.transport)
-            val registrationRequest = RegistrationRequest(attestationResponse.attestationObject(), attestationResponse.clientDataJson(), null, transports)
-            webAuthnManager.parse(registrationRequest)
-        } catch (e: DataConversionException) {
-            // If you would like to handle WebAuthn data structure parse error, please catch DataConversionException
+
+        val attestedCredential = AttestationObjectReader.read(ByteBuffer.wrap(attestationResponse.attestationObject()))
+        attestedCredential?.let { checkAttestedCredential(username, it) }
+
+        val registration: WebauthnRegistration
+        val encodedCredentialData: ByteArray
+        if (attestedCredential != null && attestedCredential.format == ATTESTATION_FORMAT_NONE
+                && attestedCredential.hasEmptyAttestationStatement) {
+            encodedCredentialData = ByteArray(attestedCredential.attestedCredentialData.remaining())
+            attestedCredential.attestedCredentialData.duplicate().get(encodedCredentialData)
+            registration = registerWithoutAttestation(registeredUser, attestedCredential, encodedCredentialData,
+                    attestationResponse.clientDataJson())
+        } else {
+            registration = registerWithAttestation(registeredUser, attestationResponse)
+            encodedCredentialData = attestedCredentialDataConverter.convert(registration.authenticator.attestedCredentialData)
+        }
+
+        // If successful, save the public key and key handle, which identify a registered FIDO Security Key for this user.
+        // The check before parsing is only a shortcut: another user may have registered the same
+        // credential meanwhile, so the id is claimed atomically before anything is saved.
+        val authenticator = registration.authenticator
+        val credentialId = authenticator.attestedCredentialData.credentialId
+        val registeredCredential = RegisteredCredential(username, authenticator)
+        // Makes sure an owner from an earlier run of the App is in the index before claiming
+        findRegisteredCredential(credentialId)
+        if (registeredCredentialsById.claim(credentialId, registeredCredential) { it.username == username } != null) {
+            throw WebauthnFakeServerException("Credential is already registered for another user!")
+        }
+        try {
+            registrationLog?.append(username, credentialId, encodedCredentialData, authenticator.counter)
+        } catch (e: IOException) {
+            registeredCredentialsById.remove(credentialId, registeredCredential)
             throw e
         }
+        rememberAuthenticator(registeredUser, authenticator)
 
-        val challenge: Challenge? = Challenge { registeredUser.issuedRegistrationChallenge }
-        val serverProperty = ServerProperty(Origin(RP_ORIGIN), rpId, challenge, null)
+        return registration
+    }
 
-        val userVerificationRequired = false
-        val userPresenceRequired = true
+    @Throws(IOException::class)
+    private fun registerWithoutAttestation(
+            registeredUser: RegisteredUser,
+            attestedCredential: AttestationObjectReader.AttestedCredential,
+            encodedCredentialData: ByteArray,
+            clientDataJson: ByteArray
+    ): WebauthnRegistration {
+        val clientData = validationPipeline.parseClientData(clientDataJson)
 
-        val registrationParameters = RegistrationParameters(serverProperty, userVerificationRequired, userPresenceRequired)
-        val result = webAuthnManager.validate(registrationData, registrationParameters)
+        // Several registrations may be in flight for this user, the client data tells us which challenge
+        // this response answers. Consuming it is atomic, so each challenge can only be used once.
+        val challenge = registeredUser.consumeRegistrationChallenge(clientData.challenge)
+                ?: throw WebauthnFakeServerException("Incorrect or expired challenge!")
+        validationPipeline.validate(attestedCredential, clientData, challenge)
 
-        val authenticator: Authenticator = AuthenticatorImpl(
-                registrationData.attestationObject.authenticatorData.attestedCredentialData,
-                registrationData.attestationObject.attestationStatement,
-                registrationData.attestationObject.authenticatorData.signCount
+        val attestedCredentialData = try {
+            attestedCredentialDataConverter.convert(encodedCredentialData)
+        } catch (e: DataConversionException) {
+            throw WebauthnFakeServerException("Unsupported credential public key!")
+        }
+        return WebauthnRegistration(
+                AuthenticatorImpl(attestedCredentialData, NoneAttestationStatement(), attestedCredential.signCount),
+                ATTESTATION_FORMAT_NONE,
+                attestedCredential.isUserPresent,
+                attestedCredential.isUserVerified,
+                REGISTRATION_TRANSPORTS
         )
+    }
 
-        // If successful, save the public key and key handle, which identify a registered FIDO Security Key for this user.
-        registeredUser.addRegisteredFidoKey(authenticator)
-        registeredUser.issuedRegistrationChallenge = null
+    @Throws(IOException::class)
+    private suspend fun registerWithAttestation(
+            registeredUser: RegisteredUser,
+            attestationResponse: AuthenticatorAttestationResponse
+    ): WebauthnRegistration {
+        val registrationData = try {
+            val registrationRequest = RegistrationRequest(attestationResponse.attestationObject(), attestationResponse.clientDataJson(), null, REGISTRATION_TRANSPORTS)
+            withContext(Dispatchers.IO) { validationPipeline.parse(registrationRequest) }
+        } catch (e: DataConversionException) {
+            // If you would like to handle WebAuthn data structure parse error, please catch DataConversionException
+            throw e
+        }
 
-        return result
+        val challenge = registeredUser.consumeRegistrationChallenge(registrationData.collectedClientData.challenge.value)
+                ?: throw WebauthnFakeServerException("Incorrect or expired challenge!")
+        val result = withContext(Dispatchers.Default) { validationPipeline.validate(registrationData, challenge) }
+
+        val authenticatorData = result.attestationObject.authenticatorData
+        return WebauthnRegistration(
+                AuthenticatorImpl(
+                        authenticatorData.attestedCredentialData,
+                        result.attestationObject.attestationStatement,
+                        authenticatorData.signCount
+                ),
+                result.attestationObject.format,
+                authenticatorData.isFlagUP,
+                authenticatorData.isFlagUV,
+                result.transports.map { it.value }.toSet()
+        )
+    }
+
+    // Rejects a credential of another user before anything is parsed or validated
+    @Throws(IOException::class)
+    private fun checkAttestedCredential(username: String, attestedCredential: AttestationObjectReader.AttestedCredential) {
+        val registeredCredential = findRegisteredCredential(attestedCredential.credentialId)
+        if (registeredCredential != null && registeredCredential.username != username) {
+            throw WebauthnFakeServerException("Credential is already registered for another user!")
+        }
     }
 
     // Authentication
     fun webauthnAuthenticateRequest(username: String?, verificationRequirement: UserVerificationRequirement): PublicKeyCredentialRequestOptions {
         // Get key handle and public key struct, which identifies the FIDO Security Key that the user registered before.
-        val registeredUser = registeredFidoKeyHandleByUsername[username]
+        val registeredUser = findRegisteredUser(username)
         if (registeredUser == null || !registeredUser.hasRegisteredKeys()) {
             throw WebauthnFakeServerException("No such registered user!")
         }
@@ -115,14 +216,21 @@ class WebauthnFakeServerInteractor {
 
         // Persist this challenge for the user, to check later on that the signed challenge matches
         // what we generated here (see below)
-        registeredUser.issuedAuthenticationChallenge = authChallenge
+        registeredUser.addAuthenticationChallenge(authChallenge)
         return PublicKeyCredentialRequestOptions.create(authChallenge, null, RP_ID, registeredUser.credentialDescriptors, verificationRequirement)
     }
 
+    // Parsing runs on the I/O dispatcher, the CPU-bound validation on the default dispatcher.
     @Throws(IOException::class)
-    fun webauthnAuthenticateFinish(username: String?, publicKeyCredential: PublicKeyCredential): AuthenticationData {
-        // Get key handle and public key struct, which identifies the FIDO Security Key that the user registered before.
-        val registeredUser = registeredFidoKeyHandleByUsername[username]
+    suspend fun webauthnAuthenticateFinish(username: String?, publicKeyCredential: PublicKeyCredential): AuthenticationData {
+        // Get the authenticator that the user registered before. The credential id alone is enough
+        // to find it, so the username is optional (e.g. for discoverable credentials).
+        val registeredCredential = publicKeyCredential.rawId()?.let { findRegisteredCredential(it) }
+                ?: throw WebauthnFakeServerException("No such registered credential!")
+        if (username != null && username != registeredCredential.username) {
+            throw WebauthnFakeServerException("Credential is not registered for this user!")
+        }
+        val registeredUser = registeredUsers.findUser(registeredCredential.username)
                 ?: throw IOException("No such registered user!")
 
         val authenticationData = try {
@@ -135,78 +243,164 @@ class WebauthnFakeServerInteractor {
                     null,
                     authenticateResponse.signature()
             )
-            webAuthnManager.parse(authenticationRequest)
+            withContext(Dispatchers.IO) { validationPipeline.parse(authenticationRequest) }
         } catch (e: DataConversionException) {
             // If you would like to handle WebAuthn data structure parse error, please catch DataConversionException
             throw e
         }
 
-        val challenge: Challenge? = Challenge { registeredUser.issuedAuthenticationChallenge }
-        val serverProperty = ServerProperty(Origin.create(RP_ORIGIN), RP_ID, challenge, null)
-
-        val userVerificationRequired = false
-        val userPresenceRequired = true
-
-        val authenticator = registeredUser.findRegisteredAuthenticatorByCredentialId(publicKeyCredential.rawId())
-                ?: throw WebauthnFakeServerException("No such registered user!")
-
-        val authenticationParameters = AuthenticationParameters(
-                serverProperty,
-                authenticator,
-                userVerificationRequired,
-                userPresenceRequired
-        )
+        // Several authentications may be in flight for this user, e.g. from different devices.
+        val challenge = registeredUser.consumeAuthenticationChallenge(authenticationData.collectedClientData.challenge.value)
+                ?: throw WebauthnFakeServerException("Incorrect or expired challenge!")
+        val result = withContext(Dispatchers.Default) {
+            validationPipeline.validate(authenticationData, challenge, registeredCredential.authenticator)
+        }
 
-        val result = webAuthnManager.validate(authenticationData, authenticationParameters)
-        registeredUser.issuedAuthenticationChallenge = null
+        // Remember the new signature counter, to detect cloned authenticators next time.
+        val isSignCountUpdated = registeredCredential.updateSignCount(result.authenticatorData.signCount) { signCount ->
+            registrationLog?.updateSignCount(publicKeyCredential.rawId(), signCount)
+        }
+        if (!isSignCountUpdated) {
+            throw WebauthnFakeServerException("Signature counter did not increase, the authenticator may be cloned!")
+        }
         return result
     }
 
     // Helpers
     private fun generateChallenge(): ByteArray {
-        // Returns a newly generated 16 bytes random challenge, in url-safe base64 encoding
-        val challengeBytes = ByteArray(16)
-        secureRandom.nextBytes(challengeBytes)
-        return challengeBytes
+        // Returns a newly generated 16 bytes random challenge
+        return ChallengeGenerator.generateChallenge()
     }
 
     private fun getRegisteredUser(username: String): RegisteredUser {
-        registeredFidoKeyHandleByUsername[username]?.let { return it }
-        val registeredUser = RegisteredUser()
-        registeredFidoKeyHandleByUsername[username] = registeredUser
-        return registeredUser
+        return registeredUsers.getOrCreateUser(username)
+    }
+
+    // Users from earlier runs of the App are only in the registration log, until they are first needed.
+    private fun findRegisteredUser(username: String?): RegisteredUser? {
+        username ?: return null
+        registeredUsers.findUser(username)?.let { return it }
+        return if (registrationLog?.findEntries(username)?.isNotEmpty() == true) getRegisteredUser(username) else null
+    }
+
+    // Credentials from earlier runs of the App are restored together with the other credentials of their user.
+    private fun findRegisteredCredential(credentialId: ByteArray): RegisteredCredential? {
+        registeredCredentialsById.find(credentialId)?.let { return it }
+        val entry = registrationLog?.find(credentialId) ?: return null
+        getRegisteredUser(entry.username).restoreRegisteredFidoKeys()
+        return registeredCredentialsById.find(credentialId)
+    }
+
+    // Restores the authenticators a user registered in earlier runs of the App. The attestation
+    // statement is only needed during registration, so it is not persisted.
+    private fun restoreAuthenticators(username: String): List<Authenticator> {
+        val entries = registrationLog?.findEntries(username) ?: return emptyList()
+        return entries.mapNotNull { entry ->
+            val authenticator = AuthenticatorImpl(
+                    attestedCredentialDataConverter.convert(entry.data),
+                    NoneAttestationStatement(),
+                    entry.signCount
+            )
+            // A credential that was registered again in this run is already in the index, and newer
+            val registeredCredential = RegisteredCredential(username, authenticator)
+            authenticator.takeIf { registeredCredentialsById.claim(entry.credentialId, registeredCredential) { false } == null }
+        }
+    }
+
+    override fun close() {
+        registrationLog?.close()
+    }
+
+    // The credential id must already be claimed for this user.
+    private fun rememberAuthenticator(registeredUser: RegisteredUser, authenticator: Authenticator) {
+        for (evictedAuthenticator in registeredUser.addRegisteredFidoKey(authenticator)) {
+            val evictedCredentialId = evictedAuthenticator.attestedCredentialData.credentialId
+            // If the credential was registered again since, the id belongs to the newer registration
+            val evictedCredential = registeredCredentialsById.find(evictedCredentialId)
+            if (evictedCredential != null && evictedCredential.authenticator === evictedAuthenticator
+                    && registeredCredentialsById.remove(evictedCredentialId, evictedCredential)) {
+                registrationLog?.remove(evictedCredentialId)
+            }
+        }
     }
 
     /** A registered user is identified by their public key and key handle.  */
-    private class RegisteredUser {
-        val id = ByteArray(16).also {
-            secureRandom.nextBytes(it)
-        }
-        val registeredFidoKeys: MutableList<Authenticator> = ArrayList()
-        var issuedAuthenticationChallenge: ByteArray? = null
-        var issuedRegistrationChallenge: ByteArray? = null
-        fun addRegisteredFidoKey(authenticator: Authenticator) {
+    @VisibleForTesting
+    internal class RegisteredUser(
+            clock: () -> Long = SystemClock::elapsedRealtime,
+            restore: () -> List<Authenticator>
+    ) {
+        val id = ChallengeGenerator.generateRandomBytes(16)
+        // Only the user that wins creation in the CredentialStore is ever restored
+        val registeredFidoKeys: MutableList<Authenticator> by lazy { CopyOnWriteArrayList(restore()) }
+        // Challenges are compared by content. The index keeps a copy of the issued bytes, which are
+        // handed back on consume, so responses are validated against what the server issued.
+        val issuedAuthenticationChallenges = ChallengeIndex<ByteBuffer>(clock = clock)
+        val issuedRegistrationChallenges = ChallengeIndex<ByteBuffer>(clock = clock)
+
+        fun addAuthenticationChallenge(challenge: ByteArray) {
+            issuedAuthenticationChallenges.issue(ByteBuffer.wrap(challenge.copyOf()))
+        }
+
+        // Returns the issued challenge, or null if it was not issued or has expired. Either way, it can't be used again.
+        fun consumeAuthenticationChallenge(challenge: ByteArray?): ByteArray? {
+            return issuedAuthenticationChallenges.consumeIssued(challenge?.let { ByteBuffer.wrap(it) })?.array()
+        }
+
+        fun addRegistrationChallenge(challenge: ByteArray) {
+            issuedRegistrationChallenges.issue(ByteBuffer.wrap(challenge.copyOf()))
+        }
+
+        // Returns the issued challenge, or null if it was not issued or has expired. Either way, it can't be used again.
+        fun consumeRegistrationChallenge(challenge: ByteArray?): ByteArray? {
+            return issuedRegistrationChallenges.consumeIssued(challenge?.let { ByteBuffer.wrap(it) })?.array()
+        }
+
+        // Returns the authenticators that were dropped to make room for the new one.
+        @Synchronized
+        fun addRegisteredFidoKey(authenticator: Authenticator): List<Authenticator> {
             registeredFidoKeys.add(authenticator)
+            val evictedAuthenticators = ArrayList<Authenticator>()
             while (registeredFidoKeys.size > 3) {
-                registeredFidoKeys.removeAt(0)
+                evictedAuthenticators.add(registeredFidoKeys.removeAt(0))
             }
+            return evictedAuthenticators
         }
 
         fun hasRegisteredKeys(): Boolean {
             return registeredFidoKeys.isNotEmpty()
         }
 
+        fun restoreRegisteredFidoKeys() {
+            registeredFidoKeys
+        }
+
         val credentialDescriptors: List<PublicKeyCredentialDescriptor>
             get() = registeredFidoKeys.reversed().map { PublicKeyCredentialDescriptor.create(PublicKeyCredentialType.PUBLIC_KEY, it.attestedCredentialData.credentialId, null) }
+    }
 
-        fun findRegisteredAuthenticatorByCredentialId(credentialId: ByteArray): Authenticator? {
-            return registeredFidoKeys.find { it.attestedCredentialData.credentialId.contentEquals(credentialId) }
+    @VisibleForTesting
+    internal class RegisteredCredential(val username: String, val authenticator: Authenticator) {
+        // The validation compared the count with the stored one, but other authentications with this
+        // authenticator may have stored a newer count since. Checking and storing under one lock keeps
+        // the count increasing, and the persisted count in the same order. Returns false if the count
+        // did not increase.
+        fun updateSignCount(signCount: Long, persist: (Long) -> Unit): Boolean {
+            synchronized(authenticator) {
+                if ((signCount != 0L || authenticator.counter != 0L) && signCount <= authenticator.counter) {
+                    return false
+                }
+                authenticator.counter = signCount
+                persist(signCount)
+                return true
+            }
         }
     }
 
     companion object {
         private const val RP_ID = "fido-login.example.com"
         private const val RP_ORIGIN = "https://fido-login.example.com"
-        private val secureRandom = SecureRandom()
+        private const val ATTESTATION_FORMAT_NONE = "none"
+        private val REGISTRATION_TRANSPORTS = setOf(AuthenticatorTransport.NFC.transport, AuthenticatorTransport.USB.transport)
     }
 }
\ No newline at end of file
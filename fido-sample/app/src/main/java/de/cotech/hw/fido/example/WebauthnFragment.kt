@@ -30,17 +30,34 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import org.json.JSONObject
+import java.io.File
 import java.io.IOException
 
 class WebauthnViewModel(application: Application) : AndroidViewModel(application) {
-    val serverInteractor = WebauthnFakeServerInteractor()
+    // Opening the registration log reads from disk, so the server is created on first use, which
+    // is always on the I/O dispatcher.
+    private val serverInteractorLazy = lazy {
+        WebauthnFakeServerInteractor(RegistrationLog.open(File(application.filesDir, REGISTRATION_LOG_FILENAME)))
+    }
+    val serverInteractor by serverInteractorLazy
     val webauthnDialogOptionsBuilder = WebauthnDialogOptions.builder()!!
+
+    override fun onCleared() {
+        if (serverInteractorLazy.isInitialized()) {
+            serverInteractor.close()
+        }
+    }
+
+    companion object {
+        private const val REGISTRATION_LOG_FILENAME = "webauthn_registrations.log"
+    }
 }
 
 class WebauthnFragment : Fragment() {
+    // Provided through the fragment's ViewModelStore, so it is cleared when the fragment is gone for good
     private val viewModel by lazy {
-        ViewModelProvider.AndroidViewModelFactory.getInstance(requireActivity().application)
-                .create(WebauthnViewModel::class.java)
+        ViewModelProvider(this, ViewModelProvider.AndroidViewModelFactory.getInstance(requireActivity().application))
+                .get(WebauthnViewModel::class.java)
     }
     private val viewModelScope
         get() = viewModel.viewModelScope
@@ -131,19 +148,20 @@ class WebauthnFragment : Fragment() {
         viewModelScope.launch(coroutineContext) {
             textLog.text = withContext(Dispatchers.IO) {
                 val result = viewModel.serverInteractor.webauthnRegisterFinish(USERNAME, publicKeyCredential)
-                val formattedStmt = formatAttestationStatement(result.attestationObject.attestationStatement)
+                val formattedStmt = formatAttestationStatement(result.authenticator.attestationStatement)
+                val attestedCredentialData = result.authenticator.attestedCredentialData
 
                 """
-                    credentialId: ${result.attestationObject.authenticatorData.attestedCredentialData.credentialId.toHexString()}
+                    credentialId: ${attestedCredentialData.credentialId.toHexString()}
                     clientDataJson:
 ${JSONObject(String(publicKeyCredential.response().clientDataJson())).toString(2).prependIndent("                        ")}
-                    aaguid: ${result.attestationObject.authenticatorData.attestedCredentialData.aaguid}
-                    publicKey: ${result.attestationObject.authenticatorData.attestedCredentialData.coseKey.publicKey.encoded.toHexString()}
-                    transports: ${result.transports.map { it.value }.joinToString()}
-                    userPresence: ${result.attestationObject.authenticatorData.isFlagUP}
-                    userVerification: ${result.attestationObject.authenticatorData.isFlagUV}
-                    signatureCount: ${result.attestationObject.authenticatorData.signCount}
-                    attestation: ${result.attestationObject.format} 
+                    aaguid: ${attestedCredentialData.aaguid}
+                    publicKey: ${attestedCredentialData.coseKey.publicKey.encoded.toHexString()}
+                    transports: ${result.transports.joinToString()}
+                    userPresence: ${result.isUserPresent}
+                    userVerification: ${result.isUserVerified}
+                    signatureCount: ${result.authenticator.counter}
+                    attestation: ${result.format} 
 
                 """.trimIndent() + formattedStmt
             }
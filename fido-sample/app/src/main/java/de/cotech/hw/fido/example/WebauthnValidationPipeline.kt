@@ -0,0 +1,166 @@
+package de.cotech.hw.fido.example
+
+import android.os.SystemClock
+import android.util.Base64
+import com.webauthn4j.WebAuthnManager
+import com.webauthn4j.authenticator.Authenticator
+import com.webauthn4j.data.AuthenticationData
+import com.webauthn4j.data.AuthenticationParameters
+import com.webauthn4j.data.AuthenticationRequest
+import com.webauthn4j.data.RegistrationData
+import com.webauthn4j.data.RegistrationParameters
+import com.webauthn4j.data.RegistrationRequest
+import com.webauthn4j.data.client.Origin
+import com.webauthn4j.data.client.challenge.Challenge
+import com.webauthn4j.server.ServerProperty
+import org.json.JSONException
+import org.json.JSONObject
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Parses and validates WebAuthn responses for a single relying party.
+ *
+ * The parts that are the same for every request, like the origin and the relying party id, are
+ * prepared once. Parsing and validation are separate stages, so callers can run them on
+ * different threads: parsing is mostly I/O-bound decoding, validation is CPU-bound crypto.
+ *
+ * Registrations with "none" attestation have no signature to check, so they can skip webauthn4j:
+ * the fields read by [AttestationObjectReader] and the client data are checked directly.
+ */
+class WebauthnValidationPipeline(
+        private val rpId: String,
+        private val rpOrigin: String,
+        private val userVerificationRequired: Boolean = false,
+        private val userPresenceRequired: Boolean = true
+) {
+    /**
+     * Counts the number of runs of a stage, and the time spent in it. Stages often take well under
+     * a millisecond, so times are measured in nanoseconds.
+     */
+    class StageMetrics {
+        private val count = AtomicLong()
+        private val totalTimeNanos = AtomicLong()
+
+        val runCount: Long
+            get() = count.get()
+
+        val averageTimeMs: Double
+            get() = if (count.get() == 0L) 0.0 else totalTimeNanos.get() / 1_000_000.0 / count.get()
+
+        inline fun <T> measure(stage: () -> T): T {
+            val startTime = SystemClock.elapsedRealtimeNanos()
+            try {
+                return stage()
+            } finally {
+                record(SystemClock.elapsedRealtimeNanos() - startTime)
+            }
+        }
+
+        fun record(timeNanos: Long) {
+            count.incrementAndGet()
+            totalTimeNanos.addAndGet(timeNanos)
+        }
+
+        override fun toString() = "runs: $runCount, average: ${"%.3f".format(averageTimeMs)} ms"
+    }
+
+    /** The client data fields that are checked for a registration with "none" attestation. */
+    class ClientData(val type: String, val challenge: ByteArray, val origin: String)
+
+    private val webAuthnManager = WebAuthnManager.createNonStrictWebAuthnManager()
+    private val origin = Origin.create(rpOrigin)
+    private val rpIdHash = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(rpId.toByteArray()))
+
+    val parseMetrics = StageMetrics()
+    val validateMetrics = StageMetrics()
+
+    fun parse(registrationRequest: RegistrationRequest): RegistrationData {
+        return parseMetrics.measure { webAuthnManager.parse(registrationRequest) }
+    }
+
+    fun parse(authenticationRequest: AuthenticationRequest): AuthenticationData {
+        return parseMetrics.measure { webAuthnManager.parse(authenticationRequest) }
+    }
+
+    @Throws(IOException::class)
+    fun parseClientData(clientDataJson: ByteArray): ClientData {
+        return parseMetrics.measure {
+            try {
+                val json = JSONObject(String(clientDataJson, Charsets.UTF_8))
+                val challenge = Base64.decode(json.getString("challenge"), Base64.URL_SAFE or Base64.NO_WRAP or Base64.NO_PADDING)
+                ClientData(json.getString("type"), challenge, json.getString("origin"))
+            } catch (e: JSONException) {
+                throw WebauthnFakeServerException("Invalid client data!")
+            } catch (e: IllegalArgumentException) {
+                throw WebauthnFakeServerException("Invalid client data challenge!")
+            }
+        }
+    }
+
+    /**
+     * Does the checks webauthn4j does for a registration with "none" attestation, on the fields
+     * that [AttestationObjectReader] read. The challenge is the one the server issued.
+     */
+    @Throws(IOException::class)
+    fun validate(attestedCredential: AttestationObjectReader.AttestedCredential, clientData: ClientData, challenge: ByteArray?) {
+        validateMetrics.measure {
+            if (clientData.type != CLIENT_DATA_TYPE_CREATE) {
+                throw WebauthnFakeServerException("Client data is not for a registration!")
+            }
+            if (challenge == null || !MessageDigest.isEqual(clientData.challenge, challenge)) {
+                throw WebauthnFakeServerException("Incorrect challenge!")
+            }
+            if (clientData.origin != rpOrigin) {
+                throw WebauthnFakeServerException("Incorrect origin!")
+            }
+            if (attestedCredential.rpIdHash != rpIdHash) {
+                throw WebauthnFakeServerException("Credential is for a different relying party!")
+            }
+            if (userPresenceRequired && !attestedCredential.isUserPresent) {
+                throw WebauthnFakeServerException("User presence is required!")
+            }
+            if (userVerificationRequired && !attestedCredential.isUserVerified) {
+                throw WebauthnFakeServerException("User verification is required!")
+            }
+            // The creation options only ask for ES256 keys
+            if (attestedCredential.coseKeyType != COSE_KEY_TYPE_EC2 || attestedCredential.coseAlgorithm != COSE_ALGORITHM_ES256
+                    || attestedCredential.coseCurve != COSE_CURVE_P256) {
+                throw WebauthnFakeServerException("Unsupported credential public key!")
+            }
+        }
+    }
+
+    fun validate(registrationData: RegistrationData, challenge: ByteArray?): RegistrationData {
+        val registrationParameters = RegistrationParameters(
+                createServerProperty(challenge),
+                userVerificationRequired,
+                userPresenceRequired
+        )
+        return validateMetrics.measure { webAuthnManager.validate(registrationData, registrationParameters) }
+    }
+
+    fun validate(authenticationData: AuthenticationData, challenge: ByteArray?, authenticator: Authenticator): AuthenticationData {
+        val authenticationParameters = AuthenticationParameters(
+                createServerProperty(challenge),
+                authenticator,
+                userVerificationRequired,
+                userPresenceRequired
+        )
+        return validateMetrics.measure { webAuthnManager.validate(authenticationData, authenticationParameters) }
+    }
+
+    private fun createServerProperty(challenge: ByteArray?): ServerProperty {
+        // Only the challenge differs between requests
+        return ServerProperty(origin, rpId, Challenge { challenge }, null)
+    }
+
+    companion object {
+        private const val CLIENT_DATA_TYPE_CREATE = "webauthn.create"
+        private const val COSE_KEY_TYPE_EC2 = 2L
+        private const val COSE_ALGORITHM_ES256 = -7L
+        private const val COSE_CURVE_P256 = 1L
+    }
+}
@@ -0,0 +1,117 @@
+package de.cotech.hw.fido.example;
+
+import com.webauthn4j.converter.AttestationObjectConverter;
+import com.webauthn4j.converter.util.ObjectConverter;
+import com.webauthn4j.data.attestation.AttestationObject;
+import com.webauthn4j.data.attestation.authenticator.AAGUID;
+import com.webauthn4j.data.attestation.authenticator.AttestedCredentialData;
+import com.webauthn4j.data.attestation.authenticator.AuthenticatorData;
+import com.webauthn4j.data.attestation.authenticator.EC2COSEKey;
+import com.webauthn4j.data.attestation.statement.COSEAlgorithmIdentifier;
+import com.webauthn4j.data.attestation.statement.NoneAttestationStatement;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a "none" attestation object with {@link AttestationObjectReader}, and with the full
+ * webauthn4j converter that the registration falls back to. Besides the time, compare the
+ * allocations per parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AttestationObjectReaderBenchmark {
+    // user present, attested credential data
+    private static final byte FLAGS = 0x41;
+    private static final int MAJOR_TYPE_BYTE_STRING = 2;
+    private static final int MAJOR_TYPE_TEXT_STRING = 3;
+
+    private final AttestationObjectConverter attestationObjectConverter =
+            new AttestationObjectConverter(new ObjectConverter());
+    private byte[] attestationObject;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        ECPublicKey publicKey = (ECPublicKey) keyPairGenerator.generateKeyPair().getPublic();
+
+        SecureRandom random = new SecureRandom();
+        byte[] rpIdHash = new byte[32];
+        random.nextBytes(rpIdHash);
+        byte[] credentialId = new byte[64];
+        random.nextBytes(credentialId);
+
+        AttestedCredentialData attestedCredentialData =
+                new AttestedCredentialData(new AAGUID(new byte[16]), credentialId, EC2COSEKey.create(publicKey, COSEAlgorithmIdentifier.ES256));
+        byte[] webauthn4jAttestationObject = attestationObjectConverter.convertToBytes(new AttestationObject(
+                new AuthenticatorData<>(rpIdHash, FLAGS, 0, attestedCredentialData), new NoneAttestationStatement()));
+        attestationObject = toCanonicalNoneAttestationObject(
+                attestationObjectConverter.extractAuthenticatorData(webauthn4jAttestationObject));
+    }
+
+    // Jackson writes maps with indefinite lengths, authenticators send the CTAP2 canonical form:
+    // {"fmt": "none", "attStmt": {}, "authData": authData}
+    private static byte[] toCanonicalNoneAttestationObject(byte[] authData) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xa3);
+        writeText(out, "fmt");
+        writeText(out, "none");
+        writeText(out, "attStmt");
+        out.write(0xa0);
+        writeText(out, "authData");
+        writeHead(out, MAJOR_TYPE_BYTE_STRING, authData.length);
+        out.write(authData, 0, authData.length);
+        return out.toByteArray();
+    }
+
+    private static void writeText(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        writeHead(out, MAJOR_TYPE_TEXT_STRING, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    // The shortest head for the length, as canonical CBOR requires
+    private static void writeHead(ByteArrayOutputStream out, int majorType, int length) {
+        if (length < 24) {
+            out.write(majorType << 5 | length);
+        } else if (length < 0x100) {
+            out.write(majorType << 5 | 24);
+            out.write(length);
+        } else {
+            out.write(majorType << 5 | 25);
+            out.write(length >> 8);
+            out.write(length);
+        }
+    }
+
+    @Benchmark
+    public AttestationObjectReader.AttestedCredential attestationObjectReader() {
+        return AttestationObjectReader.INSTANCE.read(ByteBuffer.wrap(attestationObject));
+    }
+
+    @Benchmark
+    public AttestationObject webauthn4jConverter() {
+        return attestationObjectConverter.convert(attestationObject);
+    }
+}
@@ -0,0 +1,273 @@
+package de.cotech.hw.fido.example
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+class AttestationObjectReaderTest {
+    private val rpIdHash = ByteArray(32) { it.toByte() }
+    private val credentialId = byteArrayOf(1, 2, 3, 4)
+    private val aaguid = ByteArray(16) { 0x55 }
+
+    // An EC2 P-256 COSE key: {1: 2, 3: -7, -1: 1, -2: x, -3: y}
+    private val coseKey = Cbor().map(5)
+            .int(1).int(2)
+            .int(3).int(-7)
+            .int(-1).int(1)
+            .int(-2).bytes(ByteArray(32) { 0x11 })
+            .int(-3).bytes(ByteArray(32) { 0x22 })
+            .toByteArray()
+
+    @Test
+    fun read_noneAttestation_returnsCredential() {
+        val attestationObject = attestationObject("none", Cbor().map(0), authData(FLAG_UP or FLAG_AT, 7))
+
+        val attestedCredential = AttestationObjectReader.read(ByteBuffer.wrap(attestationObject))
+
+        assertNotNull(attestedCredential)
+        assertEquals("none", attestedCredential!!.format)
+        assertTrue(attestedCredential.hasEmptyAttestationStatement)
+        assertEquals(ByteBuffer.wrap(rpIdHash), attestedCredential.rpIdHash)
+        assertTrue(attestedCredential.isUserPresent)
+        assertFalse(attestedCredential.isUserVerified)
+        assertEquals(7L, attestedCredential.signCount)
+        assertArrayEquals(credentialId, attestedCredential.credentialId)
+        assertEquals(ByteBuffer.wrap(coseKey), attestedCredential.coseKey)
+        assertEquals(2L, attestedCredential.coseKeyType)
+        assertEquals(-7L, attestedCredential.coseAlgorithm)
+        assertEquals(1L, attestedCredential.coseCurve)
+        assertEquals(ByteBuffer.wrap(attestedCredentialData()), attestedCredential.attestedCredentialData)
+    }
+
+    @Test
+    fun read_keysInOtherOrder_returnsCredential() {
+        val attestationObject = Cbor().map(3)
+                .text("authData").bytes(authData(FLAG_UP or FLAG_AT, 0))
+                .text("attStmt").map(0)
+                .text("fmt").text("none")
+                .toByteArray()
+
+        val attestedCredential = AttestationObjectReader.read(ByteBuffer.wrap(attestationObject))
+
+        assertEquals("none", attestedCredential?.format)
+        assertArrayEquals(credentialId, attestedCredential?.credentialId)
+    }
+
+    @Test
+    fun read_attestationStatement_isNotEmpty() {
+        val attestationStatement = Cbor().map(2)
+                .text("alg").int(-7)
+                .text("sig").bytes(ByteArray(70))
+        val attestationObject = attestationObject("packed", attestationStatement, authData(FLAG_UP or FLAG_UV or FLAG_AT, 0))
+
+        val attestedCredential = AttestationObjectReader.read(ByteBuffer.wrap(attestationObject))
+
+        assertEquals("packed", attestedCredential?.format)
+        assertFalse(attestedCredential!!.hasEmptyAttestationStatement)
+        assertTrue(attestedCredential.isUserVerified)
+    }
+
+    @Test
+    fun read_withoutAttestedCredentialData_returnsNull() {
+        val authData = ByteArrayOutputStream().apply {
+            write(rpIdHash)
+            write(FLAG_UP)
+            write(byteArrayOf(0, 0, 0, 0))
+        }.toByteArray()
+
+        assertNull(AttestationObjectReader.read(ByteBuffer.wrap(attestationObject("none", Cbor().map(0), authData))))
+    }
+
+    @Test
+    fun read_duplicateKey_returnsNull() {
+        val attestationObject = Cbor().map(4)
+                .text("fmt").text("none")
+                .text("attStmt").map(0)
+                .text("authData").bytes(authData(FLAG_UP or FLAG_AT, 0))
+                .text("fmt").text("packed")
+                .toByteArray()
+
+        assertNull(AttestationObjectReader.read(ByteBuffer.wrap(attestationObject)))
+    }
+
+    @Test
+    fun read_unknownKey_returnsNull() {
+        val attestationObject = Cbor().map(4)
+                .text("fmt").text("none")
+                .text("attStmt").map(0)
+                .text("authData").bytes(authData(FLAG_UP or FLAG_AT, 0))
+                .text("ep").int(1)
+                .toByteArray()
+
+        assertNull(AttestationObjectReader.read(ByteBuffer.wrap(attestationObject)))
+    }
+
+    @Test
+    fun read_trailingBytes_returnsNull() {
+        val attestationObject = attestationObject("none", Cbor().map(0), authData(FLAG_UP or FLAG_AT, 0)) + 0
+
+        assertNull(AttestationObjectReader.read(ByteBuffer.wrap(attestationObject)))
+    }
+
+    @Test
+    fun read_extensions_returnsNull() {
+        // {"credProtect": 1} after the COSE key, flagged by ED
+        val authData = authData(FLAG_UP or FLAG_AT or FLAG_ED, 0) + Cbor().map(1).text("credProtect").int(1).toByteArray()
+
+        assertNull(AttestationObjectReader.read(ByteBuffer.wrap(attestationObject("none", Cbor().map(0), authData))))
+    }
+
+    @Test
+    fun read_bytesAfterCoseKey_returnsNull() {
+        val authData = authData(FLAG_UP or FLAG_AT, 0) + 0
+
+        assertNull(AttestationObjectReader.read(ByteBuffer.wrap(attestationObject("none", Cbor().map(0), authData))))
+    }
+
+    @Test
+    fun read_duplicateCoseKeyLabel_returnsNull() {
+        // The second alg would win in a parser that doesn't check, RS256 here
+        val coseKey = Cbor().map(3)
+                .int(1).int(2)
+                .int(3).int(-7)
+                .int(3).int(-257)
+                .toByteArray()
+
+        assertNull(AttestationObjectReader.read(ByteBuffer.wrap(attestationObject("none", Cbor().map(0), authData(FLAG_UP or FLAG_AT, 0, coseKey)))))
+    }
+
+    @Test
+    fun read_otherAlgorithm_returnsIt() {
+        // An RSA key: {1: 3, 3: -257, -1: n, -2: e}
+        val coseKey = Cbor().map(4)
+                .int(1).int(3)
+                .int(3).int(-257)
+                .int(-1).bytes(ByteArray(256))
+                .int(-2).bytes(byteArrayOf(1, 0, 1))
+                .toByteArray()
+
+        val attestedCredential = AttestationObjectReader.read(ByteBuffer.wrap(attestationObject("none", Cbor().map(0), authData(FLAG_UP or FLAG_AT, 0, coseKey))))
+
+        assertEquals(3L, attestedCredential?.coseKeyType)
+        assertEquals(-257L, attestedCredential?.coseAlgorithm)
+        assertNull(attestedCredential?.coseCurve)
+    }
+
+    @Test
+    fun read_truncated_returnsNull() {
+        val attestationObject = attestationObject("none", Cbor().map(0), authData(FLAG_UP or FLAG_AT, 0))
+
+        for (length in 0 until attestationObject.size) {
+            assertNull(AttestationObjectReader.read(ByteBuffer.wrap(attestationObject, 0, length)))
+        }
+    }
+
+    @Test
+    fun read_deeplyNestedStatement_returnsNull() {
+        val attestationStatement = Cbor()
+        repeat(1000) { attestationStatement.array(1) }
+        attestationStatement.int(0)
+
+        val attestationObject = attestationObject("none", attestationStatement, authData(FLAG_UP or FLAG_AT, 0))
+
+        assertNull(AttestationObjectReader.read(ByteBuffer.wrap(attestationObject)))
+    }
+
+    @Test
+    fun read_indefiniteLength_returnsNull() {
+        // An indefinite-length map, terminated by a break
+        val attestationObject = byteArrayOf(0xbf.toByte(), 0xff.toByte())
+
+        assertNull(AttestationObjectReader.read(ByteBuffer.wrap(attestationObject)))
+    }
+
+    @Test
+    fun read_leavesBufferPosition() {
+        val buffer = ByteBuffer.wrap(attestationObject("none", Cbor().map(0), authData(FLAG_UP or FLAG_AT, 0)))
+
+        AttestationObjectReader.read(buffer)
+
+        assertEquals(0, buffer.position())
+    }
+
+    private fun attestationObject(format: String, attestationStatement: Cbor, authData: ByteArray): ByteArray {
+        return Cbor().map(3)
+                .text("fmt").text(format)
+                .text("attStmt").raw(attestationStatement.toByteArray())
+                .text("authData").bytes(authData)
+                .toByteArray()
+    }
+
+    private fun authData(flags: Int, signCount: Int, coseKey: ByteArray = this.coseKey): ByteArray {
+        return ByteArrayOutputStream().apply {
+            write(rpIdHash)
+            write(flags)
+            write(ByteBuffer.allocate(4).putInt(signCount).array())
+            write(attestedCredentialData(coseKey))
+        }.toByteArray()
+    }
+
+    private fun attestedCredentialData(coseKey: ByteArray = this.coseKey): ByteArray {
+        return ByteArrayOutputStream().apply {
+            write(aaguid)
+            write(ByteBuffer.allocate(2).putShort(credentialId.size.toShort()).array())
+            write(credentialId)
+            write(coseKey)
+        }.toByteArray()
+    }
+
+    // Writes the few CBOR items the tests need, always with the shortest head
+    private class Cbor {
+        private val out = ByteArrayOutputStream()
+
+        fun int(value: Int) = apply { if (value >= 0) head(0, value) else head(1, -1 - value) }
+
+        fun bytes(value: ByteArray) = apply {
+            head(2, value.size)
+            out.write(value)
+        }
+
+        fun text(value: String) = apply {
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            head(3, bytes.size)
+            out.write(bytes)
+        }
+
+        fun array(size: Int) = apply { head(4, size) }
+
+        fun map(size: Int) = apply { head(5, size) }
+
+        fun raw(value: ByteArray) = apply { out.write(value) }
+
+        fun toByteArray(): ByteArray = out.toByteArray()
+
+        private fun head(majorType: Int, argument: Int) {
+            val initialByte = majorType shl 5
+            when {
+                argument < 24 -> out.write(initialByte or argument)
+                argument < 0x100 -> {
+                    out.write(initialByte or 24)
+                    out.write(argument)
+                }
+                else -> {
+                    out.write(initialByte or 25)
+                    out.write(argument ushr 8)
+                    out.write(argument and 0xff)
+                }
+            }
+        }
+    }
+
+    companion object {
+        private const val FLAG_UP = 0x01
+        private const val FLAG_UV = 0x04
+        private const val FLAG_AT = 0x40
+        private const val FLAG_ED = 0x80
+    }
+}
@@ -0,0 +1,34 @@
+package de.cotech.hw.fido.example;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of this module. They take minutes, so they are skipped unless asked
+ * for, optionally with a regular expression that selects the benchmarks to run:
+ *
+ * <pre>./gradlew testDebugUnitTest --tests '*.Benchmarks' -Pbenchmark=ChallengeIndex</pre>
+ *
+ * The benchmarks run inside the test JVM instead of a forked one, so compare results of the same
+ * run with each other rather than with other machines. Each result also lists the bytes allocated
+ * per operation, from the GC profiler.
+ */
+public class Benchmarks {
+    @Test
+    public void run() throws RunnerException {
+        String include = System.getProperty("benchmark");
+        Assume.assumeTrue("Benchmarks only run with -Pbenchmark", include != null);
+
+        Options options = new OptionsBuilder()
+                .include(include.isEmpty() ? ".*Benchmark" : include)
+                .forks(0)
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,47 @@
+package de.cotech.hw.fido.example
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.Collections
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class ChallengeGeneratorTest {
+    @Test
+    fun generateRandomBytes_returnsRequestedLength() {
+        assertEquals(ChallengeGenerator.CHALLENGE_LENGTH, ChallengeGenerator.generateChallenge().size)
+        assertEquals(1, ChallengeGenerator.generateRandomBytes(1).size)
+        // More than one batch is drawn directly from the SecureRandom
+        assertEquals(4096, ChallengeGenerator.generateRandomBytes(4096).size)
+    }
+
+    @Test
+    fun generateChallenge_fromManyThreads_neverRepeats() {
+        val challenges = Collections.newSetFromMap(ConcurrentHashMap<ByteBuffer, Boolean>())
+        val executor = Executors.newFixedThreadPool(THREAD_COUNT)
+
+        try {
+            // Every thread draws from its own buffer, across many refills
+            val futures = (0 until THREAD_COUNT).map {
+                executor.submit(Callable {
+                    for (i in 0 until CHALLENGES_PER_THREAD) {
+                        challenges.add(ByteBuffer.wrap(ChallengeGenerator.generateChallenge()))
+                    }
+                })
+            }
+            futures.forEach { it.get(60, TimeUnit.SECONDS) }
+        } finally {
+            executor.shutdownNow()
+        }
+
+        assertEquals(THREAD_COUNT * CHALLENGES_PER_THREAD, challenges.size)
+    }
+
+    companion object {
+        private const val THREAD_COUNT = 4
+        private const val CHALLENGES_PER_THREAD = 10000
+    }
+}
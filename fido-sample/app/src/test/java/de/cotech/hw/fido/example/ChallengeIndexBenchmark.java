@@ -0,0 +1,51 @@
+package de.cotech.hw.fido.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues and consumes challenges on a {@link ChallengeIndex} that already holds many outstanding
+ * challenges of the same user. The time per operation should not grow with their number.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChallengeIndexBenchmark {
+    @Param({"1", "1000", "100000"})
+    public int outstandingChallenges;
+
+    private final String[] challenges = new String[1024];
+    private ChallengeIndex<String> index;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        // The clock stands still, so nothing expires or is swept during the benchmark
+        index = new ChallengeIndex<>(ChallengeIndex.DEFAULT_TTL_MS, () -> 0L);
+        for (int i = 0; i < outstandingChallenges; i++) {
+            index.issue("outstanding-" + i);
+        }
+        for (int i = 0; i < challenges.length; i++) {
+            challenges[i] = "challenge-" + i;
+        }
+    }
+
+    @Benchmark
+    public boolean issueAndConsume() {
+        String challenge = challenges[next++ & (challenges.length - 1)];
+        index.issue(challenge);
+        return index.consume(challenge);
+    }
+}
@@ -0,0 +1,133 @@
+package de.cotech.hw.fido.example
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+class ChallengeIndexTest {
+    private var now = 0L
+    private val index = ChallengeIndex<String>(TTL_MS) { now }
+
+    @Test
+    fun consume_issuedChallenge_acceptsItOnce() {
+        index.issue("a")
+
+        assertTrue(index.consume("a"))
+        assertFalse(index.consume("a"))
+        assertEquals(0, index.size)
+    }
+
+    @Test
+    fun consumeIssued_returnsIssuedInstance() {
+        val issuedChallenge = String(charArrayOf('a'))
+        index.issue(issuedChallenge)
+
+        assertSame(issuedChallenge, index.consumeIssued("a"))
+        assertNull(index.consumeIssued("a"))
+    }
+
+    @Test
+    fun consume_unknownChallenge_isRejected() {
+        index.issue("a")
+
+        assertFalse(index.consume("b"))
+        assertFalse(index.consume(null))
+        assertEquals(1, index.size)
+    }
+
+    @Test
+    fun consume_afterTtl_isRejected() {
+        index.issue("a")
+        now = TTL_MS
+
+        assertFalse(index.consume("a"))
+        assertEquals(0, index.size)
+    }
+
+    @Test
+    fun sweepExpired_dropsOnlyExpiredChallenges() {
+        index.issue("a")
+        now = 1500
+        index.issue("b")
+
+        now = TTL_MS + 1000
+        index.sweepExpired()
+
+        assertEquals(1, index.size)
+        assertTrue(index.consume("b"))
+    }
+
+    @Test
+    fun sweepExpired_keepsChallengeThatWasIssuedAgain() {
+        index.issue("a")
+        now = 1500
+        index.issue("a")
+
+        now = TTL_MS + 1000
+        index.sweepExpired()
+
+        assertTrue(index.consume("a"))
+    }
+
+    @Test
+    fun expiredChallenges_areSweptInTheBackground() {
+        val index = ChallengeIndex<String>(10) { System.nanoTime() / 1_000_000 }
+        for (i in 0 until 100) {
+            index.issue("challenge-$i")
+        }
+
+        // Sweeps run when the tick the challenges expire in has passed, about a second from now
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10)
+        while (index.size > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50)
+        }
+
+        assertEquals(0, index.size)
+    }
+
+    @Test
+    fun concurrentConsumes_acceptEachChallengeOnce() {
+        for (i in 0 until CHALLENGE_COUNT) {
+            index.issue("challenge-$i")
+        }
+        val acceptedCounts = AtomicIntegerArray(CHALLENGE_COUNT)
+        val executor = Executors.newFixedThreadPool(THREAD_COUNT)
+        val start = CountDownLatch(1)
+
+        try {
+            val futures = (0 until THREAD_COUNT).map {
+                executor.submit(Callable {
+                    start.await()
+                    for (i in 0 until CHALLENGE_COUNT) {
+                        if (index.consume("challenge-$i")) {
+                            acceptedCounts.incrementAndGet(i)
+                        }
+                    }
+                })
+            }
+            start.countDown()
+            futures.forEach { it.get(60, TimeUnit.SECONDS) }
+        } finally {
+            executor.shutdownNow()
+        }
+
+        for (i in 0 until CHALLENGE_COUNT) {
+            assertEquals("challenge-$i", 1, acceptedCounts.get(i))
+        }
+        assertEquals(0, index.size)
+    }
+
+    companion object {
+        private const val TTL_MS = 60_000L
+        private const val THREAD_COUNT = 8
+        private const val CHALLENGE_COUNT = 10000
+    }
+}
@@ -0,0 +1,111 @@
+package de.cotech.hw.fido.example
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+class CredentialIndexTest {
+    private class TestCredential(val username: String)
+
+    private val index = CredentialIndex<TestCredential>()
+
+    @Test
+    fun claim_newId_registersCredential() {
+        val credential = TestCredential("alice")
+
+        assertNull(index.claim(byteArrayOf(1, 2, 3), credential) { it.username == "alice" })
+        assertSame(credential, index.find(byteArrayOf(1, 2, 3)))
+    }
+
+    @Test
+    fun claim_sameOwner_replacesCredential() {
+        index.claim(byteArrayOf(1, 2, 3), TestCredential("alice")) { false }
+        val newCredential = TestCredential("alice")
+
+        assertNull(index.claim(byteArrayOf(1, 2, 3), newCredential) { it.username == "alice" })
+        assertSame(newCredential, index.find(byteArrayOf(1, 2, 3)))
+    }
+
+    @Test
+    fun claim_otherOwner_isRejected() {
+        val credential = TestCredential("alice")
+        index.claim(byteArrayOf(1, 2, 3), credential) { false }
+
+        assertSame(credential, index.claim(byteArrayOf(1, 2, 3), TestCredential("bob")) { it.username == "bob" })
+        assertSame(credential, index.find(byteArrayOf(1, 2, 3)))
+    }
+
+    @Test
+    fun find_comparesIdsByContent() {
+        val credentialId = byteArrayOf(1, 2, 3)
+        val credential = TestCredential("alice")
+        index.claim(credentialId, credential) { false }
+        // The index must not keep the caller's array, which may change later
+        credentialId[0] = 9
+
+        assertSame(credential, index.find(byteArrayOf(1, 2, 3)))
+        assertNull(index.find(byteArrayOf(9, 2, 3)))
+        assertNull(index.find(null))
+    }
+
+    @Test
+    fun remove_onlyRemovesSameCredential() {
+        val oldCredential = TestCredential("alice")
+        val newCredential = TestCredential("alice")
+        index.claim(byteArrayOf(1, 2, 3), oldCredential) { false }
+        index.claim(byteArrayOf(1, 2, 3), newCredential) { true }
+
+        assertFalse(index.remove(byteArrayOf(1, 2, 3), oldCredential))
+        assertSame(newCredential, index.find(byteArrayOf(1, 2, 3)))
+        assertTrue(index.remove(byteArrayOf(1, 2, 3), newCredential))
+        assertNull(index.find(byteArrayOf(1, 2, 3)))
+    }
+
+    @Test
+    fun concurrentClaims_registerEachIdForOneUser() {
+        val claimCounts = AtomicIntegerArray(ID_COUNT)
+        val executor = Executors.newFixedThreadPool(THREAD_COUNT)
+        val start = CountDownLatch(1)
+
+        try {
+            // Every thread is another user, and all of them race for the same ids
+            val futures = (0 until THREAD_COUNT).map { thread ->
+                executor.submit(Callable {
+                    val username = "user$thread"
+                    start.await()
+                    for (i in 0 until ID_COUNT) {
+                        if (index.claim(credentialId(i), TestCredential(username)) { it.username == username } == null) {
+                            claimCounts.incrementAndGet(i)
+                        }
+                    }
+                })
+            }
+            start.countDown()
+            futures.forEach { it.get(60, TimeUnit.SECONDS) }
+        } finally {
+            executor.shutdownNow()
+        }
+
+        for (i in 0 until ID_COUNT) {
+            assertEquals("credential id $i", 1, claimCounts.get(i))
+        }
+    }
+
+    private fun credentialId(i: Int): ByteArray {
+        return ByteBuffer.allocate(4).putInt(i).array()
+    }
+
+    companion object {
+        private const val THREAD_COUNT = 8
+        private const val ID_COUNT = 10000
+    }
+}
@@ -0,0 +1,133 @@
+package de.cotech.hw.fido.example
+
+import de.cotech.hw.fido.example.FidoFakeServerInteractor.RegisteredFidoKey
+import de.cotech.hw.fido.example.FidoFakeServerInteractor.RegisteredUser
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.concurrent.Callable
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Drives the credential store, the registered users and the credential index from many threads
+ * at once, the way FidoFakeServerInteractor uses them during concurrent register and
+ * authenticate flows.
+ */
+class CredentialStoreStressTest {
+    private val clock = { 0L }
+
+    @Test
+    fun concurrentFlows_loseNoRegistrationsOrChallenges() {
+        val store = InMemoryCredentialStore { RegisteredUser(clock) { emptyList() } }
+        val registeredFidoKeysByHandle = CredentialIndex<RegisteredFidoKey>()
+        val failureCount = AtomicInteger()
+
+        runConcurrently { thread ->
+            for (flow in 0 until FLOWS_PER_THREAD) {
+                // Threads share users, so flows for the same user race each other
+                val username = "user${(thread * FLOWS_PER_THREAD + flow) % USER_COUNT}"
+                val keyHandle = keyHandle(thread, flow)
+
+                // fidoRegisterRequest and fidoRegisterFinish
+                val registerChallenge = "register-$thread-$flow"
+                store.getOrCreateUser(username).addRegistrationChallenge(registerChallenge)
+                val registeringUser = store.getOrCreateUser(username)
+                val registeredFidoKey = RegisteredFidoKey(username, ByteArray(65), keyHandle)
+                if (!registeringUser.checkAndRemoveRegistrationChallenge(registerChallenge)
+                        || registeredFidoKeysByHandle.claim(keyHandle, registeredFidoKey) { it.username == username } != null) {
+                    failureCount.incrementAndGet()
+                }
+                registeringUser.addRegisteredFidoKey(registeredFidoKey)
+
+                // fidoAuthenticateRequest and fidoAuthenticateFinish
+                val authChallenge = "authenticate-$thread-$flow"
+                store.findUser(username)!!.addAuthenticationChallenge(authChallenge)
+                val authenticatingUser = store.findUser(registeredFidoKeysByHandle.find(keyHandle)?.username)
+                if (authenticatingUser == null || !authenticatingUser.checkAndRemoveAuthenticationChallenge(authChallenge)) {
+                    failureCount.incrementAndGet()
+                }
+                // A replayed response must not be accepted again
+                if (authenticatingUser?.checkAndRemoveAuthenticationChallenge(authChallenge) == true) {
+                    failureCount.incrementAndGet()
+                }
+            }
+        }
+
+        assertEquals(0, failureCount.get())
+        var registeredKeyCount = 0
+        for (userIndex in 0 until USER_COUNT) {
+            val username = "user$userIndex"
+            val user = store.findUser(username)
+            assertNotNull(user)
+            assertEquals(0, user!!.issuedRegistrationChallenges.size)
+            assertEquals(0, user.issuedAuthenticationChallenges.size)
+            for (keyHandle in user.keyHandles) {
+                assertEquals(username, registeredFidoKeysByHandle.find(keyHandle)?.username)
+            }
+            registeredKeyCount += user.registeredFidoKeys.size
+        }
+        assertEquals(THREAD_COUNT * FLOWS_PER_THREAD, registeredKeyCount)
+    }
+
+    @Test
+    fun concurrentGetOrCreateUser_createsAndRestoresOneUser() {
+        val restoreCount = AtomicInteger()
+        val store = InMemoryCredentialStore { username ->
+            RegisteredUser(clock) {
+                restoreCount.incrementAndGet()
+                listOf(RegisteredFidoKey(username, ByteArray(65), byteArrayOf(1)))
+            }
+        }
+        val users = CopyOnWriteArrayList<RegisteredUser>()
+
+        runConcurrently {
+            val user = store.getOrCreateUser("shared")
+            assertFalse(user.keyHandles.isEmpty())
+            users.add(user)
+        }
+
+        assertEquals(THREAD_COUNT, users.size)
+        for (user in users) {
+            assertSame(store.findUser("shared"), user)
+        }
+        assertEquals(1, restoreCount.get())
+    }
+
+    // Runs the task on all threads, released at the same time to maximize contention
+    private fun runConcurrently(task: (thread: Int) -> Unit) {
+        val executor = Executors.newFixedThreadPool(THREAD_COUNT)
+        val start = CountDownLatch(1)
+        try {
+            val futures = (0 until THREAD_COUNT).map { thread ->
+                executor.submit(Callable {
+                    start.await()
+                    task(thread)
+                })
+            }
+            start.countDown()
+            for (future in futures) {
+                future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private fun keyHandle(thread: Int, flow: Int): ByteArray {
+        return ByteBuffer.allocate(8).putInt(thread).putInt(flow).array()
+    }
+
+    companion object {
+        private const val THREAD_COUNT = 8
+        private const val FLOWS_PER_THREAD = 5000
+        private const val USER_COUNT = 64
+        private const val TIMEOUT_SECONDS = 60L
+    }
+}
@@ -0,0 +1,33 @@
+package de.cotech.hw.fido.example
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class CredentialStoreTest {
+    private class TestUser(val username: String)
+
+    private val store = InMemoryCredentialStore { TestUser(it) }
+
+    @Test
+    fun getOrCreateUser_createsUserWithUsername() {
+        assertEquals("alice", store.getOrCreateUser("alice").username)
+    }
+
+    @Test
+    fun getOrCreateUser_returnsSameUserAgain() {
+        val user = store.getOrCreateUser("alice")
+
+        assertSame(user, store.getOrCreateUser("alice"))
+        assertSame(user, store.findUser("alice"))
+    }
+
+    @Test
+    fun findUser_unknownUsername_returnsNull() {
+        store.getOrCreateUser("alice")
+
+        assertNull(store.findUser("bob"))
+        assertNull(store.findUser(null))
+    }
+}
@@ -0,0 +1,128 @@
+package de.cotech.hw.fido.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares verifying a batch of P-256 signatures with {@link FidoBatchVerifier} on 1, 4 and all
+ * cores against verifying them one after another on the calling thread.
+ *
+ * Each item is an ECDSA signature over data of the size U2F keys sign, checked with a Signature
+ * per worker. FidoAuthenticationVerifier itself comes from the hwsecurity Android library and is
+ * not run in unit tests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FidoBatchVerifierBenchmark {
+    private static final int BATCH_SIZE = 256;
+    // SHA-256(app id) | user presence | counter | SHA-256(client data)
+    private static final int SIGNED_DATA_LENGTH = 32 + 1 + 4 + 32;
+
+    /** Worker threads of the batch verifier, 0 for one per core. */
+    @Param({"1", "4", "0"})
+    public int parallelism;
+
+    private final List<SignedData> batch = new ArrayList<>();
+    private FidoBatchVerifier<Signature> batchVerifier;
+    private Signature signature;
+
+    private static class SignedData {
+        final PublicKey publicKey;
+        final byte[] data;
+        final byte[] signature;
+
+        SignedData(PublicKey publicKey, byte[] data, byte[] signature) {
+            this.publicKey = publicKey;
+            this.data = data;
+            this.signature = signature;
+        }
+    }
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        SecureRandom random = new SecureRandom();
+        Signature signer = Signature.getInstance("SHA256withECDSA");
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            KeyPair keyPair = keyPairGenerator.generateKeyPair();
+            byte[] data = new byte[SIGNED_DATA_LENGTH];
+            random.nextBytes(data);
+            signer.initSign(keyPair.getPrivate());
+            signer.update(data);
+            batch.add(new SignedData(keyPair.getPublic(), data, signer.sign()));
+        }
+
+        int workerCount = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        batchVerifier = new FidoBatchVerifier<>(workerCount, FidoBatchVerifierBenchmark::newSignature);
+        signature = newSignature();
+    }
+
+    @TearDown
+    public void tearDown() {
+        batchVerifier.close();
+    }
+
+    @Benchmark
+    public int sequential() {
+        int verifiedCount = 0;
+        for (SignedData signedData : batch) {
+            if (verify(signature, signedData)) {
+                verifiedCount++;
+            }
+        }
+        return verifiedCount;
+    }
+
+    @Benchmark
+    public int batched() {
+        int verifiedCount = 0;
+        for (FidoBatchVerifier.BatchResult<Boolean> result : batchVerifier.verifyAll(batch, FidoBatchVerifierBenchmark::verify)) {
+            if (Boolean.TRUE.equals(result.getResult())) {
+                verifiedCount++;
+            }
+        }
+        return verifiedCount;
+    }
+
+    private static boolean verify(Signature signature, SignedData signedData) {
+        try {
+            signature.initVerify(signedData.publicKey);
+            signature.update(signedData.data);
+            return signature.verify(signedData.signature);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Signature newSignature() {
+        try {
+            return Signature.getInstance("SHA256withECDSA");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package de.cotech.hw.fido.example
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.RejectedExecutionException
+
+class FidoBatchVerifierTest {
+    private val batchVerifier = FidoBatchVerifier(4) { Any() }
+
+    @After
+    fun tearDown() {
+        batchVerifier.close()
+    }
+
+    @Test
+    fun verifyAll_returnsResultsInOrder() {
+        val items = (0 until 1000).toList()
+
+        val results = batchVerifier.verifyAll(items) { _, item -> item * 2 }
+
+        assertEquals(items.map { it * 2 }, results.map { it.result })
+    }
+
+    @Test
+    fun verifyAll_failedItem_doesNotAffectOthers() {
+        val results = batchVerifier.verifyAll(listOf(1, 2, 3)) { _, item ->
+            if (item == 2) throw IOException("Invalid signature!")
+            item
+        }
+
+        assertTrue(results[0].isSuccessful)
+        assertFalse(results[1].isSuccessful)
+        assertNull(results[1].result)
+        assertEquals("Invalid signature!", results[1].error?.message)
+        assertEquals(3, results[2].result)
+    }
+
+    @Test
+    fun verifyAll_reusesOneVerifierPerWorker() {
+        val verifiers = Collections.newSetFromMap(ConcurrentHashMap<Any, Boolean>())
+
+        batchVerifier.verifyAll((0 until 1000).toList()) { verifier, _ -> verifiers.add(verifier) }
+
+        assertTrue(verifiers.size in 1..4)
+    }
+
+    @Test(expected = RejectedExecutionException::class)
+    fun verifyAll_afterClose_isRejected() {
+        batchVerifier.close()
+
+        batchVerifier.verifyAll(listOf(1)) { _, item -> item }
+    }
+}
@@ -0,0 +1,72 @@
+package de.cotech.hw.fido.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks a U2F signature with a public key that is decoded for every check, and with one that is
+ * served by {@link PublicKeyCache}. The difference is the decode cost the cache saves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PublicKeyCacheBenchmark {
+    private static final byte[] KEY_HANDLE = {1, 2, 3, 4};
+
+    private final PublicKeyCache cache = new PublicKeyCache(PublicKeyCache.DEFAULT_MAX_SIZE);
+    private byte[] userPublicKey;
+    // SHA-256(app id) | user presence | counter | SHA-256(client data)
+    private final byte[] signedData = new byte[32 + 1 + 4 + 32];
+    private byte[] signatureBytes;
+    private Signature signature;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        userPublicKey = PublicKeyCacheTest.Companion.toU2fPublicKey((ECPublicKey) keyPair.getPublic());
+
+        new SecureRandom().nextBytes(signedData);
+        signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(signedData);
+        signatureBytes = signature.sign();
+    }
+
+    @Benchmark
+    public boolean decodedForEachCheck() throws IOException, GeneralSecurityException {
+        return verify(PublicKeyCache.Companion.decodeU2fPublicKey(userPublicKey));
+    }
+
+    @Benchmark
+    public boolean servedFromCache() throws IOException, GeneralSecurityException {
+        return verify(cache.getOrDecode(KEY_HANDLE, userPublicKey));
+    }
+
+    private boolean verify(PublicKey publicKey) throws GeneralSecurityException {
+        signature.initVerify(publicKey);
+        signature.update(signedData);
+        return signature.verify(signatureBytes);
+    }
+}
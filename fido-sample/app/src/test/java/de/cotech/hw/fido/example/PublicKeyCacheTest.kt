@@ -0,0 +1,72 @@
+package de.cotech.hw.fido.example
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Test
+import java.io.IOException
+import java.security.KeyPairGenerator
+import java.security.interfaces.ECPublicKey
+import java.security.spec.ECGenParameterSpec
+
+class PublicKeyCacheTest {
+    private val cache = PublicKeyCache(maxSize = 2)
+
+    @Test
+    fun getOrDecode_decodesOnceAndCountsHitsAndMisses() {
+        val userPublicKey = generateU2fPublicKey()
+
+        val publicKey = cache.getOrDecode(byteArrayOf(1), userPublicKey)
+
+        assertSame(publicKey, cache.getOrDecode(byteArrayOf(1), userPublicKey))
+        assertEquals(1L, cache.hitCount)
+        assertEquals(1L, cache.missCount)
+    }
+
+    @Test
+    fun put_beyondMaxSize_evictsLeastRecentlyUsedKey() {
+        val userPublicKey = generateU2fPublicKey()
+        val firstKey = cache.getOrDecode(byteArrayOf(1), userPublicKey)
+        val secondKey = cache.getOrDecode(byteArrayOf(2), userPublicKey)
+        // Using the first key makes the second one the least recently used
+        cache.getOrDecode(byteArrayOf(1), userPublicKey)
+
+        cache.put(byteArrayOf(3), PublicKeyCache.decodeU2fPublicKey(userPublicKey))
+
+        assertSame(firstKey, cache.getOrDecode(byteArrayOf(1), userPublicKey))
+        assertNotSame(secondKey, cache.getOrDecode(byteArrayOf(2), userPublicKey))
+    }
+
+    @Test
+    fun decodeU2fPublicKey_returnsSamePoint() {
+        val keyPairGenerator = KeyPairGenerator.getInstance("EC")
+        keyPairGenerator.initialize(ECGenParameterSpec("secp256r1"))
+        val publicKey = keyPairGenerator.generateKeyPair().public as ECPublicKey
+
+        val decodedKey = PublicKeyCache.decodeU2fPublicKey(toU2fPublicKey(publicKey)) as ECPublicKey
+
+        assertEquals(publicKey.w, decodedKey.w)
+    }
+
+    @Test(expected = IOException::class)
+    fun decodeU2fPublicKey_compressedPoint_isRejected() {
+        PublicKeyCache.decodeU2fPublicKey(generateU2fPublicKey().copyOf(33).also { it[0] = 0x02 })
+    }
+
+    companion object {
+        fun generateU2fPublicKey(): ByteArray {
+            val keyPairGenerator = KeyPairGenerator.getInstance("EC")
+            keyPairGenerator.initialize(ECGenParameterSpec("secp256r1"))
+            return toU2fPublicKey(keyPairGenerator.generateKeyPair().public as ECPublicKey)
+        }
+
+        // 0x04 | x | y, with both coordinates as 32 bytes unsigned big endian
+        fun toU2fPublicKey(publicKey: ECPublicKey): ByteArray {
+            return byteArrayOf(0x04) + toUnsigned32(publicKey.w.affineX.toByteArray()) + toUnsigned32(publicKey.w.affineY.toByteArray())
+        }
+
+        private fun toUnsigned32(bytes: ByteArray): ByteArray {
+            return if (bytes.size >= 32) bytes.copyOfRange(bytes.size - 32, bytes.size) else ByteArray(32 - bytes.size) + bytes
+        }
+    }
+}
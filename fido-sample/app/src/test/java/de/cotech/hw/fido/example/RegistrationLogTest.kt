@@ -0,0 +1,222 @@
+package de.cotech.hw.fido.example
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+
+class RegistrationLogTest {
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private lateinit var logFile: File
+    private var log: RegistrationLog? = null
+
+    @After
+    fun tearDown() {
+        log?.close()
+    }
+
+    @Test
+    fun append_isFoundByCredentialIdAndUsername() {
+        val log = openLog()
+        log.append("alice", byteArrayOf(1), byteArrayOf(10, 11), 5)
+        log.append("bob", byteArrayOf(2), byteArrayOf(20), 0)
+        log.append("alice", byteArrayOf(3), byteArrayOf(30), 0)
+
+        val entry = log.find(byteArrayOf(1))
+        assertNotNull(entry)
+        assertEquals("alice", entry!!.username)
+        assertArrayEquals(byteArrayOf(10, 11), entry.data)
+        assertEquals(5L, entry.signCount)
+        assertNull(log.find(byteArrayOf(4)))
+        assertEquals(listOf(1.toByte(), 3.toByte()), log.findEntries("alice").map { it.credentialId.single() })
+        assertEquals(emptyList<RegistrationLog.Entry>(), log.findEntries("carol"))
+    }
+
+    @Test
+    fun reopen_restoresEntriesAndSignCount() {
+        openLog().apply {
+            append("alice", byteArrayOf(1), byteArrayOf(10), 0)
+            updateSignCount(byteArrayOf(1), 42)
+        }
+
+        val entry = reopenLog().find(byteArrayOf(1))
+
+        assertNotNull(entry)
+        assertEquals("alice", entry!!.username)
+        assertEquals(42L, entry.signCount)
+    }
+
+    @Test
+    fun append_sameCredentialId_replacesOldRecord() {
+        openLog().apply {
+            append("alice", byteArrayOf(1), byteArrayOf(10), 7)
+            append("alice", byteArrayOf(1), byteArrayOf(11), 0)
+        }
+
+        val log = reopenLog()
+
+        assertArrayEquals(byteArrayOf(11), log.find(byteArrayOf(1))!!.data)
+        assertEquals(1, log.findEntries("alice").size)
+    }
+
+    @Test
+    fun remove_survivesReopen() {
+        openLog().apply {
+            append("alice", byteArrayOf(1), byteArrayOf(10), 0)
+            append("alice", byteArrayOf(2), byteArrayOf(20), 0)
+            remove(byteArrayOf(1))
+        }
+
+        val log = reopenLog()
+
+        assertNull(log.find(byteArrayOf(1)))
+        assertEquals(listOf(2.toByte()), log.findEntries("alice").map { it.credentialId.single() })
+    }
+
+    @Test
+    fun append_beyondInitialCapacity_growsLogAndIndexes() {
+        val log = openLog()
+        val data = ByteArray(100)
+        for (i in 0 until MANY_RECORDS) {
+            log.append("user${i % 10}", credentialId(i), data, i.toLong())
+        }
+        assertTrue(logFile.length() > 64 * 1024)
+
+        val reopenedLog = reopenLog()
+
+        for (i in 0 until MANY_RECORDS) {
+            assertEquals(i.toLong(), reopenedLog.find(credentialId(i))?.signCount)
+        }
+        assertEquals(MANY_RECORDS / 10, reopenedLog.findEntries("user3").size)
+    }
+
+    @Test
+    fun tornRecord_isIgnoredAndOverwritten() {
+        openLog().append("alice", byteArrayOf(1), byteArrayOf(10), 0)
+        closeLog()
+        // The process died while writing a record, before its length was written
+        writeRecord(FILE_HEADER_SIZE + recordLength("alice", 1, 1), "bob", byteArrayOf(2), byteArrayOf(20), complete = false)
+
+        reopenLog().apply {
+            assertNull(find(byteArrayOf(2)))
+            assertNotNull(find(byteArrayOf(1)))
+            append("carol", byteArrayOf(3), byteArrayOf(30), 0)
+        }
+        val log = reopenLog()
+
+        assertNull(log.find(byteArrayOf(2)))
+        assertEquals("carol", log.find(byteArrayOf(3))?.username)
+    }
+
+    @Test
+    fun unindexedRecord_isIndexedOnReopen() {
+        openLog().append("alice", byteArrayOf(1), byteArrayOf(10), 0)
+        closeLog()
+        // The process died after writing a record, but before it was added to the indexes
+        writeRecord(FILE_HEADER_SIZE + recordLength("alice", 1, 1), "bob", byteArrayOf(2), byteArrayOf(20), complete = true)
+
+        val log = reopenLog()
+
+        assertEquals("bob", log.find(byteArrayOf(2))?.username)
+        assertEquals(1, log.findEntries("bob").size)
+    }
+
+    @Test
+    fun missingIndexes_areRebuilt() {
+        openLog().apply {
+            append("alice", byteArrayOf(1), byteArrayOf(10), 0)
+            append("alice", byteArrayOf(2), byteArrayOf(20), 0)
+            remove(byteArrayOf(1))
+        }
+        closeLog()
+        File(logFile.path + ".ids").delete()
+        File(logFile.path + ".users").delete()
+
+        val log = reopenLog()
+
+        assertNull(log.find(byteArrayOf(1)))
+        assertEquals("alice", log.find(byteArrayOf(2))?.username)
+        assertEquals(1, log.findEntries("alice").size)
+    }
+
+    @Test
+    fun open_sameFileTwice_staysOpenUntilBothOwnersClose() {
+        val log = openLog()
+        val otherLog = RegistrationLog.open(logFile)
+        assertSame(log, otherLog)
+
+        otherLog.close()
+        log.append("alice", byteArrayOf(1), byteArrayOf(10), 0)
+
+        assertEquals("alice", log.find(byteArrayOf(1))?.username)
+    }
+
+    @Test(expected = IOException::class)
+    fun closedLog_rejectsWrites() {
+        val log = openLog()
+        closeLog()
+
+        log.append("alice", byteArrayOf(1), byteArrayOf(10), 0)
+    }
+
+    @Test(expected = IOException::class)
+    fun open_otherFile_isRejected() {
+        logFile = temporaryFolder.newFile()
+        logFile.writeBytes(ByteArray(100) { 1 })
+
+        log = RegistrationLog.open(logFile)
+    }
+
+    private fun openLog(): RegistrationLog {
+        logFile = File(temporaryFolder.root, "registrations.log")
+        return RegistrationLog.open(logFile).also { log = it }
+    }
+
+    private fun reopenLog(): RegistrationLog {
+        closeLog()
+        return RegistrationLog.open(logFile).also { log = it }
+    }
+
+    private fun closeLog() {
+        log?.close()
+        log = null
+    }
+
+    // Writes a record as RegistrationLog lays it out, optionally without the length that completes it
+    private fun writeRecord(offset: Int, username: String, credentialId: ByteArray, data: ByteArray, complete: Boolean) {
+        val usernameBytes = username.toByteArray(Charsets.UTF_8)
+        RandomAccessFile(logFile, "rw").use { file ->
+            file.seek(offset.toLong())
+            file.writeInt(if (complete) recordLength(username, credentialId.size, data.size) else 0)
+            file.writeByte(0)
+            file.writeLong(0)
+            for (field in listOf(usernameBytes, credentialId, data)) {
+                file.writeInt(field.size)
+                file.write(field)
+            }
+        }
+    }
+
+    private fun recordLength(username: String, credentialIdLength: Int, dataLength: Int): Int {
+        return RECORD_HEADER_SIZE + 3 * 4 + username.toByteArray(Charsets.UTF_8).size + credentialIdLength + dataLength
+    }
+
+    private fun credentialId(i: Int) = byteArrayOf((i ushr 8).toByte(), i.toByte())
+
+    companion object {
+        private const val FILE_HEADER_SIZE = 12
+        private const val RECORD_HEADER_SIZE = 13
+        private const val MANY_RECORDS = 2000
+    }
+}
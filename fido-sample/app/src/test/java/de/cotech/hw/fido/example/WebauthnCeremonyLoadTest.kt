@@ -0,0 +1,145 @@
+package de.cotech.hw.fido.example
+
+import com.webauthn4j.authenticator.AuthenticatorImpl
+import com.webauthn4j.data.attestation.authenticator.AttestedCredentialData
+import com.webauthn4j.data.attestation.statement.NoneAttestationStatement
+import de.cotech.hw.fido.example.WebauthnFakeServerInteractor.RegisteredCredential
+import de.cotech.hw.fido.example.WebauthnFakeServerInteractor.RegisteredUser
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.yield
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Runs many WebAuthn ceremonies for the same user at once, on coroutines of the default
+ * dispatcher, the way webauthnAuthenticateFinish runs them. The signature checks are webauthn4j's
+ * and not under test here. These tests cover the state that the ceremonies share: the challenge
+ * table and the signature counter.
+ */
+class WebauthnCeremonyLoadTest {
+    private val clock = { 0L }
+
+    @Test
+    fun concurrentCeremonies_acceptEachChallengeOnce() {
+        val user = RegisteredUser(clock) { emptyList() }
+        val failureCount = AtomicInteger()
+
+        runCeremonies { ceremony ->
+            val authChallenge = ChallengeGenerator.generateChallenge()
+            val registerChallenge = ChallengeGenerator.generateChallenge()
+            user.addAuthenticationChallenge(authChallenge)
+            user.addRegistrationChallenge(registerChallenge)
+            // Let the other ceremonies issue their challenges in between
+            yield()
+
+            // Clients send back a copy, and half of the ceremonies answer with the wrong kind of challenge first
+            if (ceremony % 2 == 0 && user.consumeAuthenticationChallenge(registerChallenge.copyOf()) != null) {
+                failureCount.incrementAndGet()
+            }
+            val issuedChallenge = user.consumeAuthenticationChallenge(authChallenge.copyOf())
+            if (issuedChallenge == null || !issuedChallenge.contentEquals(authChallenge)) {
+                failureCount.incrementAndGet()
+            }
+            yield()
+            // A replayed response must not be accepted again
+            if (user.consumeAuthenticationChallenge(authChallenge.copyOf()) != null) {
+                failureCount.incrementAndGet()
+            }
+            if (user.consumeRegistrationChallenge(registerChallenge.copyOf()) == null) {
+                failureCount.incrementAndGet()
+            }
+        }
+
+        assertEquals(0, failureCount.get())
+        assertEquals(0, user.issuedAuthenticationChallenges.size)
+        assertEquals(0, user.issuedRegistrationChallenges.size)
+    }
+
+    @Test
+    fun concurrentResponsesToOneChallenge_acceptOne() {
+        val user = RegisteredUser(clock) { emptyList() }
+        val challenge = ChallengeGenerator.generateChallenge()
+        user.addAuthenticationChallenge(challenge)
+        val acceptedChallenges = Collections.synchronizedList(ArrayList<ByteArray>())
+
+        runCeremonies {
+            user.consumeAuthenticationChallenge(challenge.copyOf())?.let { acceptedChallenges.add(it) }
+        }
+
+        assertEquals(1, acceptedChallenges.size)
+        assertArrayEquals(challenge, acceptedChallenges[0])
+    }
+
+    @Test
+    fun expiredChallenge_isRejected() {
+        var now = 0L
+        val user = RegisteredUser({ now }) { emptyList() }
+        val challenge = ChallengeGenerator.generateChallenge()
+        user.addAuthenticationChallenge(challenge)
+
+        now = ChallengeIndex.DEFAULT_TTL_MS
+
+        assertNull(user.consumeAuthenticationChallenge(challenge))
+        assertEquals(0, user.issuedAuthenticationChallenges.size)
+    }
+
+    @Test
+    fun concurrentCeremonies_keepTheSignCountIncreasing() {
+        val registeredCredential = RegisteredCredential("user",
+                AuthenticatorImpl(AttestedCredentialData(), NoneAttestationStatement(), 0))
+        // Each ceremony signs with its own count, but they finish in any order
+        val signCounts = (1L..CEREMONY_COUNT).shuffled()
+        val persistedSignCounts = Collections.synchronizedList(ArrayList<Long>())
+
+        runCeremonies { ceremony ->
+            registeredCredential.updateSignCount(signCounts[ceremony]) { persistedSignCounts.add(it) }
+        }
+
+        assertEquals(CEREMONY_COUNT.toLong(), registeredCredential.authenticator.counter)
+        assertEquals(CEREMONY_COUNT.toLong(), persistedSignCounts.last())
+        for (i in 1 until persistedSignCounts.size) {
+            assertTrue(persistedSignCounts[i] > persistedSignCounts[i - 1])
+        }
+    }
+
+    @Test
+    fun updateSignCount_rejectsCountThatDidNotIncrease() {
+        val registeredCredential = RegisteredCredential("user",
+                AuthenticatorImpl(AttestedCredentialData(), NoneAttestationStatement(), 0))
+        var persistedSignCount: Long? = null
+
+        // Authenticators without a counter always send 0
+        assertTrue(registeredCredential.updateSignCount(0) { persistedSignCount = it })
+        assertTrue(registeredCredential.updateSignCount(5) { persistedSignCount = it })
+        assertTrue(!registeredCredential.updateSignCount(5) { persistedSignCount = it })
+        assertTrue(!registeredCredential.updateSignCount(0) { persistedSignCount = it })
+
+        assertNotNull(persistedSignCount)
+        assertEquals(5L, persistedSignCount)
+        assertEquals(5L, registeredCredential.authenticator.counter)
+    }
+
+    // Starts all ceremonies at once, and waits for them to finish
+    private fun runCeremonies(ceremony: suspend (index: Int) -> Unit) {
+        runBlocking(Dispatchers.Default) {
+            withTimeout(TIMEOUT_MS) {
+                (0 until CEREMONY_COUNT).map { index -> async { ceremony(index) } }.awaitAll()
+            }
+        }
+    }
+
+    companion object {
+        private const val CEREMONY_COUNT = 1000
+        private const val TIMEOUT_MS = 60_000L
+    }
+}
@@ -1,7 +1,6 @@
 package de.cotech.hw.ssh.sample
 
 import android.os.Bundle
-import android.os.SystemClock
 import android.text.method.LinkMovementMethod
 import android.util.Log
 import android.view.LayoutInflater
@@ -15,6 +14,7 @@ import com.jcraft.jsch.Identity
 import com.jcraft.jsch.JSch
 import com.jcraft.jsch.JSchException
 import com.jcraft.jsch.Logger
+import com.jcraft.jsch.Session
 import de.cotech.hw.SecurityKeyAuthenticator
 import de.cotech.hw.openpgp.OpenPgpSecurityKey
 import de.cotech.hw.openpgp.OpenPgpSecurityKeyDialogFragment
@@ -29,10 +29,11 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.async
 import kotlinx.coroutines.launch
-import java.io.ByteArrayOutputStream
 import java.io.IOException
 
 class JschFragment : Fragment() {
+    private lateinit var outputSink: SshOutputSink
+    private lateinit var publicKeyCache: SshPublicKeyCache
 
     override fun onCreateView(inflater: LayoutInflater, container: ViewGroup?, savedInstanceState: Bundle?): View? {
         val view = inflater.inflate(R.layout.fragment_jsch, container, false)
@@ -47,6 +48,14 @@ class JschFragment : Fragment() {
             }
         })
 
+        publicKeyCache = SshPublicKeyCache(requireContext())
+        outputSink = SshOutputSink { text, length ->
+            val logView = textLog ?: return@SshOutputSink
+            logView.setText(text, 0, length)
+            scrollLog.fullScroll(View.FOCUS_DOWN)
+        }
+
+        // The security key is needed to tell which session to reuse, but only signs for new ones
         view.findViewById<View>(R.id.buttonConnect).setOnClickListener { showSecurityKeyDialog() }
 
         return view
@@ -54,8 +63,8 @@ class JschFragment : Fragment() {
 
     private fun showSecurityKeyDialog() {
         when (spinnerCardType.selectedItem) {
-            "OpenPGP" -> showOpenPgpSecurityKeyDialog()
-            "PIV" -> showPivSecurityKeyDialog()
+            SshPublicKeyCache.CARD_TYPE_OPENPGP -> showOpenPgpSecurityKeyDialog()
+            SshPublicKeyCache.CARD_TYPE_PIV -> showPivSecurityKeyDialog()
         }
     }
 
@@ -99,7 +108,8 @@ class JschFragment : Fragment() {
             pinProvider: PinProvider?
     ) {
         val securityKeyAuthenticator = securityKey.createSecurityKeyAuthenticator(pinProvider)
-        connectToSsh(dialogInterface, securityKeyAuthenticator)
+        // PivSecurityKey exposes no serial number to tell cards apart, so PIV keys are always read from the card
+        connectToSsh(dialogInterface, securityKeyAuthenticator, null)
     }
 
     private fun connectToSshOpenPgp(
@@ -108,26 +118,45 @@ class JschFragment : Fragment() {
             pinProvider: PinProvider?
     ) {
         val securityKeyAuthenticator = securityKey.createSecurityKeyAuthenticator(pinProvider)
-        connectToSsh(dialogInterface, securityKeyAuthenticator)
+        connectToSsh(dialogInterface, securityKeyAuthenticator, SshPublicKeyCache.openPgpCardId(securityKey.openPgpInstanceAid))
     }
 
     private fun connectToSsh(
             dialogInterface: SecurityKeyDialogInterface,
-            securityKeyAuthenticator: SecurityKeyAuthenticator
+            securityKeyAuthenticator: SecurityKeyAuthenticator,
+            cardId: String?
     ) = GlobalScope.launch(Dispatchers.Main) {
         val loginName = textDataUser.text.toString()
         val loginHost = textDataHost.text.toString()
-        textLog.text = ""
+        val useCertificate = checkBoxUseCertificate.isChecked
+        val slot = if (useCertificate) SshPublicKeyCache.SLOT_AUTHENTICATION_CERTIFICATE else SshPublicKeyCache.SLOT_AUTHENTICATION_KEY
+        outputSink.clear()
 
-        dialogInterface.postProgressMessage("Retrieving public key/certificate from Security Key…")
+        val cachedPublicKey = cardId?.let { publicKeyCache.get(it, slot) }
         val deferred = GlobalScope.async(Dispatchers.IO) {
-            val securityKeySshAuthenticator =
-                    if (checkBoxUseCertificate.isChecked) SecurityKeySshAuthenticator.fromOpenSshCertificate(securityKeyAuthenticator)
-                    else SecurityKeySshAuthenticator.fromPublicKey(securityKeyAuthenticator)
-
-            appendToLog("SecurityKeySshAuthenticator is using SSH algorithm ${securityKeySshAuthenticator.sshPublicKeyAlgorithmName}")
-
-            val securityKeyIdentity = SecurityKeyJschIdentity(dialogInterface, loginName, securityKeySshAuthenticator)
+            val securityKeyIdentity = if (cachedPublicKey != null) {
+                // only the signature needs the security key
+                val algorithmName = cachedPublicKey.algorithmName
+                appendToLog("Using cached public key/certificate with SSH algorithm $algorithmName")
+                SecurityKeyJschIdentity(dialogInterface, loginName, algorithmName, cachedPublicKey.publicKeyBlob) { data ->
+                    SshSignatureEncoder.sign(securityKeyAuthenticator, algorithmName, data ?: ByteArray(0))
+                }
+            } else {
+                dialogInterface.postProgressMessage("Retrieving public key/certificate from Security Key…")
+                val securityKeySshAuthenticator =
+                        if (useCertificate) SecurityKeySshAuthenticator.fromOpenSshCertificate(securityKeyAuthenticator)
+                        else SecurityKeySshAuthenticator.fromPublicKey(securityKeyAuthenticator)
+
+                val algorithmName = securityKeySshAuthenticator.sshPublicKeyAlgorithmName
+                appendToLog("SecurityKeySshAuthenticator is using SSH algorithm $algorithmName")
+                if (cardId != null && SshSignatureEncoder.isSupported(algorithmName)) {
+                    publicKeyCache.put(cardId, slot, algorithmName, securityKeySshAuthenticator.sshPublicKeyBlob)
+                }
+
+                SecurityKeyJschIdentity(dialogInterface, loginName, algorithmName, securityKeySshAuthenticator.sshPublicKeyBlob) { data ->
+                    securityKeySshAuthenticator.authenticateSshChallenge(data)
+                }
+            }
             jschConnection(dialogInterface, loginHost, securityKeyIdentity)
         }
 
@@ -135,6 +164,11 @@ class JschFragment : Fragment() {
             deferred.await()
         } catch (e: JSchException) {
             Log.e(MyCustomApplication.TAG, "JschException", e)
+            // the server rejected the cached key, maybe the key on the card changed since, read it again next time.
+            // Other failures, e.g. network errors or a removed security key, say nothing about the cached key.
+            if (cardId != null && cachedPublicKey != null && e.message == JSCH_AUTH_FAIL_MESSAGE) {
+                publicKeyCache.invalidate(cardId, slot)
+            }
             // wrap in IOException and show
             dialogInterface.postError(IOException(e.message))
             // unwrap IOExceptions thrown in SshIdentity and handle them in SecurityKeyDialogFragment
@@ -147,69 +181,87 @@ class JschFragment : Fragment() {
     }
 
     @WorkerThread
-    private fun jschConnection(
+    private suspend fun jschConnection(
             dialogInterface: SecurityKeyDialogInterface,
             loginHost: String,
             securityKeyIdentity: SecurityKeyJschIdentity
     ) {
-        dialogInterface.postProgressMessage("Connecting to SSH server…")
-
-        val jsch = JSch()
-        // disable strict host key checking for testing purposes
-        JSch.setConfig("StrictHostKeyChecking", "no")
-        jsch.addIdentity(securityKeyIdentity, null)
-        val sshSession = jsch.getSession(securityKeyIdentity.name, loginHost)
+        val loginName = securityKeyIdentity.name
+        val publicKeyId = SshConnectionManager.publicKeyId(securityKeyIdentity.getPublicKeyBlob())
+        var connected = false
+        val lease = connectionManager.acquireOrConnect(loginName, loginHost, publicKeyId) {
+            dialogInterface.postProgressMessage("Connecting to SSH server…")
+            connected = true
+
+            val jsch = JSch()
+            // disable strict host key checking for testing purposes
+            JSch.setConfig("StrictHostKeyChecking", "no")
+            jsch.addIdentity(securityKeyIdentity, null)
+            val sshSession = jsch.getSession(loginName, loginHost)
+            sshSession.serverAliveInterval = SERVER_ALIVE_INTERVAL_MS
+            sshSession.connect(TIMEOUT_MS_CONNECT)
+            sshSession
+        }
 
-        val baos = ByteArrayOutputStream()
-        baos.write("Server Output: ".toByteArray(), 0, 15)
+        // close dialog after successful authentication
+        dialogInterface.successAndDismiss()
+        if (connected) {
+            appendToLog("SSH connection successful!")
+        } else {
+            appendToLog("Reusing authenticated SSH session to $loginName@$loginHost, no signature needed")
+        }
+        runShell(lease)
+    }
 
-        sshSession.connect(TIMEOUT_MS_CONNECT)
+    // Must be called with a session acquired from connectionManager, which is released here
+    @WorkerThread
+    private suspend fun runShell(lease: SshConnectionManager.Lease<Session>) {
+        val sshSession = lease.connection
+        try {
+            appendToLog("")
+            appendToLog("Server Output:")
 
-        val channel = sshSession.openChannel("shell")
-        channel.outputStream = baos
-        channel.connect(TIMEOUT_MS_CHANNEL)
+            val channel = sshSession.openChannel("shell")
+            val closeSignal = SshCloseSignal()
+            // server output is shown while it arrives
+            channel.outputStream = closeSignal.wrapOutputStream(outputSink.openStream())
+            channel.connect(TIMEOUT_MS_CHANNEL)
 
-        val startTime = SystemClock.elapsedRealtime()
-        while (channel.isConnected) {
-            if (SystemClock.elapsedRealtime() - startTime > MAX_CONNECTION_TIME) {
-                appendToLog("SSH client automatically disconnected after $MAX_CONNECTION_TIME ms.")
-                channel.disconnect()
-                break
+            if (!closeSignal.awaitClose(MAX_CONNECTION_TIME.toLong())) {
+                appendToLog("SSH channel automatically closed after $MAX_CONNECTION_TIME ms.")
             }
+            // only the channel is closed, the session stays open for the next one
+            channel.disconnect()
+        } catch (e: JSchException) {
+            connectionManager.invalidate(lease)
+            throw e
+        } finally {
+            connectionManager.release(lease)
         }
-
-        // close dialog after successful authentication
-        dialogInterface.successAndDismiss()
-        appendToLog("SSH connection successful!")
-        appendToLog("")
-        appendToLog(baos.toString())
     }
 
     @AnyThread
     private fun appendToLog(dataText: String) {
         Log.d(MyCustomApplication.TAG, String.format("text: %s", dataText))
-        scrollLog.post {
-            val appendedText = "${textLog.text}\n$dataText"
-            textLog.text = appendedText
-            scrollLog.fullScroll(View.FOCUS_DOWN)
-            // scrollLog.smoothScrollTo(0, scrollLog.height)
-        }
+        outputSink.appendLine(dataText)
     }
 
     class SecurityKeyJschIdentity(
             private val dialogInterface: SecurityKeyDialogInterface,
             private val loginName: String,
-            private val securityKeyAuthenticator: SecurityKeySshAuthenticator
+            private val algorithmName: String,
+            private val publicKeyBlob: ByteArray,
+            private val authenticateSshChallenge: (ByteArray?) -> ByteArray
     ) : Identity {
         override fun getName() = loginName
-        override fun getAlgName() = securityKeyAuthenticator.sshPublicKeyAlgorithmName
-        override fun getPublicKeyBlob() = securityKeyAuthenticator.sshPublicKeyBlob
+        override fun getAlgName() = algorithmName
+        override fun getPublicKeyBlob() = publicKeyBlob
         override fun getSignature(data: ByteArray?): ByteArray {
             dialogInterface.postProgressMessage("Authenticating with Security Key…")
 
             // wrap IOExceptions thrown by authenticateSshChallenge() into JschExceptions to handle them later in SecurityKeyDialogFragment
             try {
-                return securityKeyAuthenticator.authenticateSshChallenge(data)
+                return authenticateSshChallenge(data)
             } catch (e: IOException) {
                 throw JSchException("IOException", e)
             }
@@ -227,5 +279,15 @@ class JschFragment : Fragment() {
         const val MAX_CONNECTION_TIME = 5000
         const val TIMEOUT_MS_CONNECT = 10000
         const val TIMEOUT_MS_CHANNEL = 10000
+        const val SERVER_ALIVE_INTERVAL_MS = 30000
+
+        // JSch has no exception type of its own for rejected keys
+        private const val JSCH_AUTH_FAIL_MESSAGE = "Auth fail"
+
+        // Shared by all instances, so authenticated sessions outlive the fragment
+        private val connectionManager = SshConnectionManager<Session>(
+                isAlive = { it.isConnected },
+                close = { it.disconnect() }
+        )
     }
 }
\ No newline at end of file
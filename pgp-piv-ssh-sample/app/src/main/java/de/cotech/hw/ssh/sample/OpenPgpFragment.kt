@@ -111,9 +111,12 @@ class OpenPgpFragment : Fragment() {
             pinProvider: PinProvider,
             algorithm: OpenPgpSecurityKey.AlgorithmConfig
     ) = GlobalScope.launch(Dispatchers.Main) {
+        val publicKeyCache = SshPublicKeyCache(requireContext())
         val deferred = GlobalScope.async(Dispatchers.IO) {
             dialogInterface.postProgressMessage("Generating keys…")
             securityKey.setupPairedKey(pinProvider, algorithm)
+            // the SSH public key cached for this card is outdated now
+            publicKeyCache.invalidate(SshPublicKeyCache.openPgpCardId(securityKey.openPgpInstanceAid))
             dialogInterface.successAndDismiss()
         }
 
@@ -0,0 +1,147 @@
+package de.cotech.hw.ssh.sample
+
+import androidx.annotation.WorkerThread
+import net.schmizz.sshj.SSHClient
+import net.schmizz.sshj.sftp.OpenMode
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.channels.Channels
+import java.util.EnumSet
+import java.util.concurrent.TimeUnit
+
+/**
+ * Transfers files over SFTP on an already authenticated SSHJ connection.
+ *
+ * Instead of waiting for the server to confirm each read or write request before sending the
+ * next one, up to [Config.maxRequestsInFlight] requests are kept in flight, so throughput is no
+ * longer bound by the round trip time. A value of 1 gives the plain sequential transfer, for
+ * comparison. Local files are transferred with FileChannel.transferTo and transferFrom, and all
+ * streams are closed even if a transfer fails.
+ */
+class SftpTransfer(private val sshClient: SSHClient, private val config: Config = Config()) {
+    class Config(
+            val maxRequestsInFlight: Int = DEFAULT_MAX_REQUESTS_IN_FLIGHT,
+            // Payload of each read or write request, should fit into one SSH packet
+            val requestSize: Int = DEFAULT_REQUEST_SIZE
+    )
+
+    interface ProgressListener {
+        fun onProgress(transferredBytes: Long, totalBytes: Long, bytesPerSecond: Double)
+    }
+
+    class Result(val bytes: Long, val timeMs: Long) {
+        val bytesPerSecond: Double
+            get() = if (timeMs == 0L) 0.0 else bytes * 1000.0 / timeMs
+
+        override fun toString() = "$bytes bytes in $timeMs ms (${"%.1f".format(bytesPerSecond / 1024)} KiB/s)"
+    }
+
+    @WorkerThread
+    fun upload(localFile: File, remotePath: String, progressListener: ProgressListener? = null): Result {
+        val progress = Progress(localFile.length(), progressListener)
+        sshClient.newSFTPClient().use { sftpClient ->
+            sftpClient.open(remotePath, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC)).use { remoteFile ->
+                // closing waits for the server to confirm the remaining writes
+                requestSizedStream(remoteFile.RemoteFileOutputStream(0, config.maxRequestsInFlight)).use { remoteOut ->
+                    val remoteChannel = Channels.newChannel(remoteOut)
+                    FileInputStream(localFile).channel.use { localChannel ->
+                        val size = localChannel.size()
+                        var position = 0L
+                        while (position < size) {
+                            val count = localChannel.transferTo(position, minOf(size - position, TRANSFER_SLICE_SIZE), remoteChannel)
+                            position += count
+                            progress.add(count)
+                        }
+                    }
+                }
+            }
+        }
+        return progress.finish()
+    }
+
+    @WorkerThread
+    fun download(remotePath: String, localFile: File, progressListener: ProgressListener? = null): Result {
+        sshClient.newSFTPClient().use { sftpClient ->
+            sftpClient.open(remotePath, EnumSet.of(OpenMode.READ)).use { remoteFile ->
+                val size = remoteFile.length()
+                val progress = Progress(size, progressListener)
+                requestSizedStream(remoteFile.ReadAheadRemoteFileInputStream(config.maxRequestsInFlight)).use { remoteIn ->
+                    val remoteChannel = Channels.newChannel(remoteIn)
+                    FileOutputStream(localFile).channel.use { localChannel ->
+                        var position = 0L
+                        while (position < size) {
+                            val count = localChannel.transferFrom(remoteChannel, position, minOf(size - position, TRANSFER_SLICE_SIZE))
+                            if (count == 0L) {
+                                // the remote file got shorter in the meantime
+                                break
+                            }
+                            position += count
+                            progress.add(count)
+                        }
+                    }
+                }
+                return progress.finish()
+            }
+        }
+    }
+
+    // SSHJ sends one request per write or read call on its streams, and channel transfers only pass
+    // on 8 KiB at a time. Buffering in between keeps requests at the configured size.
+    private fun requestSizedStream(remoteOut: OutputStream) = BufferedOutputStream(remoteOut, config.requestSize)
+
+    private fun requestSizedStream(remoteIn: InputStream) = BufferedInputStream(remoteIn, config.requestSize)
+
+    private class Progress(private val totalBytes: Long, private val progressListener: ProgressListener?) {
+        private val startTime = elapsedTimeMs()
+        private var transferredBytes = 0L
+        private var lastReportTime = startTime
+
+        fun add(bytes: Long) {
+            transferredBytes += bytes
+            val now = elapsedTimeMs()
+            if (progressListener != null && now - lastReportTime >= PROGRESS_INTERVAL_MS) {
+                lastReportTime = now
+                progressListener.onProgress(transferredBytes, totalBytes, transferredBytes * 1000.0 / maxOf(1, now - startTime))
+            }
+        }
+
+        fun finish(): Result {
+            val result = Result(transferredBytes, elapsedTimeMs() - startTime)
+            progressListener?.onProgress(transferredBytes, totalBytes, result.bytesPerSecond)
+            return result
+        }
+
+        // Not SystemClock, so this also runs in plain JVM tests. Only differences of it are meaningful.
+        private fun elapsedTimeMs() = TimeUnit.NANOSECONDS.toMillis(System.nanoTime())
+    }
+
+    companion object {
+        const val DEFAULT_MAX_REQUESTS_IN_FLIGHT = 16
+        const val DEFAULT_REQUEST_SIZE = 32 * 1024
+
+        // Larger than SSHJ's defaults, so a pipelined transfer isn't throttled by window adjustments
+        const val DEFAULT_WINDOW_SIZE = 4L * 1024 * 1024
+        const val DEFAULT_MAX_PACKET_SIZE = 64 * 1024
+
+        private const val PROGRESS_INTERVAL_MS = 250L
+        // Progress is reported after each slice
+        private const val TRANSFER_SLICE_SIZE = 1024 * 1024L
+
+        /**
+         * Sets the channel window and packet sizes. Only affects channels opened afterwards.
+         */
+        fun configureConnection(
+                sshClient: SSHClient,
+                windowSize: Long = DEFAULT_WINDOW_SIZE,
+                maxPacketSize: Int = DEFAULT_MAX_PACKET_SIZE
+        ) {
+            sshClient.connection.windowSize = windowSize
+            sshClient.connection.maxPacketSize = maxPacketSize
+        }
+    }
+}
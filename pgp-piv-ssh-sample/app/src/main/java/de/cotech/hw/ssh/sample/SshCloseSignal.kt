@@ -0,0 +1,98 @@
+package de.cotech.hw.ssh.sample
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.withTimeoutOrNull
+import net.schmizz.sshj.common.DisconnectReason
+import net.schmizz.sshj.transport.DisconnectListener
+import java.io.FilterOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import kotlin.concurrent.thread
+
+/**
+ * Signals that an SSH channel or session has closed, so callers can wait for it without polling.
+ *
+ * The close notifications of JSch and SSHJ are hooked up to [signalClosed], and [awaitClose]
+ * suspends until one of them fires or the timeout passes. No thread is busy while waiting.
+ */
+class SshCloseSignal {
+    private val closed = CompletableDeferred<Unit>()
+
+    val isClosed: Boolean
+        get() = closed.isCompleted
+
+    fun signalClosed() {
+        closed.complete(Unit)
+    }
+
+    /**
+     * Wraps the output stream of a JSch channel. JSch closes it when the channel closes.
+     */
+    fun wrapOutputStream(outputStream: OutputStream): OutputStream = object : FilterOutputStream(outputStream) {
+        // FilterOutputStream writes arrays byte by byte, pass them through as a whole
+        override fun write(b: ByteArray, off: Int, len: Int) = outputStream.write(b, off, len)
+
+        override fun close() {
+            try {
+                super.close()
+            } finally {
+                signalClosed()
+            }
+        }
+    }
+
+    /**
+     * Copies the output of an SSHJ channel on a thread of its own, and signals once it reaches EOF,
+     * i.e. when the server closed the channel, or the connection dropped. The thread is blocked in
+     * read while the channel is idle.
+     */
+    fun copyUntilClosed(inputStream: InputStream, outputStream: OutputStream, bufferSize: Int, threadName: String): Thread =
+            thread(name = threadName, isDaemon = true) {
+                try {
+                    inputStream.copyTo(outputStream, bufferSize)
+                } catch (e: IOException) {
+                    // the channel is gone just the same
+                } finally {
+                    signalClosed()
+                }
+            }
+
+    /**
+     * Suspends until the channel or session has closed, and returns false if the timeout passed first.
+     */
+    suspend fun awaitClose(timeoutMs: Long): Boolean {
+        return withTimeoutOrNull(timeoutMs) { closed.await() } != null
+    }
+
+    /**
+     * Signals all registered close signals when an SSHJ transport disconnects, e.g. because the
+     * server went away or keep-alives failed. Set it as disconnect listener of the transport before
+     * connecting, and register a close signal for each channel opened on it.
+     */
+    class SshjDisconnectListener : DisconnectListener {
+        private val closeSignals = HashSet<SshCloseSignal>()
+        private var disconnected = false
+
+        @Synchronized
+        fun register(closeSignal: SshCloseSignal) {
+            if (disconnected) {
+                closeSignal.signalClosed()
+            } else {
+                closeSignals.add(closeSignal)
+            }
+        }
+
+        @Synchronized
+        fun unregister(closeSignal: SshCloseSignal) {
+            closeSignals.remove(closeSignal)
+        }
+
+        @Synchronized
+        override fun notifyDisconnect(reason: DisconnectReason?, message: String?) {
+            disconnected = true
+            closeSignals.forEach { it.signalClosed() }
+            closeSignals.clear()
+        }
+    }
+}
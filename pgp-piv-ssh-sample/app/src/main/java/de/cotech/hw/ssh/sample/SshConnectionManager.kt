@@ -0,0 +1,160 @@
+package de.cotech.hw.ssh.sample
+
+import android.os.SystemClock
+import android.util.Log
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Keeps authenticated SSH connections alive, keyed by user@host and the public key they were
+ * authenticated with.
+ *
+ * Authenticating a connection needs a signature from the security key. Shell, exec and SFTP
+ * channels can all be opened over one connection, so only the first channel to a host has to
+ * talk to the hardware. A connection is only handed out for the public key that authenticated it,
+ * see [publicKeyId], so a different security key never gets to use it. Connections that have no open channels are closed by a shared background
+ * sweeper once they have been idle for [idleTimeoutMs].
+ *
+ * Callers [acquire] a connection before opening channels on it, and [release] the returned [Lease]
+ * afterwards. The lease refers to exactly the connection that was acquired, so releasing it never
+ * touches a connection that replaced it in the meantime.
+ */
+class SshConnectionManager<C : Any>(
+        private val isAlive: (C) -> Boolean,
+        private val close: (C) -> Unit,
+        private val idleTimeoutMs: Long = DEFAULT_IDLE_TIMEOUT_MS,
+        private val clock: () -> Long = SystemClock::elapsedRealtime
+) {
+    private class Entry<C>(val connection: C, var lastUsedTime: Long) {
+        var useCount = 0
+    }
+
+    /**
+     * A connection in use. Must be given back exactly once, with [release] or [invalidate].
+     */
+    class Lease<C> internal constructor(val connection: C, internal val key: String) {
+        internal val released = AtomicBoolean()
+    }
+
+    private val connections = HashMap<String, Entry<C>>()
+    // Connecting takes a while, so it only blocks other callers for the same key
+    private val connectLocks = ConcurrentHashMap<String, Any>()
+
+    init {
+        sweeper.scheduleWithFixedDelay({ closeIdleConnections() }, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Returns the live connection for user@host that was authenticated with this public key, and
+     * marks it as in use, or null if there is none.
+     */
+    fun acquire(user: String, host: String, publicKeyId: String): Lease<C>? {
+        val key = connectionKey(user, host, publicKeyId)
+        var deadConnection: C? = null
+        val connection = synchronized(connections) {
+            val entry = connections[key] ?: return null
+            if (!isAlive(entry.connection)) {
+                connections.remove(key)
+                deadConnection = entry.connection
+                null
+            } else {
+                entry.useCount++
+                entry.lastUsedTime = clock()
+                entry.connection
+            }
+        }
+        deadConnection?.let { closeQuietly(it) }
+        return connection?.let { Lease(it, key) }
+    }
+
+    /**
+     * Like [acquire], but creates and remembers a new connection if there is no live one. The
+     * connect function is expected to return a connection authenticated with this public key.
+     */
+    fun acquireOrConnect(user: String, host: String, publicKeyId: String, connect: () -> C): Lease<C> {
+        val key = connectionKey(user, host, publicKeyId)
+        val connectLock = connectLocks.putIfAbsent(key, Any()) ?: connectLocks.getValue(key)
+        synchronized(connectLock) {
+            acquire(user, host, publicKeyId)?.let { return it }
+
+            val connection = connect()
+            val entry = Entry(connection, clock())
+            entry.useCount = 1
+            val replaced = synchronized(connections) { connections.put(key, entry) }
+            replaced?.let { closeQuietly(it.connection) }
+            return Lease(connection, key)
+        }
+    }
+
+    fun release(lease: Lease<C>) {
+        if (!lease.released.compareAndSet(false, true)) {
+            return
+        }
+        synchronized(connections) {
+            // If the connection was invalidated or replaced, there is nothing left to release
+            val entry = connections[lease.key]?.takeIf { it.connection === lease.connection } ?: return
+            entry.useCount--
+            entry.lastUsedTime = clock()
+        }
+    }
+
+    /**
+     * Releases and closes the leased connection, e.g. after a channel on it failed. A connection
+     * that replaced it in the meantime stays open.
+     */
+    fun invalidate(lease: Lease<C>) {
+        lease.released.set(true)
+        synchronized(connections) {
+            if (connections[lease.key]?.connection === lease.connection) {
+                connections.remove(lease.key)
+            }
+        }
+        closeQuietly(lease.connection)
+    }
+
+    fun closeIdleConnections() {
+        val now = clock()
+        val idleConnections = ArrayList<C>()
+        synchronized(connections) {
+            val iterator = connections.values.iterator()
+            while (iterator.hasNext()) {
+                val entry = iterator.next()
+                val idle = entry.useCount <= 0 && now - entry.lastUsedTime >= idleTimeoutMs
+                if (idle || !isAlive(entry.connection)) {
+                    iterator.remove()
+                    idleConnections.add(entry.connection)
+                }
+            }
+        }
+        // Disconnecting talks to the server, so don't hold the lock for it
+        idleConnections.forEach { closeQuietly(it) }
+    }
+
+    private fun closeQuietly(connection: C) {
+        try {
+            close(connection)
+        } catch (e: Exception) {
+            Log.e(MyCustomApplication.TAG, "Exception while closing SSH connection", e)
+        }
+    }
+
+    private fun connectionKey(user: String, host: String, publicKeyId: String) = "$user@$host/$publicKeyId"
+
+    companion object {
+        const val DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000L
+        private const val SWEEP_INTERVAL_MS = 30 * 1000L
+
+        /**
+         * Identifies a public key by the SHA-256 hash of its encoding, e.g. the SSH public key blob.
+         */
+        fun publicKeyId(encodedPublicKey: ByteArray): String =
+                MessageDigest.getInstance("SHA-256").digest(encodedPublicKey).joinToString("") { "%02x".format(it) }
+
+        private val sweeper = Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, "SshConnectionManager-sweeper").apply { isDaemon = true }
+        }
+    }
+}
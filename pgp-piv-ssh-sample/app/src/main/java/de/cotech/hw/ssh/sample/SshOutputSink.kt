@@ -0,0 +1,192 @@
+package de.cotech.hw.ssh.sample
+
+import android.os.Handler
+import android.os.Looper
+import android.view.Choreographer
+import androidx.annotation.AnyThread
+import androidx.annotation.UiThread
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.charset.CharsetDecoder
+import java.nio.charset.CodingErrorAction
+
+/**
+ * Collects SSH output for display, with bounded memory.
+ *
+ * Server output is decoded as UTF-8 while it streams in, and only the last [capacity] characters
+ * are kept in a ring buffer, which decoded chunks are copied into as a whole. The UI is updated at
+ * most once per frame, see [FrameScheduler]. Each update copies the ring into a snapshot array that
+ * is reused across frames and handed to e.g. TextView.setText(char[], int, int), so long running
+ * commands neither grow the heap nor create a String per frame.
+ */
+class SshOutputSink(
+        private val capacity: Int = DEFAULT_CAPACITY,
+        private val frameScheduler: FrameScheduler = ChoreographerFrameScheduler(),
+        @UiThread private val onUpdate: (text: CharArray, length: Int) -> Unit
+) {
+    /**
+     * Runs a callback with the next frame, on the thread that [onUpdate] must be called on.
+     */
+    interface FrameScheduler {
+        @AnyThread
+        fun postFrameCallback(callback: () -> Unit)
+    }
+
+    /**
+     * Runs callbacks with the next frame drawn on the main thread.
+     */
+    class ChoreographerFrameScheduler : FrameScheduler {
+        private val mainHandler = Handler(Looper.getMainLooper())
+
+        override fun postFrameCallback(callback: () -> Unit) {
+            // Choreographer is per looper thread, so it has to be fetched on the main thread
+            mainHandler.post { Choreographer.getInstance().postFrameCallback { callback() } }
+        }
+    }
+
+    private val ring = CharArray(capacity)
+    private var start = 0
+    private var length = 0
+    private var updateScheduled = false
+
+    // Only touched on the UI thread
+    private val snapshot = CharArray(capacity)
+
+    /**
+     * Returns a stream that decodes the bytes written to it into this sink. Use one stream per
+     * source, e.g. stdout and stderr, so characters split across writes are decoded correctly.
+     */
+    fun openStream(): OutputStream = DecodingOutputStream()
+
+    @AnyThread
+    fun appendLine(text: String) {
+        val line = CharBuffer.wrap("\n" + text)
+        synchronized(ring) {
+            appendChars(line)
+        }
+    }
+
+    @AnyThread
+    fun clear() {
+        synchronized(ring) {
+            start = 0
+            length = 0
+            scheduleUpdate()
+        }
+    }
+
+    override fun toString(): String {
+        synchronized(ring) {
+            val chars = CharArray(length)
+            copyTo(chars)
+            return String(chars)
+        }
+    }
+
+    // Must hold the ring lock
+    private fun copyTo(destination: CharArray) {
+        val firstPart = minOf(length, capacity - start)
+        System.arraycopy(ring, start, destination, 0, firstPart)
+        System.arraycopy(ring, 0, destination, firstPart, length - firstPart)
+    }
+
+    // Must hold the ring lock
+    private fun appendChars(chars: CharBuffer) {
+        if (chars.remaining() > capacity) {
+            // only the end would be left anyway
+            chars.position(chars.limit() - capacity)
+        }
+        while (chars.hasRemaining()) {
+            val end = (start + length) % capacity
+            val count = minOf(chars.remaining(), capacity - end)
+            chars.get(ring, end, count)
+            val overflow = length + count - capacity
+            if (overflow > 0) {
+                // full, the oldest characters were overwritten
+                start = (start + overflow) % capacity
+                length = capacity
+            } else {
+                length += count
+            }
+        }
+        scheduleUpdate()
+    }
+
+    // Must hold the ring lock
+    private fun scheduleUpdate() {
+        if (updateScheduled) {
+            return
+        }
+        updateScheduled = true
+        frameScheduler.postFrameCallback { update() }
+    }
+
+    @UiThread
+    private fun update() {
+        val snapshotLength = synchronized(ring) {
+            updateScheduled = false
+            copyTo(snapshot)
+            length
+        }
+        onUpdate(snapshot, snapshotLength)
+    }
+
+    private inner class DecodingOutputStream : OutputStream() {
+        private val decoder: CharsetDecoder = Charsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+        private val byteBuffer = ByteBuffer.allocate(DECODE_BUFFER_SIZE)
+        private val charBuffer = CharBuffer.allocate(DECODE_BUFFER_SIZE)
+
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        @Synchronized
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            var offset = off
+            val end = off + len
+            while (offset < end) {
+                val count = minOf(byteBuffer.remaining(), end - offset)
+                byteBuffer.put(b, offset, count)
+                offset += count
+                decode(false)
+            }
+        }
+
+        // The stream may be closed by the SSH library when a channel ends, the sink itself stays usable
+        @Synchronized
+        override fun close() {
+            decode(true)
+            decoder.flush(charBuffer)
+            drainChars()
+            decoder.reset()
+        }
+
+        private fun decode(endOfInput: Boolean) {
+            byteBuffer.flip()
+            do {
+                val result = decoder.decode(byteBuffer, charBuffer, endOfInput)
+                drainChars()
+            } while (result.isOverflow)
+            // Keep an incomplete trailing character for the next write
+            byteBuffer.compact()
+        }
+
+        private fun drainChars() {
+            charBuffer.flip()
+            if (charBuffer.hasRemaining()) {
+                synchronized(ring) {
+                    appendChars(charBuffer)
+                }
+            }
+            charBuffer.clear()
+        }
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY = 64 * 1024
+        private const val DECODE_BUFFER_SIZE = 8 * 1024
+    }
+}
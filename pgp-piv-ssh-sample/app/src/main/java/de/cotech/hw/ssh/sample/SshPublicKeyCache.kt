@@ -0,0 +1,75 @@
+package de.cotech.hw.ssh.sample
+
+import android.content.Context
+import android.util.Base64
+
+/**
+ * Remembers the SSH public key of security key slots across app restarts.
+ *
+ * Reading the public key or OpenSSH certificate from the card takes extra APDUs before the SSH
+ * handshake can even start. With a cached key, the security key is only needed for the signature.
+ * Entries are stored per card and slot, like an authorized_keys line: the algorithm name and the
+ * Base64 encoded public key blob. A card is identified by a card id, see [openPgpCardId]. Entries
+ * must be invalidated when the key on the card changes.
+ *
+ * Only the JSch login uses this cache. SecurityKeySshjAuthMethod always reads the key from the card.
+ */
+class SshPublicKeyCache(context: Context) {
+    class CachedPublicKey(val algorithmName: String, val publicKeyBlob: ByteArray)
+
+    private val preferences = context.applicationContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+
+    fun get(cardId: String, slot: String): CachedPublicKey? {
+        val entry = preferences.getString(cacheKey(cardId, slot), null) ?: return null
+        val separatorIndex = entry.indexOf(' ')
+        if (separatorIndex <= 0) {
+            return null
+        }
+        return try {
+            CachedPublicKey(
+                    entry.substring(0, separatorIndex),
+                    Base64.decode(entry.substring(separatorIndex + 1), Base64.NO_WRAP)
+            )
+        } catch (e: IllegalArgumentException) {
+            null
+        }
+    }
+
+    fun put(cardId: String, slot: String, algorithmName: String, publicKeyBlob: ByteArray) {
+        val entry = algorithmName + " " + Base64.encodeToString(publicKeyBlob, Base64.NO_WRAP)
+        preferences.edit().putString(cacheKey(cardId, slot), entry).apply()
+    }
+
+    fun invalidate(cardId: String, slot: String) {
+        preferences.edit().remove(cacheKey(cardId, slot)).apply()
+    }
+
+    /**
+     * Drops all slots of a card, e.g. after new keys were generated on it.
+     */
+    fun invalidate(cardId: String) {
+        val prefix = "$cardId/"
+        val editor = preferences.edit()
+        preferences.all.keys.filter { it.startsWith(prefix) }.forEach { editor.remove(it) }
+        editor.apply()
+    }
+
+    private fun cacheKey(cardId: String, slot: String) = "$cardId/$slot"
+
+    companion object {
+        private const val PREFERENCES_NAME = "ssh_public_keys"
+
+        const val CARD_TYPE_OPENPGP = "OpenPGP"
+        const val CARD_TYPE_PIV = "PIV"
+
+        const val SLOT_AUTHENTICATION_KEY = "authentication-key"
+        const val SLOT_AUTHENTICATION_CERTIFICATE = "authentication-certificate"
+
+        /**
+         * The card id of an OpenPGP card. Its application id contains the manufacturer and serial
+         * number, so every card has its own entries.
+         */
+        fun openPgpCardId(openPgpInstanceAid: ByteArray) =
+                CARD_TYPE_OPENPGP + ":" + openPgpInstanceAid.joinToString("") { "%02x".format(it) }
+    }
+}
@@ -0,0 +1,114 @@
+package de.cotech.hw.ssh.sample
+
+import androidx.annotation.VisibleForTesting
+import de.cotech.hw.SecurityKeyAuthenticator
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.math.BigInteger
+
+/**
+ * Creates SSH signatures with a security key for a public key that is already known, e.g. from
+ * [SshPublicKeyCache], so the key doesn't have to be read from the card first.
+ *
+ * Only ssh-rsa and the NIST ECDSA algorithms are handled, as well as OpenSSH certificates for them.
+ * Other algorithms have to go through SecurityKeySshAuthenticator.
+ */
+object SshSignatureEncoder {
+    private const val CERTIFICATE_SUFFIX = "-cert-v01@openssh.com"
+    private const val ALGORITHM_RSA = "ssh-rsa"
+    // r||s of P-256, P-384 and P-521
+    private val RAW_SIGNATURE_SIZES = setOf(64, 96, 132)
+
+    private val DIGEST_BY_ALGORITHM = mapOf(
+            ALGORITHM_RSA to "SHA-1",
+            "ecdsa-sha2-nistp256" to "SHA-256",
+            "ecdsa-sha2-nistp384" to "SHA-384",
+            "ecdsa-sha2-nistp521" to "SHA-512"
+    )
+
+    fun isSupported(algorithmName: String) = keyAlgorithm(algorithmName) in DIGEST_BY_ALGORITHM
+
+    /**
+     * Signs the challenge, and returns the signature in SSH wire format: the algorithm name,
+     * followed by the signature blob.
+     */
+    @Throws(IOException::class)
+    fun sign(securityKeyAuthenticator: SecurityKeyAuthenticator, algorithmName: String, challenge: ByteArray): ByteArray {
+        val keyAlgorithm = keyAlgorithm(algorithmName)
+        val digestAlgorithm = DIGEST_BY_ALGORITHM[keyAlgorithm]
+                ?: throw IOException("Unsupported SSH algorithm: $algorithmName")
+
+        val signature = securityKeyAuthenticator.authenticateWithDigest(challenge, digestAlgorithm)
+        val signatureBlob = if (keyAlgorithm == ALGORITHM_RSA) signature else encodeEcdsaSignature(signature)
+
+        val out = ByteArrayOutputStream()
+        val dataOut = DataOutputStream(out)
+        writeString(dataOut, keyAlgorithm.toByteArray(Charsets.US_ASCII))
+        writeString(dataOut, signatureBlob)
+        return out.toByteArray()
+    }
+
+    // A certificate is signed with the algorithm of the key it certifies
+    private fun keyAlgorithm(algorithmName: String) = algorithmName.removeSuffix(CERTIFICATE_SUFFIX)
+
+    // SSH wants r and s as two mpints. Cards return either a DER sequence of both integers, or r||s.
+    @VisibleForTesting
+    @Throws(IOException::class)
+    internal fun encodeEcdsaSignature(signature: ByteArray): ByteArray {
+        val (r, s) = when {
+            isDerSequence(signature) -> decodeDerSignature(signature)
+            signature.size in RAW_SIGNATURE_SIZES -> {
+                val half = signature.size / 2
+                Pair(BigInteger(1, signature.copyOfRange(0, half)), BigInteger(1, signature.copyOfRange(half, signature.size)))
+            }
+            else -> throw IOException("Malformed ECDSA signature of ${signature.size} bytes")
+        }
+        val out = ByteArrayOutputStream()
+        val dataOut = DataOutputStream(out)
+        // BigInteger adds a leading zero byte where needed, like mpint
+        writeString(dataOut, r.toByteArray())
+        writeString(dataOut, s.toByteArray())
+        return out.toByteArray()
+    }
+
+    // A DER sequence whose length spans the whole signature. Its content is checked by decodeDerSignature.
+    private fun isDerSequence(signature: ByteArray): Boolean {
+        if (signature.size < 2 || signature[0] != 0x30.toByte()) {
+            return false
+        }
+        val firstLengthByte = signature[1].toInt() and 0xff
+        return when {
+            firstLengthByte < 0x80 -> 2 + firstLengthByte == signature.size
+            firstLengthByte == 0x81 && signature.size > 2 -> 3 + (signature[2].toInt() and 0xff) == signature.size
+            else -> false
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun decodeDerSignature(signature: ByteArray): Pair<BigInteger, BigInteger> {
+        var offset = if (signature[1] == 0x81.toByte()) 3 else 2
+        val integers = ArrayList<BigInteger>(2)
+        while (offset < signature.size && integers.size < 2) {
+            if (signature[offset] != 0x02.toByte() || offset + 2 > signature.size) {
+                throw IOException("Malformed DER signature, expected an INTEGER at offset $offset")
+            }
+            val length = signature[offset + 1].toInt() and 0xff
+            offset += 2
+            if (length == 0 || length > 0x7f || offset + length > signature.size) {
+                throw IOException("Malformed DER signature, invalid INTEGER length $length")
+            }
+            integers.add(BigInteger(1, signature.copyOfRange(offset, offset + length)))
+            offset += length
+        }
+        if (integers.size != 2 || offset != signature.size) {
+            throw IOException("Malformed DER signature, expected exactly two INTEGERs")
+        }
+        return Pair(integers[0], integers[1])
+    }
+
+    private fun writeString(out: DataOutputStream, value: ByteArray) {
+        out.writeInt(value.size)
+        out.write(value)
+    }
+}
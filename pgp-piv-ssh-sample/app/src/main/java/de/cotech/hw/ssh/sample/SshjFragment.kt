@@ -1,7 +1,6 @@
 package de.cotech.hw.ssh.sample
 
 import android.os.Bundle
-import android.os.SystemClock
 import android.text.method.LinkMovementMethod
 import android.util.Log
 import android.view.LayoutInflater
@@ -32,10 +31,17 @@ import net.schmizz.sshj.common.LoggerFactory
 import net.schmizz.sshj.common.StreamCopier
 import net.schmizz.sshj.connection.channel.direct.Session
 import net.schmizz.sshj.transport.verification.PromiscuousVerifier
-import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
 import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.Random
 
 class SshjFragment : Fragment() {
+    private lateinit var outputSink: SshOutputSink
+    // The key of the last connection made here, SFTP transfers use that connection
+    @Volatile
+    private var connectedPublicKeyId: String? = null
 
     override fun onCreateView(inflater: LayoutInflater, container: ViewGroup?, savedInstanceState: Bundle?): View? {
         val view = inflater.inflate(R.layout.fragment_sshj, container, false)
@@ -50,7 +56,15 @@ class SshjFragment : Fragment() {
             }
         })
 
+        outputSink = SshOutputSink { text, length ->
+            val logView = textLog ?: return@SshOutputSink
+            logView.setText(text, 0, length)
+            scrollLog.fullScroll(View.FOCUS_DOWN)
+        }
+
+        // The security key is needed to tell which connection to reuse, but only signs for new ones
         view.findViewById<View>(R.id.buttonConnect).setOnClickListener { showSecurityKeyDialog() }
+        view.findViewById<View>(R.id.buttonSftp).setOnClickListener { startSftpTransfer() }
 
         return view
     }
@@ -120,12 +134,13 @@ class SshjFragment : Fragment() {
     ) = GlobalScope.launch(Dispatchers.Main) {
         val loginName = textDataUser.text.toString()
         val loginHost = textDataHost.text.toString()
-        textLog.text = ""
+        outputSink.clear()
 
         dialogInterface.postProgressMessage("Retrieving public key/certificate from Security Key…")
         val deferred = GlobalScope.async(Dispatchers.IO) {
+            val publicKeyId = SshConnectionManager.publicKeyId(securityKeyAuthenticator.retrievePublicKey().encoded)
             val securityKeySshjAuthMethod = SecurityKeySshjAuthMethod(securityKeyAuthenticator)
-            sshjConnection(dialogInterface, loginHost, loginName, securityKeySshjAuthMethod)
+            sshjConnection(dialogInterface, loginHost, loginName, publicKeyId, securityKeySshjAuthMethod)
         }
 
         try {
@@ -138,65 +153,165 @@ class SshjFragment : Fragment() {
     }
 
     @WorkerThread
-    private fun sshjConnection(
+    private suspend fun sshjConnection(
             dialogInterface: SecurityKeyDialogInterface,
             loginHost: String,
             loginName: String,
+            publicKeyId: String,
             securityKeySshjAuthMethod: SecurityKeySshjAuthMethod
     ) {
-        dialogInterface.postProgressMessage("Connecting to SSH server…")
+        var connected = false
+        val lease = connectionManager.acquireOrConnect(loginName, loginHost, publicKeyId) {
+            dialogInterface.postProgressMessage("Connecting to SSH server…")
+            connected = true
 
-        val sshClient = SSHClient()
-        sshClient.timeout = TIMEOUT_MS_CONNECT
+            val sshClient = SSHClient()
+            sshClient.timeout = TIMEOUT_MS_CONNECT
+            sshClient.connection.keepAlive.keepAliveInterval = KEEP_ALIVE_INTERVAL_SECONDS
+            // lets open shells notice right away when the connection drops
+            sshClient.transport.disconnectListener = SshCloseSignal.SshjDisconnectListener()
+            SftpTransfer.configureConnection(sshClient)
 
-        // WARNING: This sample does not verify the host!
-        sshClient.addHostKeyVerifier(PromiscuousVerifier())
-        sshClient.connect(loginHost)
-        val session: Session?
+            // WARNING: This sample does not verify the host!
+            sshClient.addHostKeyVerifier(PromiscuousVerifier())
+            sshClient.connect(loginHost)
+            // channels on a reused connection are short exchanges, don't let them wait for delayed ACKs
+            sshClient.socket.tcpNoDelay = true
+            try {
+                sshClient.auth(loginName, securityKeySshjAuthMethod)
+            } catch (e: IOException) {
+                sshClient.disconnect()
+                throw e
+            }
+            sshClient
+        }
 
-        sshClient.auth(loginName, securityKeySshjAuthMethod)
-        session = sshClient.startSession()
+        connectedPublicKeyId = publicKeyId
+        // close dialog after successful authentication
+        dialogInterface.successAndDismiss()
+        if (connected) {
+            appendToLog("SSH connection successful!")
+        } else {
+            appendToLog("Reusing authenticated SSH connection to $loginName@$loginHost, no signature needed")
+        }
+        runShell(lease)
+    }
 
-        session.allocateDefaultPTY()
-        val shell = session.startShell()
+    // Must be called with a connection acquired from connectionManager, which is released here
+    @WorkerThread
+    private suspend fun runShell(lease: SshConnectionManager.Lease<SSHClient>) {
+        var session: Session? = null
+        try {
+            session = lease.connection.startSession()
+            session.allocateDefaultPTY()
+            val shell = session.startShell()
 
-        val baos = ByteArrayOutputStream()
-        baos.write("Server Output: ".toByteArray(), 0, 15)
+            appendToLog("")
+            appendToLog("Server Output:")
 
-        StreamCopier(shell.inputStream, baos, LoggerFactory.DEFAULT)
-                .bufSize(shell.localMaxPacketSize)
-                .spawn("stdout")
+            // server output is shown while it arrives, stdout and stderr are decoded separately.
+            // stdout reaches EOF when the server closes the shell.
+            val closeSignal = SshCloseSignal()
+            closeSignal.copyUntilClosed(shell.inputStream, outputSink.openStream(), shell.localMaxPacketSize, "stdout")
 
-        StreamCopier(shell.errorStream, baos, LoggerFactory.DEFAULT)
-                .bufSize(shell.localMaxPacketSize)
-                .spawn("stderr")
+            StreamCopier(shell.errorStream, outputSink.openStream(), LoggerFactory.DEFAULT)
+                    .bufSize(shell.localMaxPacketSize)
+                    .spawn("stderr")
 
-        val startTime = SystemClock.elapsedRealtime()
-        while (sshClient.isConnected) {
-            if (SystemClock.elapsedRealtime() - startTime > MAX_CONNECTION_TIME) {
-                appendToLog("SSH client automatically disconnected after $MAX_CONNECTION_TIME ms.")
-                session?.close()
-                sshClient.disconnect()
-                break
+            // fires when the connection drops
+            val disconnectListener = lease.connection.transport.disconnectListener as? SshCloseSignal.SshjDisconnectListener
+            disconnectListener?.register(closeSignal)
+            try {
+                if (!closeSignal.awaitClose(MAX_CONNECTION_TIME.toLong())) {
+                    appendToLog("SSH channel automatically closed after $MAX_CONNECTION_TIME ms.")
+                }
+            } finally {
+                disconnectListener?.unregister(closeSignal)
+            }
+            // only the channel is closed, the connection stays open for the next one
+            if (session.isOpen) {
+                session.close()
             }
+        } catch (e: IOException) {
+            session?.close()
+            connectionManager.invalidate(lease)
+            throw e
+        } finally {
+            connectionManager.release(lease)
         }
+    }
 
-        // close dialog after successful authentication
-        dialogInterface.successAndDismiss()
-        appendToLog("SSH connection successful!")
-        appendToLog("")
-        appendToLog(baos.toString())
+    private fun startSftpTransfer() {
+        val loginName = textDataUser.text.toString()
+        val loginHost = textDataHost.text.toString()
+        val lease = connectedPublicKeyId?.let { connectionManager.acquire(loginName, loginHost, it) }
+        if (lease == null) {
+            appendToLog("Connect to $loginName@$loginHost first, SFTP uses the authenticated connection.")
+            return
+        }
+
+        val cacheDir = requireContext().cacheDir
+        outputSink.clear()
+        GlobalScope.launch(Dispatchers.IO) {
+            try {
+                runSftpTransfer(lease.connection, cacheDir)
+            } catch (e: IOException) {
+                Log.e(MyCustomApplication.TAG, "IOException", e)
+                appendToLog("SFTP transfer failed: ${e.message}")
+            } finally {
+                connectionManager.release(lease)
+            }
+        }
+    }
+
+    // Uploads and downloads a test file, sequentially and pipelined
+    @WorkerThread
+    private fun runSftpTransfer(sshClient: SSHClient, cacheDir: File) {
+        val localFile = File(cacheDir, SFTP_TEST_FILE_NAME)
+        val downloadedFile = File(cacheDir, "$SFTP_TEST_FILE_NAME.downloaded")
+        writeTestFile(localFile, SFTP_TEST_FILE_SIZE)
+
+        val progressListener = object : SftpTransfer.ProgressListener {
+            override fun onProgress(transferredBytes: Long, totalBytes: Long, bytesPerSecond: Double) {
+                Log.d(MyCustomApplication.TAG, "SFTP: $transferredBytes/$totalBytes bytes, ${bytesPerSecond.toLong()} bytes/s")
+            }
+        }
+
+        try {
+            for (maxRequestsInFlight in listOf(1, SftpTransfer.DEFAULT_MAX_REQUESTS_IN_FLIGHT)) {
+                val sftpTransfer = SftpTransfer(sshClient, SftpTransfer.Config(maxRequestsInFlight))
+                val uploadResult = sftpTransfer.upload(localFile, SFTP_TEST_FILE_NAME, progressListener)
+                appendToLog("Upload, $maxRequestsInFlight request(s) in flight: $uploadResult")
+                val downloadResult = sftpTransfer.download(SFTP_TEST_FILE_NAME, downloadedFile, progressListener)
+                appendToLog("Download, $maxRequestsInFlight request(s) in flight: $downloadResult")
+            }
+            sshClient.newSFTPClient().use { it.rm(SFTP_TEST_FILE_NAME) }
+        } finally {
+            localFile.delete()
+            downloadedFile.delete()
+        }
+    }
+
+    private fun writeTestFile(file: File, size: Int) {
+        val random = Random()
+        val chunk = ByteArray(SftpTransfer.DEFAULT_REQUEST_SIZE)
+        FileOutputStream(file).channel.use { channel ->
+            var remaining = size
+            while (remaining > 0) {
+                random.nextBytes(chunk)
+                val buffer = ByteBuffer.wrap(chunk, 0, minOf(remaining, chunk.size))
+                remaining -= buffer.remaining()
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer)
+                }
+            }
+        }
     }
 
     @AnyThread
     private fun appendToLog(dataText: String) {
         Log.d(MyCustomApplication.TAG, String.format("text: %s", dataText))
-        scrollLog.post {
-            val appendedText = "${textLog.text}\n$dataText"
-            textLog.text = appendedText
-            scrollLog.fullScroll(View.FOCUS_DOWN)
-            // scrollLog.smoothScrollTo(0, scrollLog.height)
-        }
+        outputSink.appendLine(dataText)
     }
 
     companion object {
@@ -204,5 +319,16 @@ class SshjFragment : Fragment() {
 
         const val MAX_CONNECTION_TIME = 2000
         const val TIMEOUT_MS_CONNECT = 10000
+        const val KEEP_ALIVE_INTERVAL_SECONDS = 30
+        const val SFTP_TEST_FILE_NAME = "hwsecurity-sftp-test.bin"
+        // Much smaller than the 1 GiB of the benchmark in SftpTransferTest, so the demo finishes
+        // quickly on mobile networks and doesn't fill the cache directory
+        const val SFTP_TEST_FILE_SIZE = 8 * 1024 * 1024
+
+        // Shared by all instances, so authenticated connections outlive the fragment
+        private val connectionManager = SshConnectionManager<SSHClient>(
+                isAlive = { it.isConnected && it.isAuthenticated },
+                close = { it.disconnect() }
+        )
     }
 }
\ No newline at end of file
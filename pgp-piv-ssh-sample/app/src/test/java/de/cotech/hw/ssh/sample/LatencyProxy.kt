@@ -0,0 +1,94 @@
+package de.cotech.hw.ssh.sample
+
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+/**
+ * Forwards local TCP connections to a port on localhost, and delays everything sent either way by
+ * half of [roundTripTimeMs], like a network link with that round trip time but unlimited bandwidth.
+ */
+class LatencyProxy(private val targetPort: Int, private val roundTripTimeMs: Long) : Closeable {
+    private class Packet(val data: ByteArray, val dueTimeNs: Long)
+
+    private val serverSocket = ServerSocket(0, 0, InetAddress.getLoopbackAddress())
+    private val sockets = ArrayList<Socket>()
+
+    val port: Int
+        get() = serverSocket.localPort
+
+    init {
+        thread(name = "LatencyProxy-accept", isDaemon = true) {
+            try {
+                while (true) {
+                    val clientSocket = serverSocket.accept()
+                    val targetSocket = Socket(InetAddress.getLoopbackAddress(), targetPort)
+                    synchronized(sockets) {
+                        sockets.add(clientSocket)
+                        sockets.add(targetSocket)
+                    }
+                    for (socket in listOf(clientSocket, targetSocket)) {
+                        socket.tcpNoDelay = true
+                    }
+                    forward(clientSocket.getInputStream(), targetSocket.getOutputStream())
+                    forward(targetSocket.getInputStream(), clientSocket.getOutputStream())
+                }
+            } catch (e: IOException) {
+                // closed
+            }
+        }
+    }
+
+    private fun forward(input: InputStream, output: OutputStream) {
+        val oneWayDelayNs = TimeUnit.MILLISECONDS.toNanos(roundTripTimeMs) / 2
+        // An empty packet marks the end of the stream
+        val packets = LinkedBlockingQueue<Packet>()
+        thread(name = "LatencyProxy-read", isDaemon = true) {
+            val buffer = ByteArray(64 * 1024)
+            try {
+                while (true) {
+                    val count = input.read(buffer)
+                    if (count == -1) {
+                        break
+                    }
+                    packets.put(Packet(buffer.copyOf(count), System.nanoTime() + oneWayDelayNs))
+                }
+            } catch (e: IOException) {
+                // closed
+            }
+            packets.put(Packet(ByteArray(0), System.nanoTime() + oneWayDelayNs))
+        }
+        thread(name = "LatencyProxy-write", isDaemon = true) {
+            try {
+                while (true) {
+                    val packet = packets.take()
+                    val waitNs = packet.dueTimeNs - System.nanoTime()
+                    if (waitNs > 0) {
+                        TimeUnit.NANOSECONDS.sleep(waitNs)
+                    }
+                    if (packet.data.isEmpty()) {
+                        break
+                    }
+                    output.write(packet.data)
+                }
+                output.close()
+            } catch (e: IOException) {
+                // closed
+            }
+        }
+    }
+
+    override fun close() {
+        serverSocket.close()
+        synchronized(sockets) {
+            sockets.forEach { it.close() }
+        }
+    }
+}
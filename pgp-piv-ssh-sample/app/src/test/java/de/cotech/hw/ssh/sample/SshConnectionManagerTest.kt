@@ -0,0 +1,139 @@
+package de.cotech.hw.ssh.sample
+
+import net.schmizz.sshj.SSHClient
+import net.schmizz.sshj.common.IOUtils
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class SshConnectionManagerTest {
+    private class FakeConnection {
+        var isOpen = true
+    }
+
+    private var now = 0L
+    private val connectionManager = SshConnectionManager<FakeConnection>(
+            isAlive = { it.isOpen },
+            close = { it.isOpen = false },
+            idleTimeoutMs = IDLE_TIMEOUT_MS,
+            clock = { now }
+    )
+
+    @Test
+    fun acquire_samePublicKey_returnsConnection() {
+        val connection = FakeConnection()
+        connectionManager.release(connectionManager.acquireOrConnect("user", "host", KEY_A) { connection })
+
+        val lease = connectionManager.acquire("user", "host", KEY_A)
+
+        assertNotNull(lease)
+        assertSame(connection, lease!!.connection)
+    }
+
+    @Test
+    fun acquire_otherPublicKey_returnsNull() {
+        connectionManager.release(connectionManager.acquireOrConnect("user", "host", KEY_A) { FakeConnection() })
+
+        assertNull(connectionManager.acquire("user", "host", KEY_B))
+    }
+
+    @Test
+    fun acquireOrConnect_otherPublicKey_connectsAgain() {
+        val connectionA = FakeConnection()
+        val connectionB = FakeConnection()
+        connectionManager.acquireOrConnect("user", "host", KEY_A) { connectionA }
+
+        val lease = connectionManager.acquireOrConnect("user", "host", KEY_B) { connectionB }
+
+        assertSame(connectionB, lease.connection)
+        assertTrue(connectionA.isOpen)
+    }
+
+    @Test
+    fun closeIdleConnections_afterIdleTimeout_closesReleasedConnection() {
+        val idleConnection = FakeConnection()
+        val usedConnection = FakeConnection()
+        connectionManager.release(connectionManager.acquireOrConnect("user", "host", KEY_A) { idleConnection })
+        connectionManager.acquireOrConnect("user", "host", KEY_B) { usedConnection }
+
+        now += IDLE_TIME_MS
+        connectionManager.closeIdleConnections()
+
+        assertTrue(!idleConnection.isOpen)
+        assertTrue(usedConnection.isOpen)
+        assertNull(connectionManager.acquire("user", "host", KEY_A))
+    }
+
+    /**
+     * Runs 100 exec commands against a local MINA SSHD, each on a new connection, and each on a
+     * connection leased from the manager. Every new connection needs a signature from the security key.
+     */
+    @Test
+    fun benchmark_execCommands_reusedConnection() {
+        SshTestServer().use { sshServer ->
+            val publicKeyId = SshConnectionManager.publicKeyId(sshServer.clientKeyPair.public.encoded)
+            val sshConnectionManager = SshConnectionManager<SSHClient>(
+                    isAlive = { it.isConnected && it.isAuthenticated },
+                    close = { it.disconnect() },
+                    clock = { System.nanoTime() / 1_000_000 }
+            )
+            var connectCount = 0
+
+            // Warms up the JIT for both paths, so the first measurement isn't skewed
+            sshServer.connect().use { exec(it, "warm-up") }
+
+            val newConnectionTimeNs = measureCommands { command ->
+                sshServer.connect().use { exec(it, command) }
+            }
+            val reusedConnectionTimeNs = measureCommands { command ->
+                val lease = sshConnectionManager.acquireOrConnect("user", "localhost", publicKeyId) {
+                    connectCount++
+                    sshServer.connect()
+                }
+                try {
+                    exec(lease.connection, command)
+                } finally {
+                    sshConnectionManager.release(lease)
+                }
+            }
+            sshConnectionManager.acquire("user", "localhost", publicKeyId)?.let { sshConnectionManager.invalidate(it) }
+
+            println("Exec latency over $COMMAND_COUNT commands: " +
+                    "new connection ${formatMs(newConnectionTimeNs / COMMAND_COUNT)} ms/command, " +
+                    "reused connection ${formatMs(reusedConnectionTimeNs / COMMAND_COUNT)} ms/command")
+            assertEquals(1, connectCount)
+            assertTrue(reusedConnectionTimeNs < newConnectionTimeNs)
+        }
+    }
+
+    private fun measureCommands(runCommand: (String) -> Unit): Long {
+        val startTime = System.nanoTime()
+        for (i in 0 until COMMAND_COUNT) {
+            runCommand("command $i")
+        }
+        return System.nanoTime() - startTime
+    }
+
+    private fun exec(sshClient: SSHClient, command: String) {
+        sshClient.startSession().use { session ->
+            val execCommand = session.exec(command)
+            assertEquals("$command\n", IOUtils.readFully(execCommand.inputStream).toString())
+            execCommand.join(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        }
+    }
+
+    private fun formatMs(timeNs: Long) = "%.2f".format(timeNs / 1_000_000.0)
+
+    companion object {
+        private const val KEY_A = "key-a"
+        private const val KEY_B = "key-b"
+        private const val IDLE_TIMEOUT_MS = 1000L
+        private const val IDLE_TIME_MS = 2000L
+        private const val COMMAND_COUNT = 100
+        private const val TIMEOUT_SECONDS = 5L
+    }
+}
@@ -0,0 +1,126 @@
+package de.cotech.hw.ssh.sample
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class SshOutputSinkTest {
+    // Runs the frame callbacks only when the test draws a frame
+    private class ManualFrameScheduler : SshOutputSink.FrameScheduler {
+        private val callbacks = ArrayList<() -> Unit>()
+        var postCount = 0
+            private set
+
+        @Synchronized
+        override fun postFrameCallback(callback: () -> Unit) {
+            callbacks.add(callback)
+            postCount++
+        }
+
+        fun drawFrame() {
+            val pendingCallbacks = synchronized(this) { callbacks.toList().also { callbacks.clear() } }
+            pendingCallbacks.forEach { it() }
+        }
+    }
+
+    private val frameScheduler = ManualFrameScheduler()
+    private var displayedText = ""
+    private var updateCount = 0
+
+    private fun newOutputSink(capacity: Int = SshOutputSink.DEFAULT_CAPACITY) =
+            SshOutputSink(capacity, frameScheduler) { text, length ->
+                displayedText = String(text, 0, length)
+                updateCount++
+            }
+
+    @Test
+    fun write_100MegabytesOfOutput_keepsMemoryBounded() {
+        val outputSink = newOutputSink()
+        val outputStream = outputSink.openStream()
+        // Not a divisor of the capacity, so writes wrap around the end of the ring
+        val chunks = Array(26) { index -> ByteArray(CHUNK_SIZE) { ('a' + index).toByte() } }
+        val chunkCount = (TOTAL_BYTES / CHUNK_SIZE).toInt()
+
+        val heapBefore = usedHeap()
+        val startTime = System.nanoTime()
+        for (i in 0 until chunkCount) {
+            outputStream.write(chunks[i % chunks.size])
+            if (i % WRITES_PER_FRAME == 0) {
+                frameScheduler.drawFrame()
+            }
+        }
+        frameScheduler.drawFrame()
+        val timeMs = (System.nanoTime() - startTime) / 1_000_000
+        val heapGrowth = usedHeap() - heapBefore
+
+        val expectedText = (chunkCount - 8 until chunkCount)
+                .joinToString("") { String(chunks[it % chunks.size], Charsets.US_ASCII) }
+                .takeLast(SshOutputSink.DEFAULT_CAPACITY)
+        assertEquals(expectedText, displayedText)
+        println("${TOTAL_BYTES / (1024 * 1024)} MiB of output in $timeMs ms, $updateCount UI updates, " +
+                "heap grew by ${heapGrowth / 1024} KiB")
+        assertTrue("heap grew by $heapGrowth bytes", heapGrowth < MAX_HEAP_GROWTH)
+    }
+
+    @Test
+    fun write_manyWritesBeforeFrame_updatesOnce() {
+        val outputSink = newOutputSink()
+        val outputStream = outputSink.openStream()
+
+        repeat(1000) { outputStream.write("line $it\n".toByteArray()) }
+        frameScheduler.drawFrame()
+
+        assertEquals(1, frameScheduler.postCount)
+        assertEquals(1, updateCount)
+        assertTrue(displayedText.endsWith("line 999\n"))
+    }
+
+    @Test
+    fun write_characterSplitAcrossWrites_isDecoded() {
+        val outputSink = newOutputSink()
+        val outputStream = outputSink.openStream()
+
+        "ä€😀".toByteArray().forEach { outputStream.write(it.toInt()) }
+        frameScheduler.drawFrame()
+
+        assertEquals("ä€😀", displayedText)
+    }
+
+    @Test
+    fun appendLine_longerThanCapacity_keepsEnd() {
+        val outputSink = newOutputSink(capacity = 8)
+
+        outputSink.appendLine("abc")
+        outputSink.appendLine("defghijklmn")
+        frameScheduler.drawFrame()
+
+        assertEquals("ghijklmn", displayedText)
+        assertEquals("ghijklmn", outputSink.toString())
+    }
+
+    @Test
+    fun clear_removesOutput() {
+        val outputSink = newOutputSink()
+        outputSink.appendLine("abc")
+
+        outputSink.clear()
+        frameScheduler.drawFrame()
+
+        assertEquals("", displayedText)
+    }
+
+    private fun usedHeap(): Long {
+        val runtime = Runtime.getRuntime()
+        System.gc()
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    companion object {
+        private const val TOTAL_BYTES = 100L * 1024 * 1024
+        private const val CHUNK_SIZE = 10_000
+        // About 60 frames per second at the SSH throughput of a phone
+        private const val WRITES_PER_FRAME = 16
+        // Less than a single copy of the 100 MiB, the sink itself keeps 2 * 64K chars
+        private const val MAX_HEAP_GROWTH = 4L * 1024 * 1024
+    }
+}
@@ -0,0 +1,99 @@
+package de.cotech.hw.ssh.sample
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.DataInputStream
+import java.io.IOException
+
+class SshSignatureEncoderTest {
+    private val r = ByteArray(32) { (it + 1).toByte() }
+    // The high bit is set, so the mpint needs a leading zero byte
+    private val s = ByteArray(32) { (0x80 + it).toByte() }
+
+    @Test
+    fun encodeEcdsaSignature_derSequence_returnsMpints() {
+        val der = derSequence(derInteger(r), derInteger(byteArrayOf(0) + s))
+
+        val (encodedR, encodedS) = readMpints(SshSignatureEncoder.encodeEcdsaSignature(der))
+
+        assertArrayEquals(r, encodedR)
+        assertArrayEquals(byteArrayOf(0) + s, encodedS)
+    }
+
+    @Test
+    fun encodeEcdsaSignature_derWithLongFormLength_returnsMpints() {
+        // P-521 signatures are longer than 127 bytes, so the sequence length takes two bytes
+        val r = ByteArray(66) { 0x01 }
+        val s = ByteArray(66) { 0x02 }
+        val der = derSequence(derInteger(r), derInteger(s))
+
+        val (encodedR, encodedS) = readMpints(SshSignatureEncoder.encodeEcdsaSignature(der))
+
+        assertArrayEquals(r, encodedR)
+        assertArrayEquals(s, encodedS)
+    }
+
+    @Test
+    fun encodeEcdsaSignature_rawConcatenation_returnsMpints() {
+        val (encodedR, encodedS) = readMpints(SshSignatureEncoder.encodeEcdsaSignature(r + s))
+
+        assertArrayEquals(r, encodedR)
+        assertArrayEquals(byteArrayOf(0) + s, encodedS)
+    }
+
+    @Test(expected = IOException::class)
+    fun encodeEcdsaSignature_derWithTrailingData_throws() {
+        SshSignatureEncoder.encodeEcdsaSignature(derSequence(derInteger(r), derInteger(s)) + byteArrayOf(0))
+    }
+
+    @Test(expected = IOException::class)
+    fun encodeEcdsaSignature_derWithMalformedInteger_throws() {
+        val der = derSequence(derInteger(r), derInteger(s))
+        // the second INTEGER tag
+        der[2 + 2 + r.size] = 0x04
+
+        SshSignatureEncoder.encodeEcdsaSignature(der)
+    }
+
+    @Test(expected = IOException::class)
+    fun encodeEcdsaSignature_derWithOneInteger_throws() {
+        SshSignatureEncoder.encodeEcdsaSignature(derSequence(derInteger(r + s)))
+    }
+
+    @Test(expected = IOException::class)
+    fun encodeEcdsaSignature_unknownRawSize_throws() {
+        SshSignatureEncoder.encodeEcdsaSignature(r + s + byteArrayOf(0, 0))
+    }
+
+    @Test
+    fun isSupported_acceptsRsaEcdsaAndTheirCertificates() {
+        assertTrue(SshSignatureEncoder.isSupported("ssh-rsa"))
+        assertTrue(SshSignatureEncoder.isSupported("ecdsa-sha2-nistp256"))
+        assertTrue(SshSignatureEncoder.isSupported("ecdsa-sha2-nistp384-cert-v01@openssh.com"))
+        assertFalse(SshSignatureEncoder.isSupported("ssh-ed25519"))
+        assertFalse(SshSignatureEncoder.isSupported("rsa-sha2-512"))
+    }
+
+    private fun derInteger(value: ByteArray) = byteArrayOf(0x02, value.size.toByte()) + value
+
+    private fun derSequence(vararg integers: ByteArray): ByteArray {
+        val content = integers.fold(ByteArray(0)) { result, integer -> result + integer }
+        val length = if (content.size < 0x80) {
+            byteArrayOf(content.size.toByte())
+        } else {
+            byteArrayOf(0x81.toByte(), content.size.toByte())
+        }
+        return byteArrayOf(0x30) + length + content
+    }
+
+    private fun readMpints(signatureBlob: ByteArray): Pair<ByteArray, ByteArray> {
+        val input = DataInputStream(ByteArrayInputStream(signatureBlob))
+        val first = ByteArray(input.readInt()).also { input.readFully(it) }
+        val second = ByteArray(input.readInt()).also { input.readFully(it) }
+        assertTrue(input.read() == -1)
+        return Pair(first, second)
+    }
+}
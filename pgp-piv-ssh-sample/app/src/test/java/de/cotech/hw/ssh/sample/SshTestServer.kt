@@ -0,0 +1,113 @@
+package de.cotech.hw.ssh.sample
+
+import net.schmizz.sshj.SSHClient
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier
+import net.schmizz.sshj.userauth.keyprovider.KeyPairWrapper
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory
+import org.apache.sshd.core.CoreModuleProperties
+import org.apache.sshd.server.Environment
+import org.apache.sshd.server.ExitCallback
+import org.apache.sshd.server.SshServer
+import org.apache.sshd.server.auth.pubkey.AcceptAllPublickeyAuthenticator
+import org.apache.sshd.server.channel.ChannelSession
+import org.apache.sshd.server.command.Command
+import org.apache.sshd.server.command.CommandFactory
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider
+import org.apache.sshd.server.shell.ShellFactory
+import org.apache.sshd.sftp.server.SftpSubsystemFactory
+import java.io.Closeable
+import java.io.File
+import java.io.InputStream
+import java.io.OutputStream
+import java.security.KeyPair
+import java.security.KeyPairGenerator
+import java.security.spec.ECGenParameterSpec
+
+/**
+ * A local MINA SSHD server that accepts any public key. Its shells stay open without any output
+ * until the client closes them, like a shell waiting for input. Exec commands print the command
+ * line and exit. If an SFTP root is given, the SFTP subsystem serves files from it.
+ */
+class SshTestServer(sftpRoot: File? = null) : Closeable {
+    private val sshServer = SshServer.setUpDefaultServer()
+
+    // Stands in for the key on the security key
+    val clientKeyPair: KeyPair = KeyPairGenerator.getInstance("EC")
+            .apply { initialize(ECGenParameterSpec("secp256r1")) }
+            .generateKeyPair()
+
+    val port: Int
+        get() = sshServer.port
+
+    init {
+        sshServer.port = 0
+        // Without it, small packets wait for delayed ACKs and every exec takes 40 ms or more
+        CoreModuleProperties.TCP_NODELAY.set(sshServer, true)
+        sshServer.keyPairProvider = SimpleGeneratorHostKeyProvider()
+        sshServer.publickeyAuthenticator = AcceptAllPublickeyAuthenticator.INSTANCE
+        sshServer.shellFactory = ShellFactory { IdleShell() }
+        sshServer.commandFactory = CommandFactory { _, command -> EchoCommand(command) }
+        if (sftpRoot != null) {
+            sshServer.subsystemFactories = listOf(SftpSubsystemFactory())
+            sshServer.fileSystemFactory = VirtualFileSystemFactory(sftpRoot.toPath())
+        }
+        sshServer.start()
+    }
+
+    /**
+     * Returns a client that is connected and authenticated, configured like the one of [SshjFragment].
+     * Connects to the given port instead of the server's, e.g. of a [LatencyProxy] in front of it.
+     */
+    fun connect(port: Int = this.port): SSHClient {
+        val sshClient = SSHClient()
+        sshClient.transport.disconnectListener = SshCloseSignal.SshjDisconnectListener()
+        SftpTransfer.configureConnection(sshClient)
+        sshClient.addHostKeyVerifier(PromiscuousVerifier())
+        sshClient.connect("localhost", port)
+        sshClient.socket.tcpNoDelay = true
+        sshClient.authPublickey("user", KeyPairWrapper(clientKeyPair))
+        return sshClient
+    }
+
+    /**
+     * Drops all connections from the server side, like a server going away.
+     */
+    fun closeAllSessions() {
+        sshServer.activeSessions.forEach { it.close(true) }
+    }
+
+    override fun close() {
+        sshServer.stop(true)
+    }
+
+    private class IdleShell : Command {
+        override fun setInputStream(inputStream: InputStream) {}
+        override fun setOutputStream(outputStream: OutputStream) {}
+        override fun setErrorStream(errorStream: OutputStream) {}
+        override fun setExitCallback(exitCallback: ExitCallback) {}
+        override fun start(channel: ChannelSession, environment: Environment) {}
+        override fun destroy(channel: ChannelSession) {}
+    }
+
+    private class EchoCommand(private val command: String) : Command {
+        private lateinit var outputStream: OutputStream
+        private lateinit var exitCallback: ExitCallback
+
+        override fun setInputStream(inputStream: InputStream) {}
+        override fun setOutputStream(outputStream: OutputStream) {
+            this.outputStream = outputStream
+        }
+        override fun setErrorStream(errorStream: OutputStream) {}
+        override fun setExitCallback(exitCallback: ExitCallback) {
+            this.exitCallback = exitCallback
+        }
+
+        override fun start(channel: ChannelSession, environment: Environment) {
+            outputStream.write("$command\n".toByteArray())
+            outputStream.flush()
+            exitCallback.onExit(0)
+        }
+
+        override fun destroy(channel: ChannelSession) {}
+    }
+}
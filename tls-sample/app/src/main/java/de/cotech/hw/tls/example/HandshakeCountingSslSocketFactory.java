@@ -0,0 +1,221 @@
+package de.cotech.hw.tls.example;
+
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.TlsVersion;
+
+
+/**
+ * Wraps an SSLSocketFactory and counts full and resumed TLS handshakes of the sockets it creates.
+ * <p>
+ * Only full handshakes need a CertificateVerify signature from the security key, so a handshake is
+ * counted as full if {@link SecurityKeyKeyManager} signed on its thread while it ran, and as resumed
+ * otherwise. This works the same for TLS 1.2 session ids and TLS 1.3 pre-shared keys. Handshakes
+ * run on the thread that connects, and OkHttp reports their end to {@link #getEventListener()} on
+ * that same thread, so the client must use that listener.
+ * <p>
+ * Sockets for a host are only handed out once the {@link HandshakeSigningBridge} lets them
+ * handshake, so concurrent connections to one host share a single signature. Failed handshakes are
+ * reported through the same listener, so waiting connections take over right away.
+ */
+public class HandshakeCountingSslSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory delegate;
+    private final HandshakeSigningBridge signingBridge;
+    private final AtomicInteger fullHandshakeCount = new AtomicInteger();
+    private final AtomicInteger resumedHandshakeCount = new AtomicInteger();
+    // The handshake this thread runs, if it is coordinated with the HandshakeSigningBridge
+    private final ThreadLocal<TrackedHandshake> currentHandshake = new ThreadLocal<>();
+
+    private static class TrackedHandshake {
+        final HandshakeSigningBridge.HandshakeTicket ticket;
+        boolean signedByCard;
+
+        TrackedHandshake(HandshakeSigningBridge.HandshakeTicket ticket) {
+            this.ticket = ticket;
+        }
+    }
+
+    private final EventListener eventListener = new EventListener() {
+        @Override
+        public void secureConnectStart(@NonNull Call call) {
+            SecurityKeyKeyManager.consumeSignedOnThisThread();
+        }
+
+        @Override
+        public void secureConnectEnd(@NonNull Call call, @Nullable Handshake handshake) {
+            onHandshakeCompleted(SecurityKeyKeyManager.consumeSignedOnThisThread(),
+                    handshake != null && handshake.tlsVersion() == TlsVersion.TLS_1_3);
+        }
+
+        @Override
+        public void connectFailed(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress,
+                @NonNull Proxy proxy, @Nullable Protocol protocol, @NonNull IOException ioe) {
+            SecurityKeyKeyManager.consumeSignedOnThisThread();
+            onHandshakeFailed();
+        }
+
+        @Override
+        public void responseHeadersEnd(@NonNull Call call, @NonNull Response response) {
+            finishHandshake();
+        }
+
+        @Override
+        public void callEnd(@NonNull Call call) {
+            finishHandshake();
+        }
+
+        @Override
+        public void callFailed(@NonNull Call call, @NonNull IOException ioe) {
+            onHandshakeFailed();
+        }
+    };
+
+    public HandshakeCountingSslSocketFactory(SSLSocketFactory delegate, HandshakeSigningBridge signingBridge) {
+        this.delegate = delegate;
+        this.signingBridge = signingBridge;
+    }
+
+    public HandshakeSigningBridge getSigningBridge() {
+        return signingBridge;
+    }
+
+    /**
+     * The listener an OkHttpClient using this factory must be built with.
+     */
+    public EventListener getEventListener() {
+        return eventListener;
+    }
+
+    public int getFullHandshakeCount() {
+        return fullHandshakeCount.get();
+    }
+
+    public int getResumedHandshakeCount() {
+        return resumedHandshakeCount.get();
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        HandshakeSigningBridge.HandshakeTicket ticket = signingBridge.awaitHandshake(host, port);
+        return trackHandshake(ticket, () -> delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        // Not connected yet, so there is no host to coordinate with
+        return trackHandshake(null, delegate::createSocket);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        HandshakeSigningBridge.HandshakeTicket ticket = signingBridge.awaitHandshake(host, port);
+        return trackHandshake(ticket, () -> delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        HandshakeSigningBridge.HandshakeTicket ticket = signingBridge.awaitHandshake(host, port);
+        return trackHandshake(ticket, () -> delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        HandshakeSigningBridge.HandshakeTicket ticket = signingBridge.awaitHandshake(host.getHostAddress(), port);
+        return trackHandshake(ticket, () -> delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        HandshakeSigningBridge.HandshakeTicket ticket = signingBridge.awaitHandshake(address.getHostAddress(), port);
+        return trackHandshake(ticket, () -> delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private interface SocketCreator {
+        Socket createSocket() throws IOException;
+    }
+
+    private Socket trackHandshake(HandshakeSigningBridge.HandshakeTicket ticket, SocketCreator socketCreator)
+            throws IOException {
+        Socket socket;
+        try {
+            socket = socketCreator.createSocket();
+        } catch (IOException | RuntimeException e) {
+            if (ticket != null) {
+                ticket.fail();
+            }
+            throw e;
+        }
+        if (!(socket instanceof SSLSocket)) {
+            if (ticket != null) {
+                ticket.fail();
+            }
+            return socket;
+        }
+        if (ticket != null) {
+            // OkHttp reports the end of the handshake to our event listener, on this thread
+            currentHandshake.set(new TrackedHandshake(ticket));
+        }
+        return socket;
+    }
+
+    private void onHandshakeCompleted(boolean signedByCard, boolean tls13) {
+        if (signedByCard) {
+            fullHandshakeCount.incrementAndGet();
+        } else {
+            resumedHandshakeCount.incrementAndGet();
+        }
+        TrackedHandshake trackedHandshake = currentHandshake.get();
+        if (trackedHandshake == null) {
+            return;
+        }
+        trackedHandshake.signedByCard = signedByCard;
+        // TLS 1.3 servers send the session ticket after the handshake, and it is only read together
+        // with the first response. Connections waiting for this handshake can't resume before that.
+        if (!tls13 || !trackedHandshake.ticket.isLeading()) {
+            finishHandshake();
+        }
+    }
+
+    private void finishHandshake() {
+        TrackedHandshake trackedHandshake = currentHandshake.get();
+        if (trackedHandshake != null) {
+            currentHandshake.remove();
+            trackedHandshake.ticket.finish(trackedHandshake.signedByCard);
+        }
+    }
+
+    private void onHandshakeFailed() {
+        TrackedHandshake trackedHandshake = currentHandshake.get();
+        if (trackedHandshake != null) {
+            currentHandshake.remove();
+            trackedHandshake.ticket.fail();
+        }
+    }
+}
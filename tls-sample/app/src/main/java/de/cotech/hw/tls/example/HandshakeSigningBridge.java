@@ -0,0 +1,244 @@
+package de.cotech.hw.tls.example;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Coordinates the TLS handshakes and card I/O of one security key.
+ * <p>
+ * Every full handshake needs a CertificateVerify signature from the security key, and the card
+ * can only do one at a time. If several connections to a host start at once while there is no
+ * session to resume, only the first one does a full handshake here. The others wait for it to
+ * finish and then resume its session, which needs no signature, instead of each queueing up for
+ * their own signature on the card. Once a host has a session, its connections handshake in parallel.
+ * <p>
+ * TLS 1.2 sessions can be resumed by any number of connections. TLS 1.3 session tickets can only be
+ * used once, and servers send one or two per handshake, so with TLS 1.3 most waiting connections
+ * still sign. Use HTTP/2 to send concurrent requests over one connection instead, see
+ * {@link MultiplexedRequestPipeline}.
+ * <p>
+ * Signatures, like all other card operations, run on a single dedicated card I/O thread.
+ */
+public class HandshakeSigningBridge {
+    // Waiting connections take over if the leading handshake didn't finish by then, e.g. because it hangs
+    private static final long HANDSHAKE_WAIT_TIMEOUT_MS = 10 * 1000;
+
+    public interface CardOperation<T> {
+        T run() throws IOException, GeneralSecurityException;
+    }
+
+    /**
+     * A handshake with one host. The caller must {@link #finish(boolean)} it once the handshake is
+     * done, or {@link #fail()} it if it failed or never started.
+     * <p>
+     * If the handshake leads, connections to the same host wait for it until then.
+     */
+    public class HandshakeTicket {
+        private final String hostKey;
+        private final boolean leading;
+        private final CountDownLatch finishedLatch = new CountDownLatch(1);
+        private volatile boolean succeeded;
+
+        private HandshakeTicket(String hostKey, boolean leading) {
+            this.hostKey = hostKey;
+            this.leading = leading;
+        }
+
+        /**
+         * Whether connections to the same host wait for this handshake.
+         */
+        public boolean isLeading() {
+            return leading;
+        }
+
+        /**
+         * The handshake completed, and its session can be resumed. Waiting connections resume it now.
+         */
+        public void finish(boolean signedByCard) {
+            if (finishedLatch.getCount() == 0) {
+                return;
+            }
+            synchronized (HandshakeSigningBridge.this) {
+                if (leading || !signedByCard) {
+                    hostsWithSession.add(hostKey);
+                } else {
+                    // The session could not be resumed, so coordinate the next connections again
+                    hostsWithSession.remove(hostKey);
+                }
+            }
+            succeeded = true;
+            release();
+        }
+
+        /**
+         * The handshake failed or never started. One of the waiting connections takes over.
+         */
+        public void fail() {
+            if (finishedLatch.getCount() == 0) {
+                return;
+            }
+            release();
+        }
+
+        private void release() {
+            synchronized (HandshakeSigningBridge.this) {
+                if (handshakesInFlight.get(hostKey) == this) {
+                    handshakesInFlight.remove(hostKey);
+                }
+            }
+            finishedLatch.countDown();
+        }
+    }
+
+    private static final ExecutorService cardExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "security-key-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicInteger pendingCardOperationCount = new AtomicInteger();
+
+    private final Map<String, HandshakeTicket> handshakesInFlight = new HashMap<>();
+    // Hosts that a handshake finished with, whose session later connections can resume
+    private final Set<String> hostsWithSession = new HashSet<>();
+    private final AtomicInteger waitingHandshakeCount = new AtomicInteger();
+    private final AtomicInteger coalescedHandshakeCount = new AtomicInteger();
+    private final AtomicInteger signatureCount = new AtomicInteger();
+    private final AtomicLong totalSignatureTimeMs = new AtomicLong();
+
+    /**
+     * Runs the operation on the card I/O thread and waits for its result.
+     */
+    public <T> T runOnCardExecutor(CardOperation<T> cardOperation) throws IOException, GeneralSecurityException {
+        pendingCardOperationCount.incrementAndGet();
+        Future<T> future = cardExecutor.submit(() -> {
+            try {
+                return cardOperation.run();
+            } finally {
+                pendingCardOperationCount.decrementAndGet();
+            }
+        });
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the security key");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Signs a handshake digest on the card I/O thread, and records how long the card took.
+     */
+    public byte[] signDigest(SecurityKeyKeyManager.CardSigner cardSigner, byte[] digest, String hashAlgorithm)
+            throws IOException {
+        try {
+            return runOnCardExecutor(() -> {
+                long startTime = elapsedTimeMs();
+                byte[] signature = cardSigner.signDigest(digest, hashAlgorithm);
+                signatureCount.incrementAndGet();
+                totalSignatureTimeMs.addAndGet(elapsedTimeMs() - startTime);
+                return signature;
+            });
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Called before a handshake with the given host starts. If another full handshake with this
+     * host is in flight, this waits for it, so the caller can resume its session. The returned
+     * ticket leads if the caller may have to sign, i.e. there was no session to wait for. If the
+     * leading handshake fails, the waiting callers compete to lead again.
+     */
+    public HandshakeTicket awaitHandshake(String host, int port) throws InterruptedIOException {
+        String hostKey = host + ":" + port;
+        while (true) {
+            HandshakeTicket ticket;
+            synchronized (this) {
+                if (hostsWithSession.contains(hostKey)) {
+                    return new HandshakeTicket(hostKey, false);
+                }
+                ticket = handshakesInFlight.get(hostKey);
+                if (ticket == null) {
+                    ticket = new HandshakeTicket(hostKey, true);
+                    handshakesInFlight.put(hostKey, ticket);
+                    return ticket;
+                }
+            }
+
+            boolean finished = awaitTicket(ticket, hostKey);
+            if (finished && ticket.succeeded) {
+                coalescedHandshakeCount.incrementAndGet();
+                return new HandshakeTicket(hostKey, false);
+            }
+            // The leading handshake failed or is stuck, drop it and try to lead ourselves
+            ticket.fail();
+        }
+    }
+
+    // Returns false if the ticket is still open after the timeout
+    private boolean awaitTicket(HandshakeTicket ticket, String hostKey) throws InterruptedIOException {
+        waitingHandshakeCount.incrementAndGet();
+        try {
+            return ticket.finishedLatch.await(HANDSHAKE_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for handshake with " + hostKey);
+        } finally {
+            waitingHandshakeCount.decrementAndGet();
+        }
+    }
+
+    // Not SystemClock, so this also runs in plain JVM tests. Only differences of it are meaningful.
+    private static long elapsedTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Number of handshakes waiting for another one, plus card operations waiting for the card.
+     */
+    public int getQueueDepth() {
+        return waitingHandshakeCount.get() + pendingCardOperationCount.get();
+    }
+
+    public int getCoalescedHandshakeCount() {
+        return coalescedHandshakeCount.get();
+    }
+
+    public int getSignatureCount() {
+        return signatureCount.get();
+    }
+
+    /**
+     * Average time the card took for a signature.
+     */
+    public double getAverageSignatureLatencyMs() {
+        int count = signatureCount.get();
+        return count == 0 ? 0 : (double) totalSignatureTimeMs.get() / count;
+    }
+}
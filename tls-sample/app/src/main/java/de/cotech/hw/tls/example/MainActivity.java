@@ -2,7 +2,9 @@ package de.cotech.hw.tls.example;
 
 
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
+import android.widget.CheckBox;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
@@ -10,12 +12,15 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
 import java.io.IOException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 
+import de.cotech.hw.SecurityKeyAuthenticator;
 import de.cotech.hw.SecurityKeyTlsClientCertificateAuthenticator;
 import de.cotech.hw.piv.PivSecurityKey;
 import de.cotech.hw.piv.PivSecurityKeyDialogFragment;
@@ -29,7 +34,15 @@ import okhttp3.Response;
 
 
 public class MainActivity extends AppCompatActivity implements SecurityKeyDialogInterface.SecurityKeyDialogCallback<PivSecurityKey> {
+    private static final String URL = "https://tls.hwsecurity.dev";
+    private static final int MULTIPLEXED_REQUEST_COUNT = 24;
+    private static final int MULTIPLEXED_MAX_IN_FLIGHT = 8;
+
+    private final SecurityKeyHttpClientFactory httpClientFactory = SecurityKeyHttpClientFactory.getInstance();
     private TextView log;
+    private CheckBox checkboxMultiplex;
+    // Identity of the security key that was discovered last
+    private String securityKeyIdentity;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -37,6 +50,7 @@ public class MainActivity extends AppCompatActivity implements SecurityKeyDialog
         setContentView(R.layout.activity_main);
 
         log = findViewById(R.id.textLog);
+        checkboxMultiplex = findViewById(R.id.checkboxMultiplex);
 
         findViewById(R.id.buttonAuth).setOnClickListener(v -> showSecurityKeyDialog());
     }
@@ -60,28 +74,122 @@ public class MainActivity extends AppCompatActivity implements SecurityKeyDialog
         try {
             SecurityKeyTlsClientCertificateAuthenticator clientCertificateAuthenticator =
                     securityKey.createSecurityKeyClientCertificateAuthenticator(pinProvider);
-            SSLContext sslContext = clientCertificateAuthenticator.buildInitializedSslContext();
+            // Reading the certificate is the only way to tell which key is on the security key
+            X509Certificate[] certificateChain = clientCertificateAuthenticator.retrieveCertificateChain();
+            if (!SecurityKeyKeyManager.isSupported(certificateChain)) {
+                // e.g. RSA keys, which only the SSLContext of the library can sign with
+                runWithLibrarySslContext(dialogInterface, clientCertificateAuthenticator);
+                return;
+            }
+
+            // connection with OkHttp, reusing the client (and its connections) of earlier runs with
+            // the same key, but signing new handshakes with the security key that was just discovered
+            SecurityKeyAuthenticator securityKeyAuthenticator = securityKey.createSecurityKeyAuthenticator(pinProvider);
+            securityKeyIdentity = SecurityKeyHttpClientFactory.getIdentity(certificateChain);
+            OkHttpClient httpClient = httpClientFactory.getHttpClient(certificateChain,
+                    securityKeyAuthenticator::authenticatePresignedDigest);
+            if (checkboxMultiplex.isChecked()) {
+                runMultiplexedRequests(dialogInterface, httpClient);
+                return;
+            }
 
-            // connection with OkHttp
-            OkHttpClient httpClient = new OkHttpClient.Builder()
-                    .sslSocketFactory(sslContext.getSocketFactory())
-                    .build();
             Request request = new Request.Builder()
-                    .url("https://tls.hwsecurity.dev")
+                    .url(URL)
                     .build();
-            Response response = httpClient.newCall(request).execute();
+
+            Response response;
+            try {
+                response = httpClient.newCall(request).execute();
+            } catch (IOException e) {
+                // The security key of the cached client may be gone, start from scratch next time
+                httpClientFactory.invalidate(securityKeyIdentity);
+                throw e;
+            }
+            // closing the response returns its connection to the pool
+            response.close();
+
+            HandshakeCountingSslSocketFactory handshakeCounts =
+                    httpClientFactory.getHandshakeCounts(securityKeyIdentity);
+            if (handshakeCounts != null) {
+                Log.d(MyCustomApplication.TAG, String.format("TLS handshakes: %d full, %d resumed",
+                        handshakeCounts.getFullHandshakeCount(), handshakeCounts.getResumedHandshakeCount()));
+                logSigningMetrics(handshakeCounts.getSigningBridge());
+            }
 
             showDebugInfo(response);
             dialogInterface.dismiss();
-        } catch (CertificateException e) {
-            Log.e(MyCustomApplication.TAG, "CertificateException", e);
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(MyCustomApplication.TAG, "NoSuchAlgorithmException", e);
-        } catch (KeyManagementException e) {
-            Log.e(MyCustomApplication.TAG, "KeyManagementException", e);
+        } catch (GeneralSecurityException e) {
+            Log.e(MyCustomApplication.TAG, "GeneralSecurityException", e);
         }
     }
 
+    private void runWithLibrarySslContext(SecurityKeyDialogInterface dialogInterface,
+            SecurityKeyTlsClientCertificateAuthenticator clientCertificateAuthenticator)
+            throws IOException, GeneralSecurityException {
+        SSLContext sslContext = clientCertificateAuthenticator.buildInitializedSslContext();
+
+        // This SSLContext can't sign anymore once the security key is gone, so its client is not kept
+        OkHttpClient httpClient = new OkHttpClient.Builder()
+                .sslSocketFactory(sslContext.getSocketFactory())
+                .build();
+        Request request = new Request.Builder()
+                .url(URL)
+                .build();
+        Response response = httpClient.newCall(request).execute();
+        response.close();
+
+        showDebugInfo(response);
+        dialogInterface.dismiss();
+    }
+
+    private void runMultiplexedRequests(SecurityKeyDialogInterface dialogInterface, OkHttpClient httpClient) {
+        List<Request> requests = new ArrayList<>();
+        for (int i = 0; i < MULTIPLEXED_REQUEST_COUNT; i++) {
+            requests.add(new Request.Builder().url(URL).build());
+        }
+
+        String requestIdentity = securityKeyIdentity;
+        AtomicInteger failedCount = new AtomicInteger();
+        long startTime = SystemClock.elapsedRealtime();
+        MultiplexedRequestPipeline pipeline = new MultiplexedRequestPipeline(httpClient, MULTIPLEXED_MAX_IN_FLIGHT);
+        // Returns once the first request completed, so its handshake is signed while the security key is attached
+        pipeline.enqueueAll(requests, new MultiplexedRequestPipeline.RequestCallback() {
+            @Override
+            public void onResponse(@NonNull Request request, @NonNull Response response) {
+                Log.d(MyCustomApplication.TAG, String.format("%s: %s", response.protocol(), response));
+            }
+
+            @Override
+            public void onFailure(@NonNull Request request, @NonNull IOException e) {
+                Log.e(MyCustomApplication.TAG, "IOException", e);
+                failedCount.incrementAndGet();
+                // The security key of the cached client may be gone, start from scratch next time
+                httpClientFactory.invalidate(requestIdentity);
+            }
+
+            @Override
+            public void onAllCompleted() {
+                long totalTime = SystemClock.elapsedRealtime() - startTime;
+                HandshakeCountingSslSocketFactory handshakeCounts =
+                        httpClientFactory.getHandshakeCounts(requestIdentity);
+                if (handshakeCounts != null) {
+                    logSigningMetrics(handshakeCounts.getSigningBridge());
+                }
+                runOnUiThread(() -> {
+                    showDebugInfo(String.format("%d requests, %d failed, %d ms in total",
+                            requests.size(), failedCount.get(), totalTime));
+                    dialogInterface.dismiss();
+                });
+            }
+        });
+    }
+
+    private void logSigningMetrics(HandshakeSigningBridge signingBridge) {
+        Log.d(MyCustomApplication.TAG, String.format("Signatures: %d, average %.1f ms, %d handshakes coalesced, queue depth %d",
+                signingBridge.getSignatureCount(), signingBridge.getAverageSignatureLatencyMs(),
+                signingBridge.getCoalescedHandshakeCount(), signingBridge.getQueueDepth()));
+    }
+
     @Override
     public void onSecurityKeyDialogCancel() {
         showDebugInfo("Dialog cancelled.");
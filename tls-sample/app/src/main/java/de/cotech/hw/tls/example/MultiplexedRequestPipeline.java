@@ -0,0 +1,149 @@
+package de.cotech.hw.tls.example;
+
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+
+/**
+ * Runs many requests asynchronously over a single HTTP/2 connection, so the security key only has
+ * to authenticate one TLS handshake. OkHttp prefers HTTP/2 by default, if the server supports it.
+ * <p>
+ * The first request is executed alone, on the calling thread, to establish and authenticate the
+ * connection while the security key is still attached. All further requests are then multiplexed
+ * over that connection, with at most maxInFlight requests running at the same time.
+ */
+public class MultiplexedRequestPipeline {
+
+    public interface RequestCallback {
+        // Called on the thread of enqueueAll for the first request, on an OkHttp thread for the
+        // others. The response is closed after this returns.
+        void onResponse(@NonNull Request request, @NonNull Response response) throws IOException;
+
+        void onFailure(@NonNull Request request, @NonNull IOException e);
+
+        void onAllCompleted();
+    }
+
+    private final OkHttpClient httpClient;
+    private final int maxInFlight;
+
+    private final Queue<Request> pendingRequests = new ArrayDeque<>();
+    private RequestCallback requestCallback;
+    private int inFlightCount;
+
+    public MultiplexedRequestPipeline(OkHttpClient httpClient, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.httpClient = httpClient;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Executes the first request and returns once it completed, then enqueues the others. If the
+     * first request fails, the others are not sent and fail with the same exception.
+     */
+    public void enqueueAll(List<Request> requests, RequestCallback requestCallback) {
+        Request firstRequest;
+        synchronized (this) {
+            if (this.requestCallback != null) {
+                throw new IllegalStateException("Pipeline is already running");
+            }
+            if (requests.isEmpty()) {
+                requestCallback.onAllCompleted();
+                return;
+            }
+            this.requestCallback = requestCallback;
+            pendingRequests.addAll(requests);
+            firstRequest = pendingRequests.remove();
+            inFlightCount++;
+        }
+
+        // Only the first request opens (and authenticates) the connection, the others follow once it's up
+        Response response;
+        try {
+            response = httpClient.newCall(firstRequest).execute();
+        } catch (IOException e) {
+            requestCallback.onFailure(firstRequest, e);
+            failPendingRequests(requestCallback, e);
+            onRequestFinished();
+            return;
+        }
+        try {
+            requestCallback.onResponse(firstRequest, response);
+        } catch (IOException e) {
+            requestCallback.onFailure(firstRequest, e);
+        } finally {
+            response.close();
+        }
+        onRequestFinished();
+    }
+
+    private void failPendingRequests(RequestCallback requestCallback, IOException e) {
+        List<Request> skippedRequests;
+        synchronized (this) {
+            skippedRequests = new ArrayList<>(pendingRequests);
+            pendingRequests.clear();
+        }
+        for (Request request : skippedRequests) {
+            requestCallback.onFailure(request, e);
+        }
+    }
+
+    private synchronized void enqueueNext() {
+        while (inFlightCount < maxInFlight && !pendingRequests.isEmpty()) {
+            enqueue(pendingRequests.remove());
+        }
+    }
+
+    private synchronized void enqueue(Request request) {
+        inFlightCount++;
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                try {
+                    requestCallback.onResponse(request, response);
+                } catch (IOException e) {
+                    requestCallback.onFailure(request, e);
+                } finally {
+                    response.close();
+                }
+                onRequestFinished();
+            }
+
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                requestCallback.onFailure(request, e);
+                onRequestFinished();
+            }
+        });
+    }
+
+    private void onRequestFinished() {
+        RequestCallback completedCallback = null;
+        synchronized (this) {
+            inFlightCount--;
+            if (inFlightCount == 0 && pendingRequests.isEmpty()) {
+                completedCallback = requestCallback;
+                requestCallback = null;
+            } else {
+                enqueueNext();
+            }
+        }
+        if (completedCallback != null) {
+            completedCallback.onAllCompleted();
+        }
+    }
+}
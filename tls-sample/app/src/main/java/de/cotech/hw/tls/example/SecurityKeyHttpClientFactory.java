@@ -0,0 +1,176 @@
+package de.cotech.hw.tls.example;
+
+
+import androidx.annotation.VisibleForTesting;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import de.cotech.hw.util.Hex;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+
+/**
+ * Keeps one long-lived OkHttpClient per security key identity.
+ * <p>
+ * The identity of a security key is the SHA-256 hash of the public key in its client certificate,
+ * see {@link #getIdentity(X509Certificate[])}. Each identity gets its own SSLContext, built on a
+ * {@link SecurityKeyKeyManager}, and its own ConnectionPool, so connections authenticated by one
+ * security key are never handed to another. Only the Dispatcher is shared. When the same security
+ * key is discovered again, its client, connections and TLS session cache are kept, and only the
+ * signer is swapped, so new handshakes sign with the security key that was just discovered.
+ * <p>
+ * The certificate chain is read from the card on every discovery, and is deliberately not cached
+ * across discoveries. PIV has no cheaper way to tell which key a card holds: there is no command to
+ * read the public key, and the library exposes no card serial. Presenting a cached chain without
+ * reading the slot would let a different card resume the sessions of the cached identity. Within
+ * the process, the SSLContext per identity already avoids rebuilding anything but the chain read.
+ * <p>
+ * The TLS session cache of each SSLContext is sized to keep sessions around, so reconnects can
+ * resume an earlier session instead of doing a full handshake. Resumed handshakes don't need a
+ * signature from the security key.
+ * <p>
+ * Each identity gets a {@link HandshakeSigningBridge}, which runs its signatures on the card I/O
+ * thread, so concurrent handshakes to one host share a single signature from the security key.
+ */
+public class SecurityKeyHttpClientFactory {
+    private static final int SESSION_CACHE_SIZE = 32;
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+    // HTTP/2 multiplexes all requests to a host over one connection, so allow more than OkHttp's default of 5
+    private static final int MAX_REQUESTS_PER_HOST = 64;
+
+    private static SecurityKeyHttpClientFactory sInstance;
+
+    public static synchronized SecurityKeyHttpClientFactory getInstance() {
+        if (sInstance == null) {
+            try {
+                sInstance = new SecurityKeyHttpClientFactory(getDefaultTrustManager());
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Platform has no default TrustManager", e);
+            }
+        }
+        return sInstance;
+    }
+
+    private static class IdentityClient {
+        final SecurityKeyKeyManager keyManager;
+        final HandshakeCountingSslSocketFactory socketFactory;
+        final OkHttpClient httpClient;
+
+        IdentityClient(SecurityKeyKeyManager keyManager, HandshakeCountingSslSocketFactory socketFactory,
+                OkHttpClient httpClient) {
+            this.keyManager = keyManager;
+            this.socketFactory = socketFactory;
+            this.httpClient = httpClient;
+        }
+    }
+
+    private final X509TrustManager trustManager;
+    // Clients derived from this one with newBuilder() share its dispatcher
+    private final OkHttpClient baseHttpClient;
+    private final Map<String, IdentityClient> clientsByIdentity = new HashMap<>();
+
+    @VisibleForTesting
+    SecurityKeyHttpClientFactory(X509TrustManager trustManager) {
+        SecurityKeySignatureProvider.install();
+        this.trustManager = trustManager;
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        baseHttpClient = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .build();
+    }
+
+    /**
+     * Returns the identity of the security key holding the private key of this certificate chain.
+     */
+    public static String getIdentity(X509Certificate[] certificateChain) throws GeneralSecurityException {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        return Hex.encodeHexString(messageDigest.digest(certificateChain[0].getPublicKey().getEncoded()));
+    }
+
+    /**
+     * Returns the client for the security key with this certificate chain. Call this on every
+     * discovery of the security key, with a signer for the security key that was just discovered.
+     * If there already is a client for its identity, its pooled connections and TLS sessions are
+     * kept, and only new full handshakes go through the new signer.
+     */
+    public synchronized OkHttpClient getHttpClient(X509Certificate[] certificateChain,
+            SecurityKeyKeyManager.CardSigner cardSigner) throws GeneralSecurityException {
+        String securityKeyIdentity = getIdentity(certificateChain);
+        IdentityClient identityClient = clientsByIdentity.get(securityKeyIdentity);
+        if (identityClient != null) {
+            identityClient.keyManager.setCardSigner(cardSigner);
+            return identityClient.httpClient;
+        }
+
+        HandshakeSigningBridge signingBridge = new HandshakeSigningBridge();
+        SecurityKeyKeyManager keyManager = new SecurityKeyKeyManager(certificateChain, cardSigner, signingBridge);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(new KeyManager[] { keyManager }, new TrustManager[] { trustManager }, null);
+        SSLSessionContext clientSessionContext = sslContext.getClientSessionContext();
+        clientSessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+        clientSessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+
+        HandshakeCountingSslSocketFactory socketFactory = new HandshakeCountingSslSocketFactory(
+                sslContext.getSocketFactory(), signingBridge);
+        OkHttpClient httpClient = baseHttpClient.newBuilder()
+                .connectionPool(new ConnectionPool())
+                .sslSocketFactory(socketFactory, trustManager)
+                .eventListener(socketFactory.getEventListener())
+                .build();
+        clientsByIdentity.put(securityKeyIdentity, new IdentityClient(keyManager, socketFactory, httpClient));
+        return httpClient;
+    }
+
+    /**
+     * Returns the handshake counts of the client for this identity, or null if there is no client.
+     */
+    public synchronized HandshakeCountingSslSocketFactory getHandshakeCounts(String securityKeyIdentity) {
+        IdentityClient identityClient = clientsByIdentity.get(securityKeyIdentity);
+        return identityClient != null ? identityClient.socketFactory : null;
+    }
+
+    // OkHttp can't extract the trust manager from a wrapped socket factory, so we pass the
+    // platform default one explicitly.
+    private static X509TrustManager getDefaultTrustManager() throws GeneralSecurityException {
+        TrustManagerFactory trustManagerFactory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init((KeyStore) null);
+        for (TrustManager trustManager : trustManagerFactory.getTrustManagers()) {
+            if (trustManager instanceof X509TrustManager) {
+                return (X509TrustManager) trustManager;
+            }
+        }
+        throw new GeneralSecurityException("No default X509TrustManager found");
+    }
+
+    public synchronized boolean hasHttpClient(String securityKeyIdentity) {
+        return clientsByIdentity.containsKey(securityKeyIdentity);
+    }
+
+    /**
+     * Drops the client for this identity, e.g. when the security key was removed or a handshake
+     * with it failed. Its idle connections are closed right away, the ones still in use are never
+     * handed out again. Clients of other identities are not affected.
+     */
+    public synchronized void invalidate(String securityKeyIdentity) {
+        IdentityClient identityClient = clientsByIdentity.remove(securityKeyIdentity);
+        if (identityClient != null) {
+            identityClient.httpClient.connectionPool().evictAll();
+        }
+    }
+}
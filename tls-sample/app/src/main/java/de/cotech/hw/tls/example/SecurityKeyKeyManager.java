@@ -0,0 +1,189 @@
+package de.cotech.hw.tls.example;
+
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECParameterSpec;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.security.cert.X509Certificate;
+
+
+/**
+ * Presents the client certificate of a security key in TLS handshakes, and signs with the
+ * security key that was discovered last.
+ * <p>
+ * The SSLContext of SecurityKeyTlsClientCertificateAuthenticator is bound to the security key
+ * object of one discovery, and can't sign anymore once that is gone. This KeyManager keeps the
+ * certificate chain instead, and {@link #setCardSigner(CardSigner)} points it to the security key
+ * of each new discovery. An SSLContext built on it can be kept for as long as the security key is
+ * in use, and with it its TLS session cache.
+ * <p>
+ * Its private key is only a handle, which {@link SecurityKeySignatureProvider} signs with. Only
+ * ECDSA keys are supported.
+ */
+public class SecurityKeyKeyManager extends X509ExtendedKeyManager {
+    private static final String ALIAS = "security-key";
+    private static final String KEY_TYPE_EC = "EC";
+
+    public interface CardSigner {
+        /**
+         * Signs a digest computed with the given hash algorithm, e.g. "SHA-256". ECDSA signatures
+         * are returned DER encoded.
+         */
+        byte[] signDigest(byte[] digest, String hashAlgorithm) throws IOException;
+    }
+
+    // Set when a handshake on this thread was signed by a security key, see HandshakeCountingSslSocketFactory
+    private static final ThreadLocal<Boolean> signedOnThisThread = new ThreadLocal<>();
+
+    private final X509Certificate[] certificateChain;
+    private final SecurityKeyPrivateKey privateKey;
+    private final HandshakeSigningBridge signingBridge;
+    private volatile CardSigner cardSigner;
+
+    public SecurityKeyKeyManager(X509Certificate[] certificateChain, CardSigner cardSigner,
+            HandshakeSigningBridge signingBridge) {
+        if (!isSupported(certificateChain)) {
+            throw new IllegalArgumentException("Only ECDSA client certificates are supported");
+        }
+        this.certificateChain = certificateChain.clone();
+        this.privateKey = new SecurityKeyPrivateKey(this,
+                ((ECPublicKey) certificateChain[0].getPublicKey()).getParams());
+        this.cardSigner = cardSigner;
+        this.signingBridge = signingBridge;
+    }
+
+    public static boolean isSupported(X509Certificate[] certificateChain) {
+        return certificateChain != null && certificateChain.length > 0
+                && certificateChain[0].getPublicKey() instanceof ECPublicKey;
+    }
+
+    /**
+     * Full handshakes from now on are signed with the given security key, which must hold the
+     * private key of the certificate.
+     */
+    public void setCardSigner(CardSigner cardSigner) {
+        this.cardSigner = cardSigner;
+    }
+
+    byte[] signDigest(byte[] digest, String hashAlgorithm) throws IOException {
+        // The handshake thread waits, while the card I/O thread talks to the card
+        byte[] signature = signingBridge.signDigest(cardSigner, digest, hashAlgorithm);
+        signedOnThisThread.set(Boolean.TRUE);
+        return signature;
+    }
+
+    /**
+     * Returns whether a security key signed on this thread since the last call. TLS stacks sign on
+     * the thread that runs the handshake, so this tells full handshakes from resumed ones.
+     */
+    static boolean consumeSignedOnThisThread() {
+        boolean signed = signedOnThisThread.get() != null;
+        signedOnThisThread.remove();
+        return signed;
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+        return chooseAlias(keyTypes, issuers);
+    }
+
+    @Override
+    public String chooseEngineClientAlias(String[] keyTypes, Principal[] issuers, SSLEngine engine) {
+        return chooseAlias(keyTypes, issuers);
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        String alias = chooseAlias(new String[] { keyType }, issuers);
+        return alias != null ? new String[] { alias } : null;
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+        return ALIAS.equals(alias) ? certificateChain.clone() : null;
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+        return ALIAS.equals(alias) ? privateKey : null;
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        return null;
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        return null;
+    }
+
+    private String chooseAlias(String[] keyTypes, Principal[] issuers) {
+        if (keyTypes == null || !Arrays.asList(keyTypes).contains(KEY_TYPE_EC)) {
+            return null;
+        }
+        // Without a list of issuers, the server accepts any certificate
+        if (issuers == null || issuers.length == 0) {
+            return ALIAS;
+        }
+        List<Principal> acceptedIssuers = Arrays.asList(issuers);
+        for (X509Certificate certificate : certificateChain) {
+            if (acceptedIssuers.contains(certificate.getIssuerX500Principal())) {
+                return ALIAS;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A handle to the private key on the security key. It has no encoding, so the TLS stack signs
+     * with it through a JCA provider, and only {@link SecurityKeySignatureProvider} accepts it.
+     */
+    static final class SecurityKeyPrivateKey implements PrivateKey, ECKey {
+        private final transient SecurityKeyKeyManager keyManager;
+        private final transient ECParameterSpec params;
+
+        private SecurityKeyPrivateKey(SecurityKeyKeyManager keyManager, ECParameterSpec params) {
+            this.keyManager = keyManager;
+            this.params = params;
+        }
+
+        byte[] sign(byte[] digest, String hashAlgorithm) throws IOException {
+            // ECDSA only uses as many leftmost bytes of the digest as the order of the curve has
+            int orderLength = (params.getOrder().bitLength() + 7) / 8;
+            if (digest.length > orderLength) {
+                digest = Arrays.copyOf(digest, orderLength);
+            }
+            return keyManager.signDigest(digest, hashAlgorithm);
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return KEY_TYPE_EC;
+        }
+
+        @Override
+        public String getFormat() {
+            return null;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return null;
+        }
+
+        @Override
+        public ECParameterSpec getParams() {
+            return params;
+        }
+    }
+}
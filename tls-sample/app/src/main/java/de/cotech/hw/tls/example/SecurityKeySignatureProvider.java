@@ -0,0 +1,164 @@
+package de.cotech.hw.tls.example;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.SignatureException;
+import java.security.SignatureSpi;
+
+import de.cotech.hw.tls.example.SecurityKeyKeyManager.SecurityKeyPrivateKey;
+
+
+/**
+ * Signs TLS handshakes with the private key handles of {@link SecurityKeyKeyManager}.
+ * <p>
+ * The TLS stack picks the provider of a signature when it is initialized with the key, and this
+ * provider only accepts security key handles. It is installed last, so all other keys keep using
+ * the providers they did before. Conscrypt, the TLS stack of Android, hands digests to NONEwithECDSA
+ * for keys it can't use itself. The JSSE of the JDK asks for the hash algorithm by name.
+ */
+public class SecurityKeySignatureProvider extends Provider {
+    private static final String NAME = "SecurityKeyTls";
+
+    public static synchronized void install() {
+        if (Security.getProvider(NAME) == null) {
+            Security.addProvider(new SecurityKeySignatureProvider());
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private SecurityKeySignatureProvider() {
+        super(NAME, 1.0, "Signatures with the private key on a security key");
+        putService(new SignatureService(this, "NONEwithECDSA", null));
+        putService(new SignatureService(this, "SHA256withECDSA", "SHA-256"));
+        putService(new SignatureService(this, "SHA384withECDSA", "SHA-384"));
+        putService(new SignatureService(this, "SHA512withECDSA", "SHA-512"));
+    }
+
+    // Creates the signatures without reflection, so this keeps working when the app is minified
+    private static final class SignatureService extends Service {
+        private final String hashAlgorithm;
+
+        SignatureService(Provider provider, String algorithm, String hashAlgorithm) {
+            super(provider, "Signature", algorithm, SecurityKeySignature.class.getName(), null, null);
+            this.hashAlgorithm = hashAlgorithm;
+        }
+
+        @Override
+        public Object newInstance(Object constructorParameter) throws NoSuchAlgorithmException {
+            return new SecurityKeySignature(hashAlgorithm);
+        }
+
+        @Override
+        public boolean supportsParameter(Object parameter) {
+            return parameter instanceof SecurityKeyPrivateKey;
+        }
+    }
+
+    private static final class SecurityKeySignature extends SignatureSpi {
+        // null for NONEwithECDSA, which is given the digest itself
+        private final String hashAlgorithm;
+        private MessageDigest messageDigest;
+        private final ByteArrayOutputStream presignedDigest = new ByteArrayOutputStream();
+        private SecurityKeyPrivateKey privateKey;
+
+        SecurityKeySignature(String hashAlgorithm) throws NoSuchAlgorithmException {
+            this.hashAlgorithm = hashAlgorithm;
+            if (hashAlgorithm != null) {
+                messageDigest = MessageDigest.getInstance(hashAlgorithm);
+            }
+        }
+
+        @Override
+        protected void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+            if (!(privateKey instanceof SecurityKeyPrivateKey)) {
+                throw new InvalidKeyException("Only keys of a security key are supported");
+            }
+            this.privateKey = (SecurityKeyPrivateKey) privateKey;
+            reset();
+        }
+
+        @Override
+        protected void engineInitVerify(PublicKey publicKey) throws InvalidKeyException {
+            throw new InvalidKeyException("Verification is not supported");
+        }
+
+        @Override
+        protected void engineUpdate(byte b) {
+            engineUpdate(new byte[] { b }, 0, 1);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] b, int off, int len) {
+            if (messageDigest != null) {
+                messageDigest.update(b, off, len);
+            } else {
+                presignedDigest.write(b, off, len);
+            }
+        }
+
+        @Override
+        protected byte[] engineSign() throws SignatureException {
+            if (privateKey == null) {
+                throw new SignatureException("Not initialized for signing");
+            }
+            byte[] digest = messageDigest != null ? messageDigest.digest() : presignedDigest.toByteArray();
+            String digestAlgorithm = hashAlgorithm != null ? hashAlgorithm : getHashAlgorithm(digest.length);
+            reset();
+            try {
+                return privateKey.sign(digest, digestAlgorithm);
+            } catch (IOException e) {
+                throw new SignatureException("Signing with the security key failed", e);
+            }
+        }
+
+        @Override
+        protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+            throw new SignatureException("Verification is not supported");
+        }
+
+        @Override
+        @Deprecated
+        protected void engineSetParameter(String param, Object value) {
+            throw new InvalidParameterException("Parameters are not supported");
+        }
+
+        @Override
+        @Deprecated
+        protected Object engineGetParameter(String param) {
+            throw new InvalidParameterException("Parameters are not supported");
+        }
+
+        private void reset() {
+            if (messageDigest != null) {
+                messageDigest.reset();
+            }
+            presignedDigest.reset();
+        }
+
+        private static String getHashAlgorithm(int digestLength) throws SignatureException {
+            switch (digestLength) {
+                case 20:
+                    return "SHA-1";
+                case 28:
+                    return "SHA-224";
+                case 32:
+                    return "SHA-256";
+                case 48:
+                    return "SHA-384";
+                case 64:
+                    return "SHA-512";
+                default:
+                    throw new SignatureException("Unexpected digest length " + digestLength);
+            }
+        }
+    }
+}
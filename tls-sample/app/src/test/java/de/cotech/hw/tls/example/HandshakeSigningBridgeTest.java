@@ -0,0 +1,160 @@
+package de.cotech.hw.tls.example;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.cotech.hw.tls.example.TlsTestFixtures.SoftwareSecurityKey;
+import okhttp3.ConnectionSpec;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.TlsVersion;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Starts many connections to one host at the same moment. HTTP/1.1 is used, so each request needs
+ * its own connection and handshake. So is TLS 1.2, whose sessions can be resumed by several
+ * connections. TLS 1.3 session tickets can be used only once, see {@link HandshakeSigningBridge}.
+ */
+public class HandshakeSigningBridgeTest {
+    private static final int CONNECTION_COUNT = 8;
+    private static final long SIGNATURE_DELAY_MS = 200;
+    private static final long RESPONSE_DELAY_MS = 200;
+
+    private final TlsTestFixtures fixtures = new TlsTestFixtures();
+    private final SoftwareSecurityKey securityKey = fixtures.newSecurityKey("key");
+    private MockWebServer server;
+    private SecurityKeyHttpClientFactory httpClientFactory;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        // Responses take a while, so no connection is free for reuse while the others start
+        server = fixtures.startServer(RESPONSE_DELAY_MS);
+        httpClientFactory = new SecurityKeyHttpClientFactory(fixtures.clientTrustManager());
+        executor = Executors.newFixedThreadPool(CONNECTION_COUNT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.shutdown();
+    }
+
+    @Test
+    public void concurrentConnections_shareOneSignatureOnCardThread() throws Exception {
+        OkHttpClient httpClient = newHttpClient(securityKey.newCardSigner(SIGNATURE_DELAY_MS));
+
+        List<Future<Integer>> responseCodes = getConcurrently(httpClient);
+
+        for (Future<Integer> responseCode : responseCodes) {
+            assertEquals(200, (int) responseCode.get());
+        }
+        HandshakeCountingSslSocketFactory handshakeCounts = getHandshakeCounts();
+        assertEquals(1, securityKey.getSignatureCount());
+        assertEquals(Collections.singleton("security-key-io"), securityKey.getSigningThreadNames());
+        assertEquals(1, handshakeCounts.getFullHandshakeCount());
+        assertEquals(CONNECTION_COUNT - 1, handshakeCounts.getResumedHandshakeCount());
+        assertEquals(1, handshakeCounts.getSigningBridge().getSignatureCount());
+        assertEquals(CONNECTION_COUNT - 1, handshakeCounts.getSigningBridge().getCoalescedHandshakeCount());
+        assertTrue(handshakeCounts.getSigningBridge().getAverageSignatureLatencyMs() >= SIGNATURE_DELAY_MS);
+        assertEquals(0, handshakeCounts.getSigningBridge().getQueueDepth());
+    }
+
+    @Test
+    public void failedLeadingHandshake_letsWaitingConnectionTakeOver() throws Exception {
+        SecurityKeyKeyManager.CardSigner cardSigner = securityKey.newCardSigner(SIGNATURE_DELAY_MS);
+        AtomicBoolean failedOnce = new AtomicBoolean();
+        // The first signature fails, like a card that was moved away during the first handshake
+        OkHttpClient httpClient = newHttpClient((digest, hashAlgorithm) -> {
+            byte[] signature = cardSigner.signDigest(digest, hashAlgorithm);
+            if (failedOnce.compareAndSet(false, true)) {
+                throw new IOException("Security key was removed");
+            }
+            return signature;
+        });
+
+        long startTime = System.nanoTime();
+        List<Future<Integer>> responseCodes = getConcurrently(httpClient);
+        int failureCount = 0;
+        for (Future<Integer> responseCode : responseCodes) {
+            if (responseCode.get() != 200) {
+                failureCount++;
+            }
+        }
+        long totalTimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+        assertEquals(1, failureCount);
+        assertEquals(2, securityKey.getSignatureCount());
+        // A waiting connection takes over as soon as the leader failed, not after its wait timeout
+        assertTrue(totalTimeMs < 5000);
+    }
+
+    private OkHttpClient newHttpClient(SecurityKeyKeyManager.CardSigner cardSigner) throws Exception {
+        return httpClientFactory.getHttpClient(securityKey.getCertificateChain(), cardSigner)
+                .newBuilder()
+                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                .connectionSpecs(Collections.singletonList(new ConnectionSpec.Builder(ConnectionSpec.MODERN_TLS)
+                        .tlsVersions(TlsVersion.TLS_1_2)
+                        .build()))
+                .retryOnConnectionFailure(false)
+                .build();
+    }
+
+    // Returns the response code of each request, or -1 if it failed
+    private List<Future<Integer>> getConcurrently(OkHttpClient httpClient) throws InterruptedException {
+        CountDownLatch startLatch = new CountDownLatch(1);
+        List<Callable<Integer>> requests = new ArrayList<>();
+        for (int i = 0; i < CONNECTION_COUNT; i++) {
+            requests.add(() -> {
+                startLatch.await();
+                Request request = new Request.Builder()
+                        .url(server.url("/"))
+                        .build();
+                try (Response response = httpClient.newCall(request).execute()) {
+                    response.body().string();
+                    return response.code();
+                } catch (IOException e) {
+                    return -1;
+                }
+            });
+        }
+        List<Future<Integer>> responseCodes = new ArrayList<>();
+        for (Callable<Integer> request : requests) {
+            responseCodes.add(executor.submit(request));
+        }
+        startLatch.countDown();
+        for (Future<Integer> responseCode : responseCodes) {
+            try {
+                responseCode.get(30, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+        return responseCodes;
+    }
+
+    private HandshakeCountingSslSocketFactory getHandshakeCounts() throws Exception {
+        return httpClientFactory.getHandshakeCounts(
+                SecurityKeyHttpClientFactory.getIdentity(securityKey.getCertificateChain()));
+    }
+}
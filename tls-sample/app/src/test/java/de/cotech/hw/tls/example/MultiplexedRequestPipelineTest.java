@@ -0,0 +1,159 @@
+package de.cotech.hw.tls.example;
+
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.cotech.hw.tls.example.TlsTestFixtures.SoftwareSecurityKey;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Compares the pipeline with sequential HTTP/1.1 requests, against a local server that requires
+ * client certificates and takes a while for each response.
+ */
+public class MultiplexedRequestPipelineTest {
+    private static final int REQUEST_COUNT = 24;
+    private static final int MAX_IN_FLIGHT = 8;
+    private static final long RESPONSE_DELAY_MS = 100;
+
+    private final TlsTestFixtures fixtures = new TlsTestFixtures();
+    private final List<MockWebServer> servers = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (MockWebServer server : servers) {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void multiplexedHttp2_isFasterThanSequentialHttp11() throws Exception {
+        SoftwareSecurityKey sequentialSecurityKey = fixtures.newSecurityKey("sequential");
+        MockWebServer sequentialServer = startServer();
+        OkHttpClient sequentialHttpClient = newHttpClient(sequentialSecurityKey).newBuilder()
+                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                .build();
+        long sequentialStartTime = System.nanoTime();
+        for (Request request : newRequests(sequentialServer)) {
+            try (Response response = sequentialHttpClient.newCall(request).execute()) {
+                assertEquals(Protocol.HTTP_1_1, response.protocol());
+                response.body().string();
+            }
+        }
+        long sequentialTimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sequentialStartTime);
+
+        SoftwareSecurityKey multiplexedSecurityKey = fixtures.newSecurityKey("multiplexed");
+        MockWebServer multiplexedServer = startServer();
+        OkHttpClient multiplexedHttpClient = newHttpClient(multiplexedSecurityKey);
+        RecordingCallback callback = new RecordingCallback();
+        long multiplexedStartTime = System.nanoTime();
+        new MultiplexedRequestPipeline(multiplexedHttpClient, MAX_IN_FLIGHT)
+                .enqueueAll(newRequests(multiplexedServer), callback);
+        callback.awaitAllCompleted();
+        long multiplexedTimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - multiplexedStartTime);
+
+        System.out.println(String.format("%d requests: sequential HTTP/1.1 %d ms, multiplexed HTTP/2 %d ms",
+                REQUEST_COUNT, sequentialTimeMs, multiplexedTimeMs));
+        assertEquals(REQUEST_COUNT, callback.http2ResponseCount.get());
+        assertEquals(0, callback.failureCount.get());
+        assertEquals(1, multiplexedSecurityKey.getSignatureCount());
+        // Sequential requests wait for each response in turn, multiplexed ones MAX_IN_FLIGHT at a time
+        assertTrue(sequentialTimeMs >= REQUEST_COUNT * RESPONSE_DELAY_MS);
+        assertTrue(multiplexedTimeMs * 2 < sequentialTimeMs);
+    }
+
+    @Test
+    public void enqueueAll_returnsOnceFirstRequestSigned() throws Exception {
+        SoftwareSecurityKey securityKey = fixtures.newSecurityKey("key");
+        MockWebServer server = startServer();
+        RecordingCallback callback = new RecordingCallback();
+
+        new MultiplexedRequestPipeline(newHttpClient(securityKey), MAX_IN_FLIGHT)
+                .enqueueAll(newRequests(server), callback);
+
+        assertEquals(1, securityKey.getSignatureCount());
+        callback.awaitAllCompleted();
+        assertEquals(REQUEST_COUNT, callback.http2ResponseCount.get());
+    }
+
+    @Test
+    public void failedFirstRequest_failsOthersWithoutSendingThem() throws Exception {
+        SoftwareSecurityKey securityKey = fixtures.newSecurityKey("key");
+        MockWebServer server = startServer();
+        SecurityKeyHttpClientFactory httpClientFactory = new SecurityKeyHttpClientFactory(fixtures.clientTrustManager());
+        OkHttpClient httpClient = httpClientFactory.getHttpClient(
+                securityKey.getCertificateChain(), securityKey.newDetachedCardSigner());
+        RecordingCallback callback = new RecordingCallback();
+
+        new MultiplexedRequestPipeline(httpClient, MAX_IN_FLIGHT).enqueueAll(newRequests(server), callback);
+
+        callback.awaitAllCompleted();
+        assertEquals(REQUEST_COUNT, callback.failureCount.get());
+        assertEquals(0, server.getRequestCount());
+    }
+
+    private MockWebServer startServer() throws IOException {
+        MockWebServer server = fixtures.startServer(RESPONSE_DELAY_MS);
+        servers.add(server);
+        return server;
+    }
+
+    private OkHttpClient newHttpClient(SoftwareSecurityKey securityKey) throws Exception {
+        SecurityKeyHttpClientFactory httpClientFactory = new SecurityKeyHttpClientFactory(fixtures.clientTrustManager());
+        return httpClientFactory.getHttpClient(securityKey.getCertificateChain(), securityKey.newCardSigner());
+    }
+
+    private static List<Request> newRequests(MockWebServer server) {
+        List<Request> requests = new ArrayList<>();
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            requests.add(new Request.Builder().url(server.url("/" + i)).build());
+        }
+        return requests;
+    }
+
+    private static class RecordingCallback implements MultiplexedRequestPipeline.RequestCallback {
+        final AtomicInteger http2ResponseCount = new AtomicInteger();
+        final AtomicInteger failureCount = new AtomicInteger();
+        private final CountDownLatch allCompletedLatch = new CountDownLatch(1);
+
+        @Override
+        public void onResponse(@NonNull Request request, @NonNull Response response) throws IOException {
+            response.body().string();
+            if (response.protocol() == Protocol.HTTP_2) {
+                http2ResponseCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onFailure(@NonNull Request request, @NonNull IOException e) {
+            failureCount.incrementAndGet();
+        }
+
+        @Override
+        public void onAllCompleted() {
+            allCompletedLatch.countDown();
+        }
+
+        void awaitAllCompleted() throws InterruptedException {
+            assertTrue(allCompletedLatch.await(30, TimeUnit.SECONDS));
+        }
+    }
+}
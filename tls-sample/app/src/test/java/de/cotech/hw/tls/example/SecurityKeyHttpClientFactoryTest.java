@@ -0,0 +1,123 @@
+package de.cotech.hw.tls.example;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import de.cotech.hw.tls.example.TlsTestFixtures.SoftwareSecurityKey;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class SecurityKeyHttpClientFactoryTest {
+    private final TlsTestFixtures fixtures = new TlsTestFixtures();
+    private MockWebServer server;
+    private SecurityKeyHttpClientFactory httpClientFactory;
+
+    @Before
+    public void setUp() throws IOException {
+        server = fixtures.startServer();
+        httpClientFactory = new SecurityKeyHttpClientFactory(fixtures.clientTrustManager());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void sameSecurityKey_reusesClientAndConnection() throws Exception {
+        SoftwareSecurityKey securityKey = fixtures.newSecurityKey("key");
+
+        OkHttpClient httpClient = httpClientFactory.getHttpClient(
+                securityKey.getCertificateChain(), securityKey.newCardSigner());
+        get(httpClient);
+        OkHttpClient rediscoveredHttpClient = httpClientFactory.getHttpClient(
+                securityKey.getCertificateChain(), securityKey.newCardSigner());
+        get(rediscoveredHttpClient);
+
+        assertSame(httpClient, rediscoveredHttpClient);
+        assertEquals(0, server.takeRequest().getSequenceNumber());
+        assertEquals(1, server.takeRequest().getSequenceNumber());
+        assertEquals(1, securityKey.getSignatureCount());
+    }
+
+    @Test
+    public void otherSecurityKey_getsOwnClientAndConnection() throws Exception {
+        SoftwareSecurityKey securityKey = fixtures.newSecurityKey("key");
+        SoftwareSecurityKey otherSecurityKey = fixtures.newSecurityKey("other key");
+
+        OkHttpClient httpClient = httpClientFactory.getHttpClient(
+                securityKey.getCertificateChain(), securityKey.newCardSigner());
+        get(httpClient);
+        OkHttpClient otherHttpClient = httpClientFactory.getHttpClient(
+                otherSecurityKey.getCertificateChain(), otherSecurityKey.newCardSigner());
+        get(otherHttpClient);
+
+        assertNotSame(httpClient, otherHttpClient);
+        RecordedRequest request = server.takeRequest();
+        RecordedRequest otherRequest = server.takeRequest();
+        assertEquals(securityKey.getCertificate(), request.getHandshake().peerCertificates().get(0));
+        assertEquals(otherSecurityKey.getCertificate(), otherRequest.getHandshake().peerCertificates().get(0));
+        assertEquals(0, otherRequest.getSequenceNumber());
+        assertEquals(1, securityKey.getSignatureCount());
+        assertEquals(1, otherSecurityKey.getSignatureCount());
+    }
+
+    @Test
+    public void invalidate_evictsOnlyConnectionsOfThatIdentity() throws Exception {
+        SoftwareSecurityKey securityKey = fixtures.newSecurityKey("key");
+        SoftwareSecurityKey otherSecurityKey = fixtures.newSecurityKey("other key");
+        OkHttpClient httpClient = httpClientFactory.getHttpClient(
+                securityKey.getCertificateChain(), securityKey.newCardSigner());
+        OkHttpClient otherHttpClient = httpClientFactory.getHttpClient(
+                otherSecurityKey.getCertificateChain(), otherSecurityKey.newCardSigner());
+        get(httpClient);
+        get(otherHttpClient);
+
+        String identity = SecurityKeyHttpClientFactory.getIdentity(securityKey.getCertificateChain());
+        String otherIdentity = SecurityKeyHttpClientFactory.getIdentity(otherSecurityKey.getCertificateChain());
+        httpClientFactory.invalidate(identity);
+
+        assertFalse(httpClientFactory.hasHttpClient(identity));
+        assertTrue(httpClientFactory.hasHttpClient(otherIdentity));
+        assertEquals(0, httpClient.connectionPool().connectionCount());
+        assertEquals(1, otherHttpClient.connectionPool().connectionCount());
+    }
+
+    @Test
+    public void rediscovery_signsWithNewSigner() throws Exception {
+        SoftwareSecurityKey securityKey = fixtures.newSecurityKey("key");
+        // Both discoveries find the same key, but only the last one is still attached
+        SoftwareSecurityKey detachedSecurityKey = new SoftwareSecurityKey(null);
+
+        httpClientFactory.getHttpClient(securityKey.getCertificateChain(), detachedSecurityKey.newCardSigner());
+        OkHttpClient httpClient = httpClientFactory.getHttpClient(
+                securityKey.getCertificateChain(), securityKey.newCardSigner());
+        get(httpClient);
+
+        assertEquals(0, detachedSecurityKey.getSignatureCount());
+        assertEquals(1, securityKey.getSignatureCount());
+    }
+
+    private void get(OkHttpClient httpClient) throws IOException {
+        Request request = new Request.Builder()
+                .url(server.url("/"))
+                .build();
+        try (Response response = httpClient.newCall(request).execute()) {
+            assertEquals("ok", response.body().string());
+        }
+    }
+}
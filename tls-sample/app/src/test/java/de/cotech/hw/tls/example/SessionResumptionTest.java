@@ -0,0 +1,101 @@
+package de.cotech.hw.tls.example;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import de.cotech.hw.tls.example.TlsTestFixtures.SoftwareSecurityKey;
+import okhttp3.ConnectionSpec;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.TlsVersion;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class SessionResumptionTest {
+    private static final int CONNECTION_COUNT = 5;
+
+    private final TlsTestFixtures fixtures = new TlsTestFixtures();
+    private final SoftwareSecurityKey securityKey = fixtures.newSecurityKey("key");
+    private MockWebServer server;
+    private SecurityKeyHttpClientFactory httpClientFactory;
+
+    @Before
+    public void setUp() throws IOException {
+        server = fixtures.startServer();
+        httpClientFactory = new SecurityKeyHttpClientFactory(fixtures.clientTrustManager());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void reconnects_resumeTls13Session() throws Exception {
+        assertReconnectsResume(TlsVersion.TLS_1_3);
+    }
+
+    @Test
+    public void reconnects_resumeTls12Session() throws Exception {
+        assertReconnectsResume(TlsVersion.TLS_1_2);
+    }
+
+    @Test
+    public void rediscovery_keepsSessions() throws Exception {
+        get(httpClientFactory.getHttpClient(securityKey.getCertificateChain(), securityKey.newCardSigner()));
+        OkHttpClient httpClient = httpClientFactory.getHttpClient(
+                securityKey.getCertificateChain(), securityKey.newCardSigner());
+        httpClient.connectionPool().evictAll();
+        get(httpClient);
+
+        assertEquals(1, securityKey.getSignatureCount());
+        assertEquals(1, getHandshakeCounts().getResumedHandshakeCount());
+    }
+
+    private void assertReconnectsResume(TlsVersion tlsVersion) throws Exception {
+        OkHttpClient httpClient = httpClientFactory.getHttpClient(
+                securityKey.getCertificateChain(), securityKey.newCardSigner())
+                .newBuilder()
+                .connectionSpecs(Collections.singletonList(new ConnectionSpec.Builder(ConnectionSpec.MODERN_TLS)
+                        .tlsVersions(tlsVersion)
+                        .build()))
+                .build();
+
+        for (int i = 0; i < CONNECTION_COUNT; i++) {
+            // Closing the connection makes the next request handshake again
+            httpClient.connectionPool().evictAll();
+            Response response = get(httpClient);
+            assertEquals(tlsVersion, response.handshake().tlsVersion());
+        }
+
+        HandshakeCountingSslSocketFactory handshakeCounts = getHandshakeCounts();
+        assertEquals(1, securityKey.getSignatureCount());
+        assertEquals(1, handshakeCounts.getFullHandshakeCount());
+        assertEquals(CONNECTION_COUNT - 1, handshakeCounts.getResumedHandshakeCount());
+        assertEquals(1, handshakeCounts.getSigningBridge().getSignatureCount());
+        assertEquals(CONNECTION_COUNT, server.getRequestCount());
+    }
+
+    private HandshakeCountingSslSocketFactory getHandshakeCounts() throws Exception {
+        return httpClientFactory.getHandshakeCounts(
+                SecurityKeyHttpClientFactory.getIdentity(securityKey.getCertificateChain()));
+    }
+
+    private Response get(OkHttpClient httpClient) throws IOException {
+        Request request = new Request.Builder()
+                .url(server.url("/"))
+                .build();
+        try (Response response = httpClient.newCall(request).execute()) {
+            assertEquals("ok", response.body().string());
+            return response;
+        }
+    }
+}
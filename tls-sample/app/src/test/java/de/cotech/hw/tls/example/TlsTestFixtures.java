@@ -0,0 +1,139 @@
+package de.cotech.hw.tls.example;
+
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+
+/**
+ * A local CA, a MockWebServer that requires client certificates from it, and software security keys
+ * with client certificates from it.
+ */
+class TlsTestFixtures {
+    private final HeldCertificate rootCertificate = new HeldCertificate.Builder()
+            .commonName("Test CA")
+            .certificateAuthority(0)
+            .ecdsa256()
+            .build();
+
+    MockWebServer startServer() throws IOException {
+        return startServer(0);
+    }
+
+    // Each response takes at least responseDelayMs, like a server doing some work
+    MockWebServer startServer(long responseDelayMs) throws IOException {
+        HeldCertificate serverCertificate = new HeldCertificate.Builder()
+                .commonName("localhost")
+                .addSubjectAlternativeName("localhost")
+                .signedBy(rootCertificate)
+                .ecdsa256()
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(serverCertificate)
+                .addTrustedCertificate(rootCertificate.certificate())
+                .build();
+
+        MockWebServer server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        server.requireClientAuth();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse()
+                        .setBody("ok")
+                        .setBodyDelay(responseDelayMs, TimeUnit.MILLISECONDS);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    X509TrustManager clientTrustManager() {
+        return new HandshakeCertificates.Builder()
+                .addTrustedCertificate(rootCertificate.certificate())
+                .build()
+                .trustManager();
+    }
+
+    SoftwareSecurityKey newSecurityKey(String name) {
+        HeldCertificate clientCertificate = new HeldCertificate.Builder()
+                .commonName(name)
+                .signedBy(rootCertificate)
+                .ecdsa256()
+                .build();
+        return new SoftwareSecurityKey(clientCertificate);
+    }
+
+    /**
+     * Signs like a security key would, and counts its signatures.
+     */
+    static class SoftwareSecurityKey {
+        private final HeldCertificate clientCertificate;
+        private final AtomicInteger signatureCount = new AtomicInteger();
+        private final Set<String> signingThreadNames = Collections.synchronizedSet(new HashSet<>());
+
+        SoftwareSecurityKey(HeldCertificate clientCertificate) {
+            this.clientCertificate = clientCertificate;
+        }
+
+        X509Certificate[] getCertificateChain() {
+            return new X509Certificate[] { clientCertificate.certificate() };
+        }
+
+        X509Certificate getCertificate() {
+            return clientCertificate.certificate();
+        }
+
+        int getSignatureCount() {
+            return signatureCount.get();
+        }
+
+        Set<String> getSigningThreadNames() {
+            return signingThreadNames;
+        }
+
+        // Like a security key that was removed
+        SecurityKeyKeyManager.CardSigner newDetachedCardSigner() {
+            return (digest, hashAlgorithm) -> {
+                throw new IOException("Security key was removed");
+            };
+        }
+
+        SecurityKeyKeyManager.CardSigner newCardSigner() {
+            return newCardSigner(0);
+        }
+
+        // Each signature takes at least signatureDelayMs, like a card does
+        SecurityKeyKeyManager.CardSigner newCardSigner(long signatureDelayMs) {
+            return (digest, hashAlgorithm) -> {
+                signatureCount.incrementAndGet();
+                signingThreadNames.add(Thread.currentThread().getName());
+                try {
+                    Thread.sleep(signatureDelayMs);
+                    Signature signature = Signature.getInstance("NONEwithECDSA");
+                    signature.initSign(clientCertificate.keyPair().getPrivate());
+                    signature.update(digest);
+                    return signature.sign();
+                } catch (GeneralSecurityException | InterruptedException e) {
+                    throw new IOException(e);
+                }
+            };
+        }
+    }
+}